@@ -0,0 +1,79 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.SpillCodec;
+import me.itzg.slowstart.SpillCodecs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executor;
+
+/**
+ * Shared plumbing for the benchmarks, kept out of the measured methods.
+ */
+final class BenchmarkSupport {
+
+    /**
+     * Runs tasks on the calling thread so that {@code ready()} drains the slow-start buffer before returning.
+     */
+    static final Executor DIRECT = Runnable::run;
+
+    private BenchmarkSupport() {
+    }
+
+    static Path createStorage() {
+        try {
+            return Files.createTempDirectory("slowstart-bench");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteStorage(Path path) {
+        if (path == null || !Files.exists(path)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static SpillCodec codec(String name) {
+        switch (name) {
+            case "LZ":
+                return SpillCodecs.LZ;
+            case "DEFLATE":
+                return SpillCodecs.DEFLATE;
+            default:
+                return null;
+        }
+    }
+
+    static ByteBuffer createPayload(int size) {
+        final ByteBuffer bb = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            bb.put((byte) i);
+        }
+        bb.rewind();
+        return bb;
+    }
+}
@@ -0,0 +1,73 @@
+package me.itzg.slowstart.benchmarks;
+
+import java.util.Random;
+
+/**
+ * A distribution of non-negative values, such as payload sizes or readiness delays, parsed from a spec of the
+ * form <code>fixed:V</code>, <code>uniform:MIN:MAX</code>, <code>exponential:MEAN</code> or
+ * <code>lognormal:MEDIAN:SIGMA</code>.
+ */
+abstract class Distribution {
+    private final String spec;
+
+    private Distribution(String spec) {
+        this.spec = spec;
+    }
+
+    abstract long sample(Random random);
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    static Distribution parse(String spec) {
+        final String[] parts = spec.split(":");
+        try {
+            switch (parts[0]) {
+                case "fixed": {
+                    final long value = Long.parseLong(parts[1]);
+                    return new Distribution(spec) {
+                        @Override
+                        long sample(Random random) {
+                            return value;
+                        }
+                    };
+                }
+                case "uniform": {
+                    final long min = Long.parseLong(parts[1]);
+                    final long span = Long.parseLong(parts[2]) - min + 1;
+                    return new Distribution(spec) {
+                        @Override
+                        long sample(Random random) {
+                            return min + (long) (random.nextDouble() * span);
+                        }
+                    };
+                }
+                case "exponential": {
+                    final double mean = Double.parseDouble(parts[1]);
+                    return new Distribution(spec) {
+                        @Override
+                        long sample(Random random) {
+                            return (long) (-mean * Math.log(1 - random.nextDouble()));
+                        }
+                    };
+                }
+                case "lognormal": {
+                    final double mu = Math.log(Double.parseDouble(parts[1]));
+                    final double sigma = Double.parseDouble(parts[2]);
+                    return new Distribution(spec) {
+                        @Override
+                        long sample(Random random) {
+                            return (long) Math.exp(mu + sigma * random.nextGaussian());
+                        }
+                    };
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown distribution " + spec);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid distribution " + spec, e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.BatchEventConsumer;
+import me.itzg.slowstart.EventConsumer;
+import me.itzg.slowstart.SlowStartConfig;
+import me.itzg.slowstart.SlowStartEventQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how quickly a pre-filled slow-start buffer is drained to the consumer once
+ * {@link SlowStartEventQueue#ready()} is called. The drain runs on the benchmark thread, so each invocation
+ * covers the complete drain of {@link #RECORDS} events.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class DrainBenchmark {
+
+    static final int RECORDS = 100_000;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean reuseDrainBuffer;
+
+    /**
+     * Drains into a {@link BatchEventConsumer} when true.
+     */
+    @Param({"false", "true"})
+    public boolean batchConsumer;
+
+    /**
+     * Zero selects the single-file slow-start buffer.
+     */
+    @Param({"0", "8388608"})
+    public int segmentSize;
+
+    /**
+     * The codec for compressing the slow-start buffer, or NONE.
+     */
+    @Param({"NONE", "LZ", "DEFLATE"})
+    public String codec;
+
+    /**
+     * The read-ahead chunk size, where zero disables read-ahead.
+     */
+    @Param({"0", "1048576"})
+    public int readAhead;
+
+    private Path storage;
+    private SlowStartEventQueue queue;
+    private Blackhole blackhole;
+
+    @Setup(Level.Trial)
+    public void setUpTrial(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        storage = BenchmarkSupport.createStorage();
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+        final ByteBuffer payload = BenchmarkSupport.createPayload(payloadSize);
+        final EventConsumer consumer = batchConsumer ?
+                (BatchEventConsumer) (key, payloads) -> {
+                    for (ByteBuffer bb : payloads) {
+                        blackhole.consume(bb);
+                    }
+                } :
+                (key, bb) -> blackhole.consume(bb);
+        queue = new SlowStartEventQueue("drain", consumer, storage,
+                                        BenchmarkSupport.DIRECT,
+                                        new SlowStartConfig()
+                                                .setReuseDrainBuffer(reuseDrainBuffer)
+                                                .setSegmentSize(segmentSize)
+                                                .setCompression(BenchmarkSupport.codec(codec))
+                                                .setDrainReadAhead(readAhead));
+        for (int i = 0; i < RECORDS; i++) {
+            payload.rewind();
+            queue.publish(payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        BenchmarkSupport.deleteStorage(storage);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public SlowStartEventQueue.Stats drain() {
+        queue.ready();
+        return queue.getStats();
+    }
+}
@@ -0,0 +1,380 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.DurabilityMode;
+import me.itzg.slowstart.LatencyHistogram;
+import me.itzg.slowstart.SlowStartConfig;
+import me.itzg.slowstart.SlowStartEventRouter;
+import me.itzg.slowstart.SlowStartEventRouterMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link SlowStartEventRouter} with many keys for a sustained period, which catches what the JMH
+ * benchmarks can't: growth of disk use or open files over time, slow switch-overs under skewed load, and lost or
+ * reordered events. Run it from the benchmark jar with options given as <code>name=value</code> arguments:
+ * <pre>
+ * java -cp target/benchmarks.jar me.itzg.slowstart.benchmarks.LoadSimulation keys=100000 skew=1.1 duration=300
+ * </pre>
+ * The options and their defaults are:
+ * <ul>
+ *     <li><code>keys=10000</code> the key cardinality</li>
+ *     <li><code>skew=1.0</code> the Zipfian exponent of key popularity, or zero for uniform</li>
+ *     <li><code>publishers=4</code> the number of publishing threads</li>
+ *     <li><code>rate=0</code> the events per second across all publishers, or zero to publish flat out</li>
+ *     <li><code>duration=60</code> how many seconds to publish for</li>
+ *     <li><code>payload=fixed:256</code> the payload size distribution in bytes, at least 24</li>
+ *     <li><code>ready=uniform:0:5000</code> the distribution of how many milliseconds a new key takes to become
+ *     ready</li>
+ *     <li><code>report=5</code> the seconds between progress reports</li>
+ *     <li><code>drainTimeout=120</code> how many seconds to wait, once publishing stops, for every event to be
+ *     delivered</li>
+ *     <li><code>storage</code> where to put the slow-start buffers, which defaults to a temporary directory that
+ *     is removed afterwards</li>
+ *     <li><code>segmentSize</code>, <code>groupCommit</code> (batch size), <code>memoryTier</code> (per key),
+ *     <code>sharedLogShards</code> and <code>durability</code> select the corresponding {@link SlowStartConfig}
+ *     options</li>
+ * </ul>
+ * Each payload carries when it was published, its key, its publisher and its sequence among the events of that
+ * publisher for that key. The consumer uses those to measure end-to-end latency and to count events that arrive
+ * out of order or not at all. The process exits with a status of 1 if any were.
+ */
+public class LoadSimulation {
+
+    /**
+     * Publish time, key index, publisher index and sequence.
+     */
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    private final int keyCount;
+    private final int publisherCount;
+    private final long ratePerPublisher;
+    private final long durationNS;
+    private final long reportNS;
+    private final long drainTimeoutNS;
+    private final Distribution payloadSizes;
+    private final Distribution readyDelays;
+    private final String skew;
+    private final ZipfKeys keys;
+    private final String[] keyNames;
+    private final Path storage;
+    private final boolean temporaryStorage;
+    private final SlowStartConfig config;
+
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder publishFailures = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder outOfOrder = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    /**
+     * The next expected sequence of each publisher and key, indexed by <code>publisher * keyCount + key</code>.
+     */
+    private final AtomicLongArray expected;
+    /**
+     * The events published by each publisher to each key, indexed likewise and only written by the publisher.
+     */
+    private final long[][] sequences;
+
+    private final ScheduledExecutorService readiness = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "simulation-readiness");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService drainExecutor = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "simulation-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder pendingReady = new LongAdder();
+    private volatile boolean stopping;
+
+    private long maxDiskBytes;
+    private long maxOpenFiles;
+
+    LoadSimulation(Map<String, String> options) throws IOException {
+        keyCount = Integer.parseInt(option(options, "keys", "10000"));
+        publisherCount = Integer.parseInt(option(options, "publishers", "4"));
+        ratePerPublisher = Long.parseLong(option(options, "rate", "0")) / publisherCount;
+        durationNS = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "duration", "60")));
+        reportNS = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "report", "5")));
+        drainTimeoutNS = TimeUnit.SECONDS.toNanos(Long.parseLong(option(options, "drainTimeout", "120")));
+        payloadSizes = Distribution.parse(option(options, "payload", "fixed:256"));
+        readyDelays = Distribution.parse(option(options, "ready", "uniform:0:5000"));
+        skew = option(options, "skew", "1.0");
+        keys = new ZipfKeys(keyCount, Double.parseDouble(skew));
+
+        keyNames = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keyNames[i] = "key-" + i;
+        }
+        expected = new AtomicLongArray(publisherCount * keyCount);
+        sequences = new long[publisherCount][keyCount];
+
+        final String storageOption = options.remove("storage");
+        temporaryStorage = storageOption == null;
+        storage = temporaryStorage ? BenchmarkSupport.createStorage() : Paths.get(storageOption);
+
+        config = new SlowStartConfig()
+                .setSegmentSize(Integer.parseInt(option(options, "segmentSize", "0")))
+                .setGroupCommit(Integer.parseInt(option(options, "groupCommit", "0")), 5, TimeUnit.MILLISECONDS)
+                .setMemoryTier(Integer.parseInt(option(options, "memoryTier", "0")), Long.MAX_VALUE)
+                .setSharedLog(Integer.parseInt(option(options, "sharedLogShards", "0")), 64 * 1024 * 1024)
+                .setDurability(DurabilityMode.valueOf(option(options, "durability", "NONE")), 10,
+                               TimeUnit.MILLISECONDS);
+
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        final String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Options are given as name=value, but got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        final boolean violations = new LoadSimulation(options).run();
+        System.exit(violations ? 1 : 0);
+    }
+
+    /**
+     * @return true if any events were lost or delivered out of order
+     */
+    boolean run() throws Exception {
+        System.out.printf("Simulating %d keys with a skew of %s, %d publishers, payloads of %s bytes and readiness after " +
+                                  "%s ms in %s%n",
+                          keyCount, skew, publisherCount, payloadSizes, readyDelays, storage);
+
+        final SlowStartEventRouter router = new SlowStartEventRouter(this::observeNewKey, this::consume, storage,
+                                                                     drainExecutor, config);
+        final SlowStartEventRouterMXBean mxBean = router.getMXBean();
+        try {
+            final List<Thread> publishers = new ArrayList<>();
+            for (int p = 0; p < publisherCount; p++) {
+                final int publisher = p;
+                final Thread thread = new Thread(() -> publish(router, publisher), "simulation-publisher-" + p);
+                thread.start();
+                publishers.add(thread);
+            }
+
+            final long startNS = System.nanoTime();
+            final long endNS = startNS + durationNS;
+            long nextReportNS = startNS + reportNS;
+            while (System.nanoTime() < endNS) {
+                LockSupport.parkNanos(Math.max(Math.min(nextReportNS, endNS) - System.nanoTime(), 0));
+                if (System.nanoTime() >= nextReportNS) {
+                    report(startNS, mxBean);
+                    nextReportNS += reportNS;
+                }
+            }
+
+            stopping = true;
+            for (Thread thread : publishers) {
+                thread.join();
+            }
+
+            System.out.println("Publishing stopped, waiting for the remaining events to be delivered");
+            final long deadlineNS = System.nanoTime() + drainTimeoutNS;
+            while (delivered.sum() < published.sum() && System.nanoTime() < deadlineNS) {
+                Thread.sleep(100);
+                if (System.nanoTime() >= nextReportNS) {
+                    report(startNS, mxBean);
+                    nextReportNS += reportNS;
+                }
+            }
+            report(startNS, mxBean);
+
+            return summarize(mxBean);
+        } finally {
+            router.close();
+            readiness.shutdownNow();
+            drainExecutor.shutdown();
+            if (temporaryStorage) {
+                BenchmarkSupport.deleteStorage(storage);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> observeNewKey(String key) {
+        final long delayMS = readyDelays.sample(ThreadLocalRandom.current());
+        if (delayMS <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        pendingReady.increment();
+        readiness.schedule(() -> {
+            pendingReady.decrement();
+            future.complete(null);
+        }, delayMS, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private void publish(SlowStartEventRouter router, int publisher) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long[] published = sequences[publisher];
+        final long intervalNS = ratePerPublisher > 0 ? TimeUnit.SECONDS.toNanos(1) / ratePerPublisher : 0;
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE);
+        long nextNS = System.nanoTime();
+
+        while (!stopping) {
+            if (intervalNS > 0) {
+                nextNS += intervalNS;
+                final long waitNS = nextNS - System.nanoTime();
+                if (waitNS > 0) {
+                    LockSupport.parkNanos(waitNS);
+                }
+            }
+
+            final int key = keys.next(random);
+            final int size = (int) Math.max(payloadSizes.sample(random), HEADER_SIZE);
+            if (payload.capacity() < size) {
+                payload = ByteBuffer.allocate(size);
+            }
+            payload.clear();
+            payload.limit(size);
+            final long sequence = published[key];
+            payload.putLong(0, System.nanoTime());
+            payload.putInt(Long.BYTES, key);
+            payload.putInt(Long.BYTES + Integer.BYTES, publisher);
+            payload.putLong(Long.BYTES + Integer.BYTES + Integer.BYTES, sequence);
+
+            final long startNS = System.nanoTime();
+            try {
+                router.route(keyNames[key], payload);
+                published[key] = sequence + 1;
+                this.published.increment();
+            } catch (IOException | RuntimeException e) {
+                publishFailures.increment();
+            }
+            publishLatency.record(System.nanoTime() - startNS);
+        }
+    }
+
+    private void consume(String key, ByteBuffer payload) {
+        final int position = payload.position();
+        final long publishedNS = payload.getLong(position);
+        final int keyIndex = payload.getInt(position + Long.BYTES);
+        final int publisher = payload.getInt(position + Long.BYTES + Integer.BYTES);
+        final long sequence = payload.getLong(position + Long.BYTES + Integer.BYTES + Integer.BYTES);
+        endToEndLatency.record(System.nanoTime() - publishedNS);
+
+        // the events of one publisher and key are delivered one at a time, so the slot isn't contended
+        final int slot = publisher * keyCount + keyIndex;
+        final long next = expected.get(slot);
+        if (sequence == next) {
+            expected.lazySet(slot, sequence + 1);
+        }
+        else if (sequence > next) {
+            skipped.add(sequence - next);
+            expected.lazySet(slot, sequence + 1);
+        }
+        else {
+            outOfOrder.increment();
+        }
+        delivered.increment();
+    }
+
+    private void report(long startNS, SlowStartEventRouterMXBean mxBean) {
+        final long diskBytes = diskUsage(storage);
+        final long openFiles = openFiles();
+        maxDiskBytes = Math.max(maxDiskBytes, diskBytes);
+        maxOpenFiles = Math.max(maxOpenFiles, openFiles);
+
+        System.out.printf("%5ds published=%d delivered=%d routes=%d slowStart=%d draining=%d pendingReady=%d " +
+                                  "backlog=%d disk=%.1fMB openFiles=%d publishP99=%dus endToEndP99=%dms%n",
+                          TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNS),
+                          published.sum(), delivered.sum(), mxBean.getRouteCount(),
+                          mxBean.getSlowStartRouteCount(), mxBean.getDrainingRouteCount(), pendingReady.sum(),
+                          mxBean.getBacklogEvents(), diskBytes / 1e6, openFiles,
+                          TimeUnit.NANOSECONDS.toMicros(publishLatency.getPercentile(99)),
+                          TimeUnit.NANOSECONDS.toMillis(endToEndLatency.getPercentile(99)));
+    }
+
+    private boolean summarize(SlowStartEventRouterMXBean mxBean) {
+        // anything published beyond the last delivered sequence never arrived
+        long missing = 0;
+        for (int p = 0; p < publisherCount; p++) {
+            for (int k = 0; k < keyCount; k++) {
+                missing += Math.max(sequences[p][k] - expected.get(p * keyCount + k), 0);
+            }
+        }
+
+        System.out.println();
+        System.out.printf("Published %d events, %d failed to publish, and delivered %d%n",
+                          published.sum(), publishFailures.sum(), delivered.sum());
+        System.out.println("Publish latency (ns):     " + publishLatency.snapshot());
+        System.out.println("End-to-end latency (ns):  " + endToEndLatency.snapshot());
+        System.out.println("Switch-over time (ns):    " + mxBean.getSwitchOverTime());
+        System.out.println("Fsync time (ns):          " + mxBean.getFsyncTime());
+        System.out.printf("Peak disk use %.1fMB and open files %d%n", maxDiskBytes / 1e6, maxOpenFiles);
+        System.out.printf("Out of order %d, skipped %d and never delivered %d%n",
+                          outOfOrder.sum(), skipped.sum(), missing);
+
+        return outOfOrder.sum() > 0 || skipped.sum() > 0 || missing > 0;
+    }
+
+    private static long diskUsage(Path storage) {
+        final long[] total = {0};
+        try {
+            Files.walkFileTree(storage, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    total[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // deleted by a drain while walking
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            return -1;
+        }
+        return total[0];
+    }
+
+    /**
+     * @return the open file descriptors of this process, or -1 where that isn't available
+     */
+    private static long openFiles() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+}
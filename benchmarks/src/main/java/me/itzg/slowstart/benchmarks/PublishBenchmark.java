@@ -0,0 +1,119 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.DurabilityMode;
+import me.itzg.slowstart.SlowStartConfig;
+import me.itzg.slowstart.SlowStartEventQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SlowStartEventQueue#publish(ByteBuffer)} while the queue is spilling to its slow-start buffer
+ * and once it has reached pass-through.
+ * <p>
+ * Each iteration publishes a fixed batch of {@value #BATCH_SIZE} events to a fresh queue, so the slow-start buffer
+ * of an iteration is bounded at about 64 MiB with the largest payload, however fast publishing is. The score is the
+ * time of a whole batch.
+ * <p>
+ * By default only the phase and payload size are varied. The tuning of the slow-start buffer can be compared by
+ * listing values on the command line, for example
+ * {@code -p groupCommitBatchSize=0,65536 -p segmentSize=0,8388608 -p codec=NONE,LZ,DEFLATE
+ * -p durability=NONE,PERIODIC,SYNC}, ideally for one payload size at a time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = PublishBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = PublishBenchmark.BATCH_SIZE)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishBenchmark {
+
+    static final int BATCH_SIZE = 16384;
+
+    public enum Phase {
+        SLOW_START, STEADY
+    }
+
+    @Param({"SLOW_START", "STEADY"})
+    public Phase phase;
+
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+
+    /**
+     * Zero disables group-commit of the slow-start buffer.
+     */
+    @Param({"0"})
+    public int groupCommitBatchSize;
+
+    /**
+     * Zero selects the single-file slow-start buffer.
+     */
+    @Param({"0"})
+    public int segmentSize;
+
+    /**
+     * The codec for compressing the slow-start buffer, or NONE.
+     */
+    @Param({"NONE"})
+    public String codec;
+
+    /**
+     * When spilled events are forced to disk, with a periodic interval of 10ms.
+     */
+    @Param({"NONE"})
+    public DurabilityMode durability;
+
+    private Path storage;
+    private SlowStartEventQueue queue;
+    private ByteBuffer payload;
+
+    @Setup(Level.Iteration)
+    public void setUp(Blackhole blackhole) throws IOException {
+        storage = BenchmarkSupport.createStorage();
+        payload = BenchmarkSupport.createPayload(payloadSize);
+        queue = new SlowStartEventQueue("publish", (key, bb) -> blackhole.consume(bb), storage,
+                                        BenchmarkSupport.DIRECT,
+                                        new SlowStartConfig()
+                                                .setGroupCommit(groupCommitBatchSize, 5, TimeUnit.MILLISECONDS)
+                                                .setSegmentSize(segmentSize)
+                                                .setCompression(BenchmarkSupport.codec(codec))
+                                                .setDurability(durability, 10, TimeUnit.MILLISECONDS));
+        if (phase == Phase.STEADY) {
+            queue.ready();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        // the backlog is discarded rather than drained, which would take longer the faster publishing was
+        try {
+            queue.close();
+        } finally {
+            queue = null;
+            BenchmarkSupport.deleteStorage(storage);
+        }
+    }
+
+    @Benchmark
+    public void publish() throws IOException {
+        payload.rewind();
+        queue.publish(payload);
+    }
+}
@@ -0,0 +1,105 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.SlowStartConfig;
+import me.itzg.slowstart.SlowStartEventRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the time for many keys that become ready at once to have their slow-start buffers drained, with the
+ * drains running on a fixed pool of platform threads or on a virtual thread each. The virtual thread mode needs
+ * Java 21 or later to run the benchmark jar.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadyStormBenchmark {
+
+    public enum Drains {
+        FIXED_8, FIXED_64, VIRTUAL
+    }
+
+    @Param({"1000", "10000"})
+    public int keyCount;
+
+    @Param({"16"})
+    public int eventsPerKey;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    @Param({"FIXED_8", "FIXED_64", "VIRTUAL"})
+    public Drains drains;
+
+    private Path storage;
+    private ExecutorService pool;
+    private CompletableFuture<Void> futureReady;
+    private final LongAdder delivered = new LongAdder();
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+        storage = BenchmarkSupport.createStorage();
+        final SlowStartConfig config = new SlowStartConfig();
+        if (drains == Drains.VIRTUAL) {
+            config.setVirtualThreads(true);
+        }
+        else {
+            pool = Executors.newFixedThreadPool(drains == Drains.FIXED_8 ? 8 : 64);
+        }
+        futureReady = new CompletableFuture<>();
+        delivered.reset();
+        final SlowStartEventRouter router = new SlowStartEventRouter(key -> futureReady,
+                                                                     (key, bb) -> delivered.increment(),
+                                                                     storage, pool != null ? pool : Runnable::run,
+                                                                     config);
+        final ByteBuffer payload = BenchmarkSupport.createPayload(payloadSize);
+        for (int i = 0; i < eventsPerKey; i++) {
+            for (int k = 0; k < keyCount; k++) {
+                payload.rewind();
+                router.route(k, payload);
+            }
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        BenchmarkSupport.deleteStorage(storage);
+    }
+
+    @Benchmark
+    public long readyStorm() throws InterruptedException {
+        final long expected = (long) keyCount * eventsPerKey;
+        futureReady.complete(null);
+        while (delivered.sum() < expected) {
+            Thread.sleep(0, 100_000);
+        }
+        return delivered.sum();
+    }
+}
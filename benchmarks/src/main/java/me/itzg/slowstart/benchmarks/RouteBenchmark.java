@@ -0,0 +1,86 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.SlowStartEventRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SlowStartEventRouter#route(String, ByteBuffer)} from several threads spread across a
+ * configurable number of keys. Every key is immediately ready, so this isolates the cost of route lookup
+ * and pass-through delivery.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RouteBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RouterState {
+        @Param({"16", "1024", "65536"})
+        public int keyCount;
+
+        Path storage;
+        SlowStartEventRouter router;
+        String[] keys;
+
+        @Setup(Level.Trial)
+        public void setUp(Blackhole blackhole) {
+            storage = BenchmarkSupport.createStorage();
+            router = new SlowStartEventRouter(key -> CompletableFuture.completedFuture(null),
+                                              (key, bb) -> blackhole.consume(bb),
+                                              storage, BenchmarkSupport.DIRECT);
+            keys = new String[keyCount];
+            for (int i = 0; i < keyCount; i++) {
+                keys[i] = "key-" + i;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkSupport.deleteStorage(storage);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PublisherState {
+        ByteBuffer payload;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            payload = BenchmarkSupport.createPayload(64);
+            next = ThreadLocalRandom.current().nextInt();
+        }
+    }
+
+    @Benchmark
+    public void route(RouterState routerState, PublisherState publisherState) throws IOException {
+        final String[] keys = routerState.keys;
+        final ByteBuffer payload = publisherState.payload;
+        payload.rewind();
+        routerState.router.route(keys[(publisherState.next++ & Integer.MAX_VALUE) % keys.length], payload);
+    }
+}
@@ -0,0 +1,96 @@
+package me.itzg.slowstart.benchmarks;
+
+import me.itzg.slowstart.SlowStartEventQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time from {@link SlowStartEventQueue#ready()} until an event published by a continuously
+ * publishing thread is delivered by pass-through rather than via the slow-start buffer. The publisher keeps
+ * appending to the backlog while the drain runs on a separate thread, so this includes the time spent chasing
+ * the tail of the slow-start buffer.
+ * <p>
+ * The publisher pauses for {@link #publishGap} JMH CPU tokens between events. With no gap the publisher can
+ * outpace the drain indefinitely on a busy host, in which case the switch-over never happens.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Thread)
+public class SwitchOverBenchmark {
+
+    @Param({"0", "1000", "100000"})
+    public int backlog;
+
+    @Param({"64"})
+    public int payloadSize;
+
+    @Param({"1000"})
+    public long publishGap;
+
+    private Path storage;
+    private ExecutorService drainExecutor;
+    private SlowStartEventQueue queue;
+    private ByteBuffer payload;
+    private volatile Thread passThroughThread;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        storage = BenchmarkSupport.createStorage();
+        drainExecutor = Executors.newSingleThreadExecutor();
+        payload = BenchmarkSupport.createPayload(payloadSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+        passThroughThread = null;
+        queue = new SlowStartEventQueue("switch-over", (key, bb) -> passThroughThread = Thread.currentThread(),
+                                        storage, drainExecutor);
+        // always spill at least one event so the queue leaves its initial state through the slow-start path
+        for (int i = 0; i <= backlog; i++) {
+            payload.rewind();
+            queue.publish(payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        drainExecutor.shutdown();
+        BenchmarkSupport.deleteStorage(storage);
+    }
+
+    @Benchmark
+    public long switchOver() throws IOException {
+        final Thread self = Thread.currentThread();
+        long published = 0;
+        queue.ready();
+        while (passThroughThread != self) {
+            payload.rewind();
+            queue.publish(payload);
+            ++published;
+            Blackhole.consumeCPU(publishGap);
+        }
+        return published;
+    }
+}
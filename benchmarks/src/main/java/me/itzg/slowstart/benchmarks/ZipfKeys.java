@@ -0,0 +1,41 @@
+package me.itzg.slowstart.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks key indices with a Zipfian skew, where the key of rank <code>i</code> is picked in proportion to
+ * <code>1 / (i + 1)^skew</code>. Rank zero is the hottest key. A skew of zero picks uniformly.
+ */
+final class ZipfKeys {
+    private final int count;
+    /**
+     * The cumulative probability of each rank, or null when uniform.
+     */
+    private final double[] cdf;
+
+    ZipfKeys(int count, double skew) {
+        this.count = count;
+        if (skew == 0) {
+            cdf = null;
+            return;
+        }
+        cdf = new double[count];
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < count; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    int next(Random random) {
+        if (cdf == null) {
+            return random.nextInt(count);
+        }
+        final int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, count - 1);
+    }
+}
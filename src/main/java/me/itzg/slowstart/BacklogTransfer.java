@@ -0,0 +1,185 @@
+package me.itzg.slowstart;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static me.itzg.slowstart.SlowStartEventQueue.RECORD_FORMAT;
+
+/**
+ * The stream format of a backlog that one {@link SlowStartEventRouter} hands over to another. It starts with a
+ * header that names the key and describes the frames that follow:
+ * <pre>
+ * [int magic][int version][byte kind of key][int key length][key][int record format][long length of frames]
+ * </pre>
+ * The frames are those of a slow-start buffer, as written by {@link SlowStartEventQueue}, so the importing router
+ * can validate them with a {@link FrameScanner} and append them to a slow-start buffer of any kind. A string key
+ * is encoded as UTF-8, a <code>long</code> key as its eight bytes and a <code>byte[]</code> key as is. The record
+ * format is the newest that the frames may hold.
+ * <p>
+ * Since the source of an import may not be trusted, keys longer than {@link #MAX_KEY_LENGTH} and frames longer
+ * than {@link #MAX_FRAME_LENGTH} are rejected rather than allocated for.
+ *
+ * @author Geoff Bourne
+ */
+class BacklogTransfer {
+    static final int MAGIC = 0x53534231;
+    static final int VERSION = 1;
+
+    static final byte KIND_STRING = 0;
+    static final byte KIND_LONG = 1;
+    static final byte KIND_BYTES = 2;
+
+    /**
+     * The size of the buffers used to copy a backlog that isn't transferred straight from a file.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The longest encoded key that can be imported.
+     */
+    static final int MAX_KEY_LENGTH = 64 * 1024;
+
+    /**
+     * The longest frame that can be imported, which bounds the events that can be handed over.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final int PREAMBLE_SIZE = Integer.BYTES * 2 + 1 + Integer.BYTES;
+    private static final int TRAILER_SIZE = Integer.BYTES + Long.BYTES;
+
+    static class Header {
+        final byte kind;
+        final byte[] key;
+        final long length;
+
+        Header(byte kind, byte[] key, long length) {
+            this.kind = kind;
+            this.key = key;
+            this.length = length;
+        }
+    }
+
+    static void writeHeader(WritableByteChannel target, byte kind, byte[] key, long length) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(PREAMBLE_SIZE + key.length + TRAILER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.put(kind);
+        header.putInt(key.length);
+        header.put(key);
+        header.putInt(RECORD_FORMAT);
+        header.putLong(length);
+        header.flip();
+        writeFully(target, header);
+    }
+
+    /**
+     * Reads the header of a backlog, leaving the source positioned at its frames.
+     *
+     * @throws IOException if the source doesn't start with the header of a backlog that can be imported, such as
+     *                     one holding a record format newer than this version can read
+     */
+    static Header readHeader(ReadableByteChannel source) throws IOException {
+        final ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+        readFully(source, preamble);
+        preamble.flip();
+        if (preamble.getInt() != MAGIC) {
+            throw new IOException("The source doesn't hold an exported backlog");
+        }
+        final int version = preamble.getInt();
+        if (version != VERSION) {
+            throw new IOException("The backlog has an unsupported version " + version);
+        }
+        final byte kind = preamble.get();
+        final int keyLen = preamble.getInt();
+        if (kind < KIND_STRING || kind > KIND_BYTES || keyLen < 0 || keyLen > MAX_KEY_LENGTH ||
+                (kind == KIND_LONG && keyLen != Long.BYTES)) {
+            throw new IOException(String.format("The backlog has an invalid key of kind=%d, length=%d",
+                                                kind, keyLen));
+        }
+
+        final ByteBuffer rest = ByteBuffer.allocate(keyLen + TRAILER_SIZE);
+        readFully(source, rest);
+        rest.flip();
+        final byte[] key = new byte[keyLen];
+        rest.get(key);
+        final int recordFormat = rest.getInt();
+        final long length = rest.getLong();
+        if (recordFormat > RECORD_FORMAT) {
+            throw new IOException(String.format("The backlog holds record format %d, which is newer than %d",
+                                                recordFormat, RECORD_FORMAT));
+        }
+        if (length < 0) {
+            throw new IOException("The backlog has an invalid length " + length);
+        }
+        return new Header(kind, key, length);
+    }
+
+    /**
+     * Copies the frames of a backlog into a slow-start buffer, validating each. Only whole frames are written, so
+     * that a segmented store still starts each segment with a whole frame.
+     *
+     * @param length the length of the frames given by the backlog's header
+     * @throws IOException if the frames end early or one is invalid or longer than {@link #MAX_FRAME_LENGTH}, in
+     *                     which case some may have been written
+     */
+    static void importFrames(ReadableByteChannel source, long length, SlowStore store) throws IOException {
+        final FrameScanner scanner = new FrameScanner();
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        long remaining = length;
+        while (remaining > 0) {
+            final int limit = buf.limit();
+            buf.limit(buf.position() + (int) Math.min(buf.remaining(), remaining));
+            final int count = source.read(buf);
+            buf.limit(limit);
+            if (count < 0) {
+                throw new EOFException("The backlog ended " + remaining + " bytes short");
+            }
+            remaining -= count;
+
+            buf.flip();
+            final int valid = scanner.scan(buf);
+            if (scanner.getStop() != FrameScanner.STOP_END) {
+                throw new IOException("The backlog holds an invalid frame");
+            }
+            if (valid > 0) {
+                final ByteBuffer frames = buf.duplicate();
+                frames.limit(frames.position() + valid);
+                store.write(frames);
+                buf.position(buf.position() + valid);
+            }
+            buf.compact();
+            final int pending = scanner.getPendingLength();
+            if (pending > buf.capacity()) {
+                if (pending > MAX_FRAME_LENGTH || pending > buf.position() + remaining) {
+                    throw new IOException(String.format(
+                            "The backlog holds a frame of %d bytes, which is too long or ends past the backlog",
+                            pending));
+                }
+                final ByteBuffer larger = ByteBuffer.allocate(pending);
+                buf.flip();
+                larger.put(buf);
+                buf = larger;
+            }
+        }
+        if (buf.position() > 0) {
+            throw new EOFException("The backlog ends part way through a frame");
+        }
+    }
+
+    static void writeFully(WritableByteChannel target, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            target.write(src);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel source, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (source.read(dst) < 0) {
+                throw new EOFException("The backlog's header ended early");
+            }
+        }
+    }
+}
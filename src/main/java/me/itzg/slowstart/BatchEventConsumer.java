@@ -0,0 +1,58 @@
+package me.itzg.slowstart;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@link EventConsumer} that can accept several events at once. When a {@link SlowStartEventQueue} drains its
+ * slow-start buffer into a batch consumer, it hands over the drained events in batches bounded by
+ * {@link SlowStartConfig#setDrainBatchSize(int, int)} rather than one at a time. Events that are passed through
+ * individually are delivered as a batch of one.
+ *
+ * @author Geoff Bourne
+ */
+public interface BatchEventConsumer extends EventConsumer {
+
+    /**
+     * Delivers consecutive events of one key, in their original order. The list itself is reused by the caller
+     * and must not be retained after this call returns. The payloads follow the same retention rules as
+     * {@link EventConsumer#consume(String, ByteBuffer)}.
+     *
+     * @param key the key of the queue delivering the events
+     * @param payloads the events, each positioned at its start
+     */
+    void consumeBatch(String key, List<ByteBuffer> payloads);
+
+    /**
+     * Delivers consecutive events of a <code>long</code> key, converted to its decimal string by default.
+     */
+    default void consumeBatch(long key, List<ByteBuffer> payloads) {
+        consumeBatch(Long.toString(key), payloads);
+    }
+
+    /**
+     * Delivers consecutive events of a <code>byte[]</code> key, decoded as ISO-8859-1 by default.
+     *
+     * @param key the key as retained by the router, which must not be modified
+     */
+    default void consumeBatch(byte[] key, List<ByteBuffer> payloads) {
+        consumeBatch(new String(key, StandardCharsets.ISO_8859_1), payloads);
+    }
+
+    @Override
+    default void consume(String key, ByteBuffer payload) {
+        consumeBatch(key, Collections.singletonList(payload));
+    }
+
+    @Override
+    default void consume(long key, ByteBuffer payload) {
+        consumeBatch(key, Collections.singletonList(payload));
+    }
+
+    @Override
+    default void consume(byte[] key, ByteBuffer payload) {
+        consumeBatch(key, Collections.singletonList(payload));
+    }
+}
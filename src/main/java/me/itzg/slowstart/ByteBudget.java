@@ -0,0 +1,99 @@
+package me.itzg.slowstart;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on bytes that can be shared by several queues, such as all of those created by one
+ * {@link SlowStartEventRouter}.
+ *
+ * @author Geoff Bourne
+ */
+class ByteBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    // only used by callers that block for bytes to be released
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition released = waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    ByteBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the bytes were acquired, otherwise nothing was acquired
+     */
+    boolean tryAcquire(long bytes) {
+        while (true) {
+            final long current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits up to the given time for enough bytes to be released.
+     *
+     * @return true if the bytes were acquired, otherwise nothing was acquired
+     */
+    boolean acquire(long bytes, long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryAcquire(bytes)) {
+            return true;
+        }
+        long remainingNS = unit.toNanos(timeout);
+        waitLock.lockInterruptibly();
+        try {
+            // registered ahead of trying again, so that a release in between is sure to signal
+            waiters.incrementAndGet();
+            try {
+                while (!tryAcquire(bytes)) {
+                    if (remainingNS <= 0) {
+                        return false;
+                    }
+                    remainingNS = released.awaitNanos(remainingNS);
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Acquires the bytes even if that exceeds the limit, such as for what was already held before a restart.
+     */
+    void forceAcquire(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+        if (waiters.get() > 0) {
+            waitLock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    long getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,70 @@
+package me.itzg.slowstart;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Counts, per sub-key, the events of a queue that have been spilled and not yet drained. Since the drain reads
+ * the slow-start buffer in order, an event whose sub-key is still pending once it's read has been superseded by a
+ * later event, which is what lets the drain deliver only the last value of each sub-key.
+ * <p>
+ * Events are counted before they are written, so concurrent publishers may write events of the same sub-key in
+ * any order. Events that were never counted, such as those recovered from a previous run, at worst use up the
+ * count of a later event, which is then delivered rather than compacted. The last event of a sub-key is always
+ * delivered.
+ *
+ * @author Geoff Bourne
+ */
+class CompactionIndex {
+    private static final BiFunction<Object, Integer, Integer> DECREMENT = (subKey, count) ->
+            count > 1 ? count - 1 : null;
+
+    private final SubKeyExtractor extractor;
+    private final ConcurrentHashMap<Object, Integer> pending = new ConcurrentHashMap<>();
+
+    CompactionIndex(SubKeyExtractor extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * Counts an event that is about to be written to the slow-start buffer.
+     *
+     * @return the event's sub-key, to be passed to {@link #untrack(Object)} if the event isn't written after all,
+     * or null if it has none
+     */
+    Object track(ByteBuffer payload) {
+        final Object subKey = subKeyOf(payload);
+        if (subKey != null) {
+            pending.merge(subKey, 1, Integer::sum);
+        }
+        return subKey;
+    }
+
+    void untrack(Object subKey) {
+        if (subKey != null) {
+            pending.computeIfPresent(subKey, DECREMENT);
+        }
+    }
+
+    /**
+     * Accounts for an event read from the slow-start buffer, whether or not it will be delivered.
+     *
+     * @return true if a later event of the same sub-key is pending, so this one needn't be delivered
+     */
+    boolean drained(ByteBuffer payload) {
+        final Object subKey = subKeyOf(payload);
+        return subKey != null && pending.computeIfPresent(subKey, DECREMENT) != null;
+    }
+
+    private Object subKeyOf(ByteBuffer payload) {
+        final int position = payload.position();
+        final int limit = payload.limit();
+        try {
+            return extractor.subKey(payload);
+        } finally {
+            payload.limit(limit);
+            payload.position(position);
+        }
+    }
+}
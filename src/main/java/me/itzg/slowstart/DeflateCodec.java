@@ -0,0 +1,71 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate, without the zlib wrapper since blocks carry their own checksum. Deflaters and inflaters hold
+ * native memory, so one of each is kept per thread rather than created per block.
+ *
+ * @author Geoff Bourne
+ */
+class DeflateCodec implements SpillCodec {
+    static final int ID = 1;
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public int maxCompressedLength(int srcLen) {
+        // stored blocks add five bytes per 16KB, plus some slack for the final block
+        return srcLen + (srcLen >>> 12) + 64;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(src, srcOff, srcLen);
+        deflater.finish();
+        final int dstLen = maxCompressedLength(srcLen);
+        int count = 0;
+        while (!deflater.finished()) {
+            if (count >= dstLen) {
+                throw new IllegalStateException("Deflated beyond the maximum compressed length");
+            }
+            count += deflater.deflate(dst, dstOff + count, dstLen - count);
+        }
+        return count;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws IOException {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src, srcOff, srcLen);
+        int count = 0;
+        try {
+            while (count < dstLen) {
+                final int inflated = inflater.inflate(dst, dstOff + count, dstLen - count);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                count += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid deflated block", e);
+        }
+        if (count != dstLen) {
+            throw new IOException(String.format("Inflated %d bytes rather than %d", count, dstLen));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package me.itzg.slowstart;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Accumulates drained events for a {@link BatchEventConsumer}. When drain buffer reuse is enabled, the events of
+ * a batch are read into one shared area and handed out through reused views of it, so batching doesn't allocate
+ * per event either. When dispatched, each batch is handed over as a copy of the list to be consumed later.
+ *
+ * @author Geoff Bourne
+ */
+class DrainBatch {
+    private final String key;
+    private final BatchEventConsumer consumer;
+    private final int maxEvents;
+    private final int maxBytes;
+    private final boolean reuse;
+    /**
+     * Null unless batches are dispatched to the consumer.
+     */
+    private final Executor dispatch;
+
+    private final List<ByteBuffer> payloads;
+    private final List<ByteBuffer> readOnlyPayloads;
+    private ByteBuffer area;
+    private ByteBuffer[] views;
+    private int bytes;
+
+    DrainBatch(String key, BatchEventConsumer consumer, int maxEvents, int maxBytes, boolean reuse,
+               Executor dispatch) {
+        this.key = key;
+        this.consumer = consumer;
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.reuse = reuse;
+        this.dispatch = dispatch;
+        payloads = new ArrayList<>(maxEvents);
+        readOnlyPayloads = Collections.unmodifiableList(payloads);
+        if (reuse) {
+            area = ByteBuffer.allocateDirect(maxBytes);
+            views = new ByteBuffer[maxEvents];
+        }
+    }
+
+    /**
+     * Provides the buffer to read the next event into. This may deliver the pending batch to make room.
+     *
+     * @param len the length of the event
+     * @return a buffer positioned at the start of the event with exactly <code>len</code> remaining
+     */
+    ByteBuffer allocate(int len) {
+        if (!payloads.isEmpty() && (payloads.size() >= maxEvents || bytes + len > maxBytes)) {
+            deliver();
+        }
+        if (!reuse) {
+            return ByteBuffer.allocate(len);
+        }
+
+        if (len > area.capacity()) {
+            // only an empty batch gets here, so nothing refers to the old area
+            area = ByteBuffer.allocateDirect(len);
+            views = new ByteBuffer[maxEvents];
+        }
+        final int slot = payloads.size();
+        ByteBuffer view = views[slot];
+        if (view == null) {
+            view = views[slot] = area.duplicate();
+        }
+        view.clear();
+        view.position(bytes);
+        view.limit(bytes + len);
+        return view;
+    }
+
+    /**
+     * Adds an event that was read into the buffer most recently provided by {@link #allocate(int)}.
+     */
+    void add(ByteBuffer payload) {
+        bytes += payload.remaining();
+        payloads.add(payload);
+    }
+
+    void deliver() {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        try {
+            if (dispatch != null) {
+                final List<ByteBuffer> batch = Collections.unmodifiableList(new ArrayList<>(payloads));
+                dispatch.execute(() -> consumer.consumeBatch(key, batch));
+            }
+            else {
+                consumer.consumeBatch(key, readOnlyPayloads);
+            }
+        } finally {
+            payloads.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package me.itzg.slowstart;
+
+/**
+ * Selects which waiting drain runs next when drains are limited by
+ * {@link SlowStartConfig#setDrainConcurrency(int, DrainPriority)}.
+ *
+ * @author Geoff Bourne
+ */
+public enum DrainPriority {
+    /**
+     * Drains in the order keys became ready. A drain that yields goes to the back of the line, so large backlogs
+     * are drained round-robin.
+     */
+    READINESS,
+    /**
+     * Drains the key with the fewest bytes left in its slow-start buffer first, which gets the most keys to
+     * pass-through soonest.
+     */
+    SMALLEST_BACKLOG,
+    /**
+     * Drains the key that started spilling earliest first, which bounds how stale any one key's events get.
+     */
+    OLDEST_FIRST
+}
@@ -0,0 +1,212 @@
+package me.itzg.slowstart;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates the drains of the queues of one {@link SlowStartEventRouter}, so that many keys becoming ready at
+ * once don't flood the executor with drains competing for the disk and the consumer. At most a configured number
+ * of drains run at a time, picked by {@link DrainPriority}. Each drain runs in steps of a bounded number of bytes
+ * and goes back to waiting after each step, so a large backlog can't starve the rest. The bytes read by all
+ * drains can also be limited to a rate, in which case the next step is delayed until the bytes already read are
+ * paid for.
+ *
+ * @author Geoff Bourne
+ */
+class DrainScheduler {
+    private static final Logger log = Logger.getLogger(DrainScheduler.class.getName());
+
+    /**
+     * A drain that can be run in steps.
+     */
+    interface Drain {
+        /**
+         * Drains until about <code>maxBytes</code> of payload have been read, or until it needs to wait for more
+         * events to be written.
+         *
+         * @return true once the drain is complete
+         */
+        boolean step(long maxBytes);
+
+        /**
+         * @return the payload bytes read by all steps so far
+         */
+        long getDrainedBytes();
+
+        long getBacklogBytes();
+
+        /**
+         * @return when the queue started spilling, in terms of {@link System#nanoTime()}
+         */
+        long getSlowStartNS();
+    }
+
+    private static class Entry {
+        final Drain drain;
+        final Executor executor;
+        final long rank;
+        final long sequence;
+
+        Entry(Drain drain, Executor executor, long rank, long sequence) {
+            this.drain = drain;
+            this.executor = executor;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+    }
+
+    private final int maxConcurrent;
+    private final DrainPriority priority;
+    private final long stepBytes;
+    private final long bytesPerSecond;
+    private final ScheduledExecutorService scheduler;
+    private final long originNS = System.nanoTime();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Entry> waiting = new PriorityQueue<>(
+            (a, b) -> a.rank != b.rank ? Long.compare(a.rank, b.rank) : Long.compare(a.sequence, b.sequence));
+    private long nextSequence;
+    private int running;
+    private boolean dispatchScheduled;
+    /**
+     * When the bytes read so far are paid for at the configured rate.
+     */
+    private long paidUntilNS = System.nanoTime();
+
+    /**
+     * @param maxConcurrent  the most drains that run at once
+     * @param stepBytes      the payload bytes a drain reads before yielding
+     * @param bytesPerSecond the overall read rate of drains, or zero if unlimited
+     * @param scheduler      used to delay steps while over the read rate
+     */
+    DrainScheduler(int maxConcurrent, DrainPriority priority, long stepBytes, long bytesPerSecond,
+                   ScheduledExecutorService scheduler) {
+        this.maxConcurrent = maxConcurrent;
+        this.priority = priority;
+        this.stepBytes = stepBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param executor runs the steps of the drain
+     */
+    void submit(Drain drain, Executor executor) {
+        lock.lock();
+        try {
+            enqueue(drain, executor);
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+    }
+
+    private void enqueue(Drain drain, Executor executor) {
+        final long rank;
+        switch (priority) {
+            case SMALLEST_BACKLOG:
+                rank = drain.getBacklogBytes();
+                break;
+            case OLDEST_FIRST:
+                // relative to a fixed origin so that the comparison is safe from nanoTime wrapping
+                rank = drain.getSlowStartNS() - originNS;
+                break;
+            default:
+                rank = 0;
+        }
+        waiting.add(new Entry(drain, executor, rank, nextSequence++));
+    }
+
+    int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        lock.lock();
+        try {
+            while (running < maxConcurrent && !waiting.isEmpty()) {
+                if (bytesPerSecond > 0) {
+                    final long delayNS = paidUntilNS - System.nanoTime();
+                    if (delayNS > 0) {
+                        if (!dispatchScheduled) {
+                            dispatchScheduled = true;
+                            scheduler.schedule(this::delayedDispatch, delayNS, TimeUnit.NANOSECONDS);
+                        }
+                        return;
+                    }
+                }
+                final Entry entry = waiting.poll();
+                running++;
+                try {
+                    entry.executor.execute(() -> runStep(entry));
+                } catch (RuntimeException e) {
+                    running--;
+                    waiting.add(entry);
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void delayedDispatch() {
+        lock.lock();
+        try {
+            dispatchScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+    }
+
+    private void runStep(Entry entry) {
+        final Drain drain = entry.drain;
+        final long before = drain.getDrainedBytes();
+        boolean done = true;
+        try {
+            done = drain.step(stepBytes);
+        } catch (RuntimeException e) {
+            log.log(Level.SEVERE, "Drain step failed", e);
+        } finally {
+            lock.lock();
+            try {
+                running--;
+                if (bytesPerSecond > 0) {
+                    final long read = drain.getDrainedBytes() - before;
+                    final long now = System.nanoTime();
+                    if (paidUntilNS - now < 0) {
+                        // unused rate doesn't accumulate into a burst
+                        paidUntilNS = now;
+                    }
+                    paidUntilNS += (long) (read * 1e9 / bytesPerSecond);
+                }
+                if (!done) {
+                    enqueue(drain, entry.executor);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,26 @@
+package me.itzg.slowstart;
+
+/**
+ * Selects when events spilled to the slow-start buffer are forced to disk, as configured by
+ * {@link SlowStartConfig#setDurability(DurabilityMode, long, java.util.concurrent.TimeUnit)}. Until forced, spilled
+ * events survive the process crashing, but not the machine losing power.
+ *
+ * @author Geoff Bourne
+ */
+public enum DurabilityMode {
+    /**
+     * Spilled events are never forced and are left for the operating system to write back.
+     */
+    NONE,
+    /**
+     * The slow-start buffers written to since the last interval are forced on the fsync scheduler, so at most
+     * about one interval of spilled events can be lost.
+     */
+    PERIODIC,
+    /**
+     * A publish that spills returns only once its event has been forced. Concurrent publishers of a queue share
+     * each force: whoever forces next covers every event written before it started. With group-commit, the
+     * publisher flushes the staging buffer rather than waiting for the flush interval.
+     */
+    SYNC
+}
@@ -1,8 +1,36 @@
 package me.itzg.slowstart;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public interface EventConsumer {
 
+    /**
+     * Delivers one event. The consumer may retain the given payload unless
+     * {@link SlowStartConfig#setReuseDrainBuffer(boolean)} is enabled, in which case drained payloads are only
+     * valid until this call returns.
+     *
+     * @param key the key of the queue delivering the event
+     * @param payload the content of the event, positioned at its start
+     */
     void consume(String key, ByteBuffer payload);
+
+    /**
+     * Delivers one event of a key routed by {@link SlowStartEventRouter#route(long, ByteBuffer)}. By default, the
+     * key is converted to its decimal string and delivered to {@link #consume(String, ByteBuffer)}.
+     */
+    default void consume(long key, ByteBuffer payload) {
+        consume(Long.toString(key), payload);
+    }
+
+    /**
+     * Delivers one event of a key routed by {@link SlowStartEventRouter#route(byte[], ByteBuffer)}. By default, the
+     * key is decoded as ISO-8859-1, which maps each byte to one char, and delivered to
+     * {@link #consume(String, ByteBuffer)}.
+     *
+     * @param key the key as retained by the router, which must not be modified
+     */
+    default void consume(byte[] key, ByteBuffer payload) {
+        consume(new String(key, StandardCharsets.ISO_8859_1), payload);
+    }
 }
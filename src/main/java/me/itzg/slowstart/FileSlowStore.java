@@ -0,0 +1,164 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the slow-start buffer in one growing file that is deleted when the drain completes.
+ *
+ * @author Geoff Bourne
+ */
+class FileSlowStore implements SlowStore {
+    private final Path path;
+    private final FileChannel out;
+    private volatile FileChannel in;
+    private final AtomicLong writtenBytes;
+    /**
+     * Serializes writers ahead of the channel, which otherwise has them contend for its monitor and would pin
+     * virtual threads to their carriers.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long readBytes;
+
+    FileSlowStore(Path path) throws IOException {
+        this.path = path;
+        out = FileChannel.open(path,
+                               StandardOpenOption.CREATE,
+                               // append to allow for rudimentary resuming of the slow-store
+                               StandardOpenOption.APPEND,
+                               StandardOpenOption.WRITE);
+        writtenBytes = new AtomicLong(out.size());
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        final ByteBuffer last = srcs[srcs.length - 1];
+        long written = 0;
+        writeLock.lock();
+        try {
+            // short writes aren't expected for regular files, but are completed just in case
+            do {
+                written += out.write(srcs);
+            } while (last.hasRemaining());
+        } finally {
+            writeLock.unlock();
+        }
+        writtenBytes.addAndGet(written);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        long written = 0;
+        writeLock.lock();
+        try {
+            while (src.hasRemaining()) {
+                written += out.write(src);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        writtenBytes.addAndGet(written);
+    }
+
+    @Override
+    public void force() throws IOException {
+        try {
+            // the file's size is included, since it's needed to read back what was appended
+            out.force(false);
+        } catch (ClosedChannelException e) {
+            // closed for writing once drained
+        }
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+
+    @Override
+    public void closeForWriting() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        final int count = openForReading().read(dst);
+        if (count <= 0) {
+            return 0;
+        }
+        readBytes += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final FileChannel channel = openForReading();
+        final long count = Math.min(n, Math.max(writtenBytes.get() - readBytes, 0));
+        if (count > 0) {
+            channel.position(channel.position() + count);
+            readBytes += count;
+        }
+        return count;
+    }
+
+    /**
+     * Transfers straight from the file, which the OS can do without copying through user space when the target is
+     * a socket or another file. If a transfer makes no progress, the rest is copied through a buffer instead.
+     */
+    @Override
+    public long transferTo(WritableByteChannel target) throws IOException {
+        final FileChannel channel = openForReading();
+        final long start = readBytes;
+        final long end = writtenBytes.get();
+        long position = channel.position();
+        while (position < end) {
+            final long count = channel.transferTo(position, end - position, target);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+        channel.position(position);
+        readBytes = position;
+        if (position < end) {
+            SlowStore.super.transferTo(target);
+        }
+        return readBytes - start;
+    }
+
+    private FileChannel openForReading() throws IOException {
+        FileChannel channel = in;
+        if (channel == null) {
+            channel = in = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void release() throws IOException {
+        out.close();
+        final FileChannel channel = in;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+
+import static me.itzg.slowstart.SlowStartEventQueue.CODEC_MARKER;
+import static me.itzg.slowstart.SlowStartEventQueue.HEADER_SIZE;
+import static me.itzg.slowstart.SlowStartEventQueue.RECORD_FORMAT;
+import static me.itzg.slowstart.SlowStartEventQueue.RECORD_HEADER_SIZE;
+import static me.itzg.slowstart.SlowStartEventQueue.recordFormat;
+
+/**
+ * Reads the events of a slow-start buffer one at a time, transparently unpacking compressed blocks. Besides
+ * events, a slow-start buffer may hold a codec marker, which names the codec of the blocks that follow it, and
+ * compressed blocks, which are distinguished by a negative length and hold a batch of framed events. Events of
+ * the current format and of the unversioned format that preceded it may be mixed, such as in a recovered buffer.
+ * <p>
+ * Headers are read as if they were of the current format, which takes one read per header. When a frame turns out
+ * to have a shorter header, the bytes read past it are carried over as the start of what follows.
+ * <p>
+ * This is used by whoever holds the queue's read lock. It may carry a partially read header, the current codec
+ * and the rest of an unpacked block from one reader to the next.
+ *
+ * @author Geoff Bourne
+ */
+class FrameReader {
+    private static final Logger log = Logger.getLogger(FrameReader.class.getName());
+
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    /**
+     * What was read past the end of the last header, which is never a whole frame.
+     */
+    private final ByteBuffer carried = ByteBuffer.allocate(RECORD_HEADER_SIZE - HEADER_SIZE);
+    private final Adler32 adler32 = new Adler32();
+    private final SpillCodec configuredCodec;
+    private final Runnable checksumFailed;
+
+    private SpillCodec codec;
+    private byte[] compressed = new byte[0];
+    private ByteBuffer compressedView = ByteBuffer.wrap(compressed);
+    private ByteBuffer decoded = ByteBuffer.allocate(0);
+
+    private int length;
+    private long checksum;
+    private int headerSize;
+    private long publishedMillis;
+
+    /**
+     * @param configuredCodec the codec of the config, if any, which allows custom codecs to be resolved
+     * @param checksumFailed   called for each compressed block that fails its checksum
+     */
+    FrameReader(SpillCodec configuredCodec, Runnable checksumFailed) {
+        this.configuredCodec = configuredCodec;
+        this.checksumFailed = checksumFailed;
+        carried.flip();
+    }
+
+    /**
+     * Advances to the next event, after which its length, checksum and publish time are available.
+     *
+     * @return false if the header of the next event has not been completely written yet
+     */
+    boolean next(SlowStore store) throws IOException {
+        while (true) {
+            if (decoded.hasRemaining()) {
+                final int len = decoded.getInt();
+                final long word = decoded.getLong();
+                setEvent(len, word, recordFormat(word) != 0 ? decoded.getLong() : 0);
+                return true;
+            }
+
+            if (carried.hasRemaining()) {
+                header.put(carried);
+            }
+            store.read(header);
+            if (header.position() < HEADER_SIZE) {
+                return false;
+            }
+            final int len = header.getInt(0);
+            final long sum = header.getLong(Integer.BYTES);
+            final boolean versioned = len > 0 && recordFormat(sum) != 0;
+            final int size = versioned ? RECORD_HEADER_SIZE : HEADER_SIZE;
+            if (header.position() < size) {
+                return false;
+            }
+            header.flip();
+            header.position(size);
+            carried.clear();
+            carried.put(header);
+            carried.flip();
+            header.clear();
+
+            if (len > 0) {
+                setEvent(len, sum, versioned ? header.getLong(HEADER_SIZE) : 0);
+                return true;
+            }
+            else if (len == CODEC_MARKER) {
+                codec = SpillCodecs.forId((int) sum, configuredCodec);
+                if (codec == null) {
+                    log.log(Level.SEVERE, "Slow-start buffer uses an unknown codec with id=" + sum);
+                }
+            }
+            else if (len == 0) {
+                throw new IllegalStateException("Read a zero length");
+            }
+            else {
+                readBlock(store, -len, sum);
+            }
+        }
+    }
+
+    private void setEvent(int len, long word, long published) {
+        final int format = recordFormat(word);
+        if (format != 0 && format != RECORD_FORMAT) {
+            throw new IllegalStateException("Read an unknown record format " + format);
+        }
+        length = len;
+        checksum = word & 0xffffffffL;
+        headerSize = format != 0 ? RECORD_HEADER_SIZE : HEADER_SIZE;
+        publishedMillis = published;
+    }
+
+    private void readBlock(SlowStore store, int blockLen, long sum) throws IOException {
+        if (compressed.length < blockLen) {
+            compressed = new byte[blockLen];
+            compressedView = ByteBuffer.wrap(compressed);
+        }
+        compressedView.clear();
+        compressedView.limit(blockLen);
+        readFully(store, compressedView);
+
+        adler32.reset();
+        adler32.update(compressed, 0, blockLen);
+        if (adler32.getValue() != sum) {
+            log.log(Level.SEVERE, String.format("Compressed block with length=%d failed checksum", blockLen));
+            checksumFailed.run();
+            return;
+        }
+        if (codec == null) {
+            log.log(Level.SEVERE, String.format("Skipping compressed block with length=%d without a known codec",
+                                                blockLen));
+            return;
+        }
+
+        final int rawLen = compressedView.getInt(0);
+        if (decoded.capacity() < rawLen) {
+            decoded = ByteBuffer.allocate(rawLen);
+        }
+        try {
+            codec.decompress(compressed, Integer.BYTES, blockLen - Integer.BYTES, decoded.array(), 0, rawLen);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, String.format("Unable to decompress block with length=%d", blockLen), e);
+            decoded.limit(0);
+            return;
+        }
+        decoded.clear();
+        decoded.limit(rawLen);
+    }
+
+    /**
+     * @return the payload length of the current event
+     */
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the payload checksum of the current event
+     */
+    long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * @return the length of the current event including its header, which is what it counts towards the spill
+     * quota
+     */
+    int getFrameLength() {
+        return headerSize + length;
+    }
+
+    /**
+     * @return the wall-clock millis at which the current event was published, or zero if its format predates
+     * publish times
+     */
+    long getPublishedMillis() {
+        return publishedMillis;
+    }
+
+    /**
+     * Reads the payload of the current event into the remaining space of <code>dst</code>, which must be exactly
+     * its length.
+     */
+    void readPayload(SlowStore store, ByteBuffer dst) throws IOException {
+        if (decoded.hasRemaining()) {
+            final int limit = decoded.limit();
+            decoded.limit(decoded.position() + dst.remaining());
+            dst.put(decoded);
+            decoded.limit(limit);
+        }
+        else {
+            readFully(store, dst);
+        }
+    }
+
+    /**
+     * Skips the payload of the current event without reading it, unless it was unpacked from a compressed block.
+     */
+    void skipPayload(SlowStore store) throws IOException {
+        if (decoded.hasRemaining()) {
+            decoded.position(decoded.position() + length);
+            return;
+        }
+        final int fromCarried = Math.min(carried.remaining(), length);
+        carried.position(carried.position() + fromCarried);
+        long remaining = length - fromCarried;
+        while (remaining > 0) {
+            remaining -= store.skip(remaining);
+        }
+    }
+
+    /**
+     * Provides what this reader holds beyond the events it has returned, as frames that precede the unread content
+     * of the slow-start buffer: a marker of the current codec, the rest of an unpacked block and whatever was read
+     * ahead of the next frame. Used when exporting a backlog.
+     */
+    ByteBuffer unread() {
+        final ByteBuffer unread = ByteBuffer.allocate((codec != null ? HEADER_SIZE : 0) + decoded.remaining() +
+                                                              header.position() + carried.remaining());
+        if (codec != null) {
+            unread.putInt(CODEC_MARKER);
+            unread.putLong(codec.getId());
+        }
+        unread.put(decoded.duplicate());
+        final ByteBuffer partial = header.duplicate();
+        partial.flip();
+        unread.put(partial);
+        unread.put(carried.duplicate());
+        unread.flip();
+        return unread;
+    }
+
+    private void readFully(SlowStore store, ByteBuffer dst) throws IOException {
+        if (carried.hasRemaining()) {
+            final int limit = carried.limit();
+            carried.limit(carried.position() + Math.min(carried.remaining(), dst.remaining()));
+            dst.put(carried);
+            carried.limit(limit);
+        }
+        while (dst.hasRemaining()) {
+            store.read(dst);
+        }
+    }
+}
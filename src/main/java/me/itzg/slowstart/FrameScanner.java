@@ -0,0 +1,114 @@
+package me.itzg.slowstart;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+
+/**
+ * Walks the framed events of a slow-start buffer, as written by {@link SlowStartEventQueue}, validating each
+ * event's length, record format and checksum. Codec markers and compressed blocks are validated as frames of their own, without
+ * decompressing the blocks. Used when resuming a slow-start buffer left by a previous run.
+ *
+ * @author Geoff Bourne
+ */
+class FrameScanner {
+    /**
+     * The scan reached the end of the buffer, possibly part way through a frame.
+     */
+    static final int STOP_END = 0;
+    /**
+     * The scan reached a zero length, which is where writing stopped in a zero-filled segment.
+     */
+    static final int STOP_ZERO = 1;
+    /**
+     * The scan reached a frame with a failed checksum.
+     */
+    static final int STOP_INVALID = 2;
+
+    private final Adler32 adler32 = new Adler32();
+    private int stop;
+    private int pendingLength;
+    private long frames;
+
+    /**
+     * Scans whole frames from the buffer's position up to its limit. The buffer's position is left unchanged.
+     *
+     * @return the number of bytes taken by valid frames
+     */
+    int scan(ByteBuffer buf) {
+        final int start = buf.position();
+        final int limit = buf.limit();
+        final ByteBuffer view = buf.duplicate();
+        int position = start;
+        pendingLength = 0;
+        while (true) {
+            if (limit - position < SlowStartEventQueue.HEADER_SIZE) {
+                stop = STOP_END;
+                pendingLength = SlowStartEventQueue.HEADER_SIZE;
+                break;
+            }
+            final int len = buf.getInt(position);
+            if (len == 0) {
+                stop = STOP_ZERO;
+                break;
+            }
+            if (len == SlowStartEventQueue.CODEC_MARKER) {
+                position += SlowStartEventQueue.HEADER_SIZE;
+                continue;
+            }
+            final long word = buf.getLong(position + Integer.BYTES);
+            final int headerSize;
+            if (len < 0 || SlowStartEventQueue.recordFormat(word) == 0) {
+                // compressed blocks are framed by their negated length
+                headerSize = SlowStartEventQueue.HEADER_SIZE;
+            }
+            else if (SlowStartEventQueue.recordFormat(word) == SlowStartEventQueue.RECORD_FORMAT) {
+                headerSize = SlowStartEventQueue.RECORD_HEADER_SIZE;
+            }
+            else {
+                stop = STOP_INVALID;
+                break;
+            }
+            final long frameLen = (long) headerSize + Math.abs(len);
+            if (frameLen > limit - position) {
+                stop = STOP_END;
+                pendingLength = (int) Math.min(frameLen, Integer.MAX_VALUE);
+                break;
+            }
+            view.limit(position + (int) frameLen);
+            view.position(position + headerSize);
+            adler32.reset();
+            adler32.update(view);
+            if (adler32.getValue() != (word & 0xffffffffL)) {
+                stop = STOP_INVALID;
+                break;
+            }
+            view.limit(limit);
+            position += frameLen;
+            if (len > 0) {
+                frames++;
+            }
+        }
+        return position - start;
+    }
+
+    /**
+     * @return why the last scan stopped, one of the <code>STOP_</code> constants
+     */
+    int getStop() {
+        return stop;
+    }
+
+    /**
+     * @return when the last scan reached the end of the buffer, the size of the frame it was part way through
+     */
+    int getPendingLength() {
+        return pendingLength;
+    }
+
+    /**
+     * @return the number of valid events seen across all scans, not counting those in compressed blocks
+     */
+    long getFrames() {
+        return frames;
+    }
+}
@@ -0,0 +1,235 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+
+import static me.itzg.slowstart.SlowStartEventQueue.CODEC_MARKER;
+import static me.itzg.slowstart.SlowStartEventQueue.HEADER_SIZE;
+
+/**
+ * Stages framed events from concurrent publishers and writes them to the slow-start buffer in large sequential
+ * writes. Two staging buffers are used so that publishers can keep appending while the other buffer is being
+ * written.
+ * <p>
+ * Lock ordering is always <code>flushLock</code> then <code>appendLock</code>. Holding <code>flushLock</code>
+ * serializes writes to the store, which keeps events in the order they were staged.
+ * <p>
+ * With a codec, each flushed batch is written as one compressed block, preceded once by a marker naming the
+ * codec.
+ *
+ * @author Geoff Bourne
+ */
+class GroupCommitWriter {
+    private static final Logger log = Logger.getLogger(GroupCommitWriter.class.getName());
+
+    private final SlowStore store;
+    private final ScheduledExecutorService scheduler;
+    private final long flushIntervalNS;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private ByteBuffer active;
+    private ByteBuffer flushing;
+    private ScheduledFuture<?> scheduledFlush;
+
+    // only used with a codec and while holding flushLock
+    private final SpillCodec codec;
+    private final Adler32 adler32;
+    private byte[] block;
+    private ByteBuffer blockView;
+    private boolean markerWritten;
+
+    /**
+     * @param codec compresses each flushed batch, or null to write batches as they are
+     */
+    GroupCommitWriter(SlowStore store, int batchSize, long flushIntervalNS, ScheduledExecutorService scheduler,
+                      SpillCodec codec) {
+        this.store = store;
+        this.scheduler = scheduler;
+        this.flushIntervalNS = flushIntervalNS;
+        this.codec = codec;
+        if (codec != null) {
+            // the codecs work on arrays
+            active = ByteBuffer.allocate(batchSize);
+            flushing = ByteBuffer.allocate(batchSize);
+            adler32 = new Adler32();
+            block = new byte[HEADER_SIZE + Integer.BYTES + codec.maxCompressedLength(batchSize)];
+            blockView = ByteBuffer.wrap(block);
+        }
+        else {
+            active = ByteBuffer.allocateDirect(batchSize);
+            flushing = ByteBuffer.allocateDirect(batchSize);
+            adler32 = null;
+        }
+    }
+
+    /**
+     * Stages or writes one framed event.
+     *
+     * @throws IOException if a flush triggered by this append fails
+     */
+    void append(ByteBuffer header, ByteBuffer payload) throws IOException {
+        final int len = header.remaining() + payload.remaining();
+        if (len > active.capacity()) {
+            writeDirect(header, payload);
+            return;
+        }
+
+        while (true) {
+            appendLock.lock();
+            try {
+                if (len <= active.remaining()) {
+                    if (active.position() == 0) {
+                        scheduleFlush();
+                    }
+                    active.put(header);
+                    active.put(payload);
+                    return;
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            flush();
+        }
+    }
+
+    private void writeDirect(ByteBuffer header, ByteBuffer payload) throws IOException {
+        flushLock.lock();
+        try {
+            flushStaged();
+            store.write(new ByteBuffer[]{header, payload});
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::timedFlush, flushIntervalNS, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void timedFlush() {
+        try {
+            flush();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Unable to flush staged events to the slow-start buffer", e);
+        }
+    }
+
+    /**
+     * Writes all currently staged events to the store.
+     *
+     * @return true if any events were written
+     */
+    boolean flush() throws IOException {
+        flushLock.lock();
+        try {
+            return flushStaged();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private boolean flushStaged() throws IOException {
+        appendLock.lock();
+        try {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (active.position() == 0) {
+                return false;
+            }
+            final ByteBuffer filled = active;
+            active = flushing;
+            flushing = filled;
+        } finally {
+            appendLock.unlock();
+        }
+
+        flushing.flip();
+        if (codec != null) {
+            writeCompressed(flushing);
+        }
+        else {
+            store.write(flushing);
+        }
+        flushing.clear();
+        return true;
+    }
+
+    private void writeCompressed(ByteBuffer batch) throws IOException {
+        final int rawLen = batch.remaining();
+        final int payloadOffset = HEADER_SIZE + Integer.BYTES;
+        final int compressedLen = codec.compress(batch.array(), batch.arrayOffset() + batch.position(), rawLen,
+                                                 block, payloadOffset);
+        if (compressedLen + Integer.BYTES >= rawLen) {
+            // not worth it, and the events are readable as they are
+            store.write(batch);
+            return;
+        }
+
+        if (!markerWritten) {
+            blockView.clear();
+            blockView.putInt(CODEC_MARKER);
+            blockView.putLong(codec.getId());
+            blockView.flip();
+            store.write(blockView);
+            markerWritten = true;
+        }
+
+        final int blockLen = Integer.BYTES + compressedLen;
+        blockView.clear();
+        blockView.putInt(HEADER_SIZE, rawLen);
+        adler32.reset();
+        adler32.update(block, HEADER_SIZE, blockLen);
+        blockView.putInt(0, -blockLen);
+        blockView.putLong(Integer.BYTES, adler32.getValue());
+        blockView.limit(HEADER_SIZE + blockLen);
+        store.write(blockView);
+    }
+
+    /**
+     * Called by the drainer when it has reached the end of what it can read.
+     *
+     * @param readPosition how far the drainer has read into the slow-start buffer
+     * @return true if nothing is staged or being flushed and the drainer has read everything written so far
+     */
+    boolean isDrained(long readPosition) {
+        // a flush in progress holds flushLock until its write has completed
+        flushLock.lock();
+        try {
+            appendLock.lock();
+            try {
+                return active.position() == 0 && store.getWrittenBytes() == readPosition;
+            } finally {
+                appendLock.unlock();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Cancels any pending timed flush. Called once the drain has caught up, after which nothing is staged.
+     */
+    void close() {
+        appendLock.lock();
+        try {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
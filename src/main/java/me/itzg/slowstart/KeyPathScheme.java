@@ -0,0 +1,161 @@
+package me.itzg.slowstart;
+
+import com.fasterxml.uuid.Generators;
+import com.fasterxml.uuid.impl.NameBasedGenerator;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Selects how the name of each key's storage directory is derived from the key, as configured by
+ * {@link SlowStartConfig#setKeyPaths(KeyPathScheme, int)}. The key itself is recorded in its directory, so the
+ * name only needs to be stable and practically free of collisions.
+ *
+ * @author Geoff Bourne
+ */
+public enum KeyPathScheme {
+    /**
+     * A SHA-1 name-based UUID of the key, which is how key directories were always named.
+     */
+    NAME_UUID {
+        @Override
+        String name(String key) {
+            return UuidHolder.GENERATOR.generate(key).toString();
+        }
+    },
+    /**
+     * The 128-bit MurmurHash3 of the key's UTF-8 bytes, in hex, which is several times cheaper to compute.
+     */
+    MURMUR3 {
+        @Override
+        String name(String key) {
+            final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            final long[] hash = murmur3(bytes);
+            final char[] hex = new char[32];
+            toHex(hash[0], hex, 0);
+            toHex(hash[1], hex, 16);
+            return new String(hex);
+        }
+    };
+
+    /**
+     * Each level of fan-out takes this many leading hex digits of the name, so has up to 256 directories.
+     */
+    static final int FAN_OUT_DIGITS = 2;
+    static final int MAX_FAN_OUT_LEVELS = 4;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static class UuidHolder {
+        static final NameBasedGenerator GENERATOR = Generators.nameBasedGenerator();
+    }
+
+    abstract String name(String key);
+
+    /**
+     * @param fanOutLevels the number of directory levels between the storage path and the key's directory
+     * @return the storage directory of the key
+     */
+    Path resolve(Path storagePath, String key, int fanOutLevels) {
+        final String name = name(key);
+        Path path = storagePath;
+        for (int level = 0; level < fanOutLevels; level++) {
+            // the dashes of a UUID don't appear within the leading digits used
+            path = path.resolve(name.substring(level * FAN_OUT_DIGITS, (level + 1) * FAN_OUT_DIGITS));
+        }
+        return path.resolve(name);
+    }
+
+    private static void toHex(long value, char[] dst, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            dst[offset + i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * The x64 128-bit variant of MurmurHash3 with a seed of zero.
+     */
+    static long[] murmur3(byte[] data) {
+        final int blocks = data.length / 16;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = blocks * 16;
+        final int remaining = data.length & 15;
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = remaining - 1; i >= 8; i--) {
+            k2 ^= (long) (data[tail + i] & 0xff) << ((i - 8) * 8);
+        }
+        if (remaining > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+            k1 ^= (long) (data[tail + i] & 0xff) << (i * 8);
+        }
+        if (remaining > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL)
+                | (data[offset + 1] & 0xffL) << 8
+                | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24
+                | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40
+                | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
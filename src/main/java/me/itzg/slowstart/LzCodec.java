@@ -0,0 +1,179 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 codec with the sequence layout of the LZ4 block format: a token holding the literal
+ * length and match length, extended by runs of 255 when either exceeds 15, the literals, and a two-byte
+ * little-endian offset into the preceding 64KB. The last sequence has literals only. Matches are found through
+ * a hash table of four-byte prefixes that is kept per thread.
+ *
+ * @author Geoff Bourne
+ */
+class LzCodec implements SpillCodec {
+    static final int ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    /**
+     * The final bytes of the input are always emitted as literals, so matching never reads past the input.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MIN_INPUT = 12;
+    private static final int HASH_BITS = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> hashTables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public int maxCompressedLength(int srcLen) {
+        return srcLen + srcLen / 255 + 16;
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        final int srcEnd = srcOff + srcLen;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+        final int inputLimit = srcEnd - MIN_INPUT;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+
+        if (srcLen >= MIN_INPUT) {
+            // positions are stored plus one, so that zero means empty
+            final int[] table = hashTables.get();
+            Arrays.fill(table, 0);
+
+            while (ip < inputLimit) {
+                final int sequence = readInt(src, ip);
+                final int hash = hash(sequence);
+                final int ref = table[hash] - 1;
+                table[hash] = ip + 1;
+
+                if (ref < srcOff || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    // skip ahead faster the longer nothing has matched
+                    ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+                    continue;
+                }
+
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ref + matchLen] == src[ip + matchLen]) {
+                    matchLen++;
+                }
+
+                op = writeLiterals(src, anchor, ip - anchor, matchLen - MIN_MATCH, dst, op);
+                final int offset = ip - ref;
+                dst[op++] = (byte) offset;
+                dst[op++] = (byte) (offset >>> 8);
+                if (matchLen - MIN_MATCH >= 15) {
+                    op = writeLength(matchLen - MIN_MATCH - 15, dst, op);
+                }
+
+                ip += matchLen;
+                anchor = ip;
+            }
+        }
+
+        op = writeLiterals(src, anchor, srcEnd - anchor, 0, dst, op);
+        return op - dstOff;
+    }
+
+    /**
+     * Writes the token followed by the literals of a sequence.
+     */
+    private static int writeLiterals(byte[] src, int start, int len, int matchCode, byte[] dst, int op) {
+        final int tokenPos = op++;
+        dst[tokenPos] = (byte) ((Math.min(len, 15) << 4) | Math.min(matchCode, 15));
+        if (len >= 15) {
+            op = writeLength(len - 15, dst, op);
+        }
+        System.arraycopy(src, start, dst, op, len);
+        return op + len;
+    }
+
+    private static int writeLength(int remaining, byte[] dst, int op) {
+        while (remaining >= 255) {
+            dst[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[op++] = (byte) remaining;
+        return op;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws IOException {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int ip = srcOff;
+        int op = dstOff;
+        try {
+            while (ip < srcEnd) {
+                final int token = src[ip++] & 0xFF;
+
+                int literalLen = token >>> 4;
+                if (literalLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+                if (literalLen > dstEnd - op || literalLen > srcEnd - ip) {
+                    throw new IOException("Literals overrun the block");
+                }
+                System.arraycopy(src, ip, dst, op, literalLen);
+                ip += literalLen;
+                op += literalLen;
+                if (ip == srcEnd) {
+                    break;
+                }
+
+                final int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                final int ref = op - offset;
+                if (offset == 0 || ref < dstOff || matchLen > dstEnd - op) {
+                    throw new IOException("Match overruns the block");
+                }
+                if (offset >= matchLen) {
+                    System.arraycopy(dst, ref, dst, op, matchLen);
+                }
+                else {
+                    // overlapping matches repeat what they are copying
+                    for (int i = 0; i < matchLen; i++) {
+                        dst[op + i] = dst[ref + i];
+                    }
+                }
+                op += matchLen;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated block", e);
+        }
+        if (op != dstEnd) {
+            throw new IOException(String.format("Decompressed %d bytes rather than %d", op - dstOff, dstLen));
+        }
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF) | (buf[pos + 1] & 0xFF) << 8 | (buf[pos + 2] & 0xFF) << 16 | buf[pos + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
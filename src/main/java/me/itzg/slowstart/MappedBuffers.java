@@ -0,0 +1,72 @@
+package me.itzg.slowstart;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Releases the mapping of a drained segment right away, rather than once its buffer is garbage collected, so that
+ * the disk space of the deleted segment file is freed while the drain continues. The JDK has no public way to do
+ * that, so this uses <code>sun.misc.Unsafe.invokeCleaner</code> on Java 9 and later and the buffer's cleaner on
+ * Java 8. Where neither is accessible, mappings are left to the garbage collector.
+ * <p>
+ * An unmapped buffer, or any view of it, must never be accessed again, since that crashes the JVM rather than
+ * throwing.
+ *
+ * @author Geoff Bourne
+ */
+final class MappedBuffers {
+    private static final Logger log = Logger.getLogger(MappedBuffers.class.getName());
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+    private static final Unmapper UNMAPPER = resolveUnmapper();
+
+    private MappedBuffers() {
+    }
+
+    /**
+     * Releases the mapping, if supported, after which the buffer must not be accessed.
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER == null || buffer == null) {
+            return;
+        }
+        try {
+            UNMAPPER.unmap(buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "Unable to unmap a drained segment, which is left to the garbage collector", e);
+        }
+    }
+
+    private static Unmapper resolveUnmapper() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 9
+        }
+        try {
+            final Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    clean.invoke(cleaner);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "Mappings of drained segments are left to the garbage collector", e);
+            return null;
+        }
+    }
+}
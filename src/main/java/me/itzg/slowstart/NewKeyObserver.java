@@ -1,5 +1,6 @@
 package me.itzg.slowstart;
 
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CompletableFuture;
 
 public interface NewKeyObserver {
@@ -13,4 +14,23 @@ public interface NewKeyObserver {
      * future to indicate immediate readiness.
      */
     CompletableFuture<Void> observeNewKey(String key);
+
+    /**
+     * Observes a new key routed by {@link SlowStartEventRouter#route(long, java.nio.ByteBuffer)}. By default, the
+     * key is converted to its decimal string and observed by {@link #observeNewKey(String)}.
+     */
+    default CompletableFuture<Void> observeNewKey(long key) {
+        return observeNewKey(Long.toString(key));
+    }
+
+    /**
+     * Observes a new key routed by {@link SlowStartEventRouter#route(byte[], java.nio.ByteBuffer)}. By default, the
+     * key is decoded as ISO-8859-1, which maps each byte to one char, and observed by
+     * {@link #observeNewKey(String)}.
+     *
+     * @param key the key as retained by the router, which must not be modified
+     */
+    default CompletableFuture<Void> observeNewKey(byte[] key) {
+        return observeNewKey(new String(key, StandardCharsets.ISO_8859_1));
+    }
 }
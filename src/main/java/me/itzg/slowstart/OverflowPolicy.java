@@ -0,0 +1,29 @@
+package me.itzg.slowstart;
+
+/**
+ * Selects what {@link SlowStartEventQueue#publish(java.nio.ByteBuffer)} does when spilling an event would exceed
+ * the spill quota configured by {@link SlowStartConfig#setSpillQuota(long, long, OverflowPolicy)}.
+ *
+ * @author Geoff Bourne
+ */
+public enum OverflowPolicy {
+    /**
+     * Blocks the publisher until enough of the slow-start buffer has been drained, up to the
+     * {@link SlowStartConfig#setOverflowBlockTimeout(long, java.util.concurrent.TimeUnit) block timeout}, after
+     * which {@link SpillQuotaExceededException} is thrown.
+     */
+    BLOCK,
+    /**
+     * Throws {@link SpillQuotaExceededException} right away.
+     */
+    REJECT,
+    /**
+     * Discards the oldest events of the key's slow-start buffer to make room. While the buffer is being drained,
+     * its oldest events are already on their way to the consumer, so the new event is dropped instead.
+     */
+    DROP_OLDEST,
+    /**
+     * Drops the event being published.
+     */
+    DROP_NEWEST
+}
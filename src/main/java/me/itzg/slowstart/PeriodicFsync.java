@@ -0,0 +1,64 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forces the slow-start buffers written to since the last interval, for all queues of a
+ * {@link SlowStartEventRouter}. A queue marks its buffer dirty after each spill and is only queued once per
+ * interval, and the task is only scheduled while something is dirty, so idle queues cost nothing.
+ *
+ * @author Geoff Bourne
+ */
+class PeriodicFsync {
+    private static final Logger log = Logger.getLogger(PeriodicFsync.class.getName());
+
+    private final long intervalNS;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentLinkedQueue<StoreSync> dirty = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    PeriodicFsync(long intervalNS, ScheduledExecutorService scheduler) {
+        this.intervalNS = intervalNS;
+        this.scheduler = scheduler;
+    }
+
+    void markDirty(StoreSync sync) {
+        if (sync.markQueued()) {
+            dirty.add(sync);
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::run, intervalNS, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void run() {
+        // stores marked again while this pass runs are left for the next one
+        for (int count = dirty.size(); count > 0; count--) {
+            final StoreSync sync = dirty.poll();
+            if (sync == null) {
+                break;
+            }
+            sync.clearQueued();
+            try {
+                sync.syncAll();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to force the slow-start buffer to disk", e);
+            }
+        }
+
+        scheduled.set(false);
+        if (!dirty.isEmpty()) {
+            schedule();
+        }
+    }
+}
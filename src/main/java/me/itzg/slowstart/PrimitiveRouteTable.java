@@ -0,0 +1,226 @@
+package me.itzg.slowstart;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The routes of {@link SlowStartEventRouter} for keys that are a <code>long</code> or a <code>byte[]</code>. It's
+ * an open-addressing table with linear probing, so a route costs a slot in two or three arrays rather than a map
+ * node and a boxed key, and looking one up doesn't allocate.
+ * <p>
+ * Lookups are lock-free and changes are made under one lock. A slot's key is written before its value, which is
+ * published through the value array, and never changes while the slot's array is in use. Removed routes leave a
+ * marker that lookups probe past, and markers are only cleared by rebuilding the table into new arrays, so a
+ * lookup that raced with a rebuild at worst misses a route and then finds it under the lock.
+ * <p>
+ * Keys of a table of <code>byte[]</code> keys are given as their {@link #hash(byte[]) hash} along with the bytes,
+ * which the table retains, so they must not be modified afterwards.
+ *
+ * @author Geoff Bourne
+ */
+class PrimitiveRouteTable {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final Object REMOVED = new Object();
+
+    interface Visitor {
+        void visit(long key, byte[] bytes, SlowStartEventQueue queue);
+    }
+
+    private static class Table {
+        /**
+         * The key, or the hash of a <code>byte[]</code> key, of each slot.
+         */
+        final long[] keys;
+        /**
+         * Null unless the table holds <code>byte[]</code> keys.
+         */
+        final byte[][] bytes;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity, boolean bytesKeys) {
+            keys = new long[capacity];
+            bytes = bytesKeys ? new byte[capacity][] : null;
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private final boolean bytesKeys;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Table table;
+    private volatile int size;
+    /**
+     * Occupied slots, including removed ones, which is only accessed while holding the lock.
+     */
+    private int used;
+
+    /**
+     * @param bytesKeys true if the keys are a <code>byte[]</code>
+     */
+    PrimitiveRouteTable(boolean bytesKeys) {
+        this.bytesKeys = bytesKeys;
+        table = new Table(INITIAL_CAPACITY, bytesKeys);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the key, which is mixed further when placed.
+     */
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @param bytes the <code>byte[]</code> key, or null for a table of <code>long</code> keys
+     */
+    SlowStartEventQueue get(long key, byte[] bytes) {
+        final Table t = table;
+        final int slot = find(t, key, bytes);
+        return slot >= 0 ? (SlowStartEventQueue) t.values.get(slot) : null;
+    }
+
+    /**
+     * Puts the given queue if the key is absent or currently maps to <code>expected</code>.
+     *
+     * @return the queue the key now maps to, which is <code>queue</code> if it was put
+     */
+    SlowStartEventQueue compareAndPut(long key, byte[] bytes, SlowStartEventQueue expected,
+                                      SlowStartEventQueue queue) {
+        lock.lock();
+        try {
+            final Table t = table;
+            final int slot = find(t, key, bytes);
+            if (slot >= 0) {
+                final SlowStartEventQueue current = (SlowStartEventQueue) t.values.get(slot);
+                if (current == expected) {
+                    t.values.set(slot, queue);
+                    return queue;
+                }
+                return current;
+            }
+
+            int index = indexOf(key, t.mask);
+            while (t.values.get(index) != null) {
+                index = (index + 1) & t.mask;
+            }
+            t.keys[index] = key;
+            if (t.bytes != null) {
+                t.bytes[index] = bytes;
+            }
+            // publishes the key along with the queue
+            t.values.set(index, queue);
+            size++;
+            if (++used > t.keys.length / 4 * 3) {
+                rebuild(t);
+            }
+            return queue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the key if it maps to <code>expected</code>.
+     *
+     * @param whileHeld run once removed while still holding the lock, so that a route for the key can't be put
+     *                  until it completes, or null
+     * @return true if removed
+     */
+    boolean remove(long key, byte[] bytes, SlowStartEventQueue expected, Runnable whileHeld) {
+        lock.lock();
+        try {
+            final Table t = table;
+            final int slot = find(t, key, bytes);
+            if (slot < 0 || t.values.get(slot) != expected) {
+                return false;
+            }
+            t.values.set(slot, REMOVED);
+            size--;
+            if (whileHeld != null) {
+                whileHeld.run();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits the routes without locking, so routes put or removed meanwhile may or may not be visited.
+     */
+    void forEach(Visitor visitor) {
+        final Table t = table;
+        for (int i = 0; i < t.keys.length; i++) {
+            final Object value = t.values.get(i);
+            if (value != null && value != REMOVED) {
+                visitor.visit(t.keys[i], t.bytes != null ? t.bytes[i] : null, (SlowStartEventQueue) value);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot holding a route for the key, or -1
+     */
+    private static int find(Table t, long key, byte[] bytes) {
+        int index = indexOf(key, t.mask);
+        while (true) {
+            final Object value = t.values.get(index);
+            if (value == null) {
+                return -1;
+            }
+            if (value != REMOVED && t.keys[index] == key &&
+                    (bytes == null || Arrays.equals(t.bytes[index], bytes))) {
+                return index;
+            }
+            index = (index + 1) & t.mask;
+        }
+    }
+
+    private static int indexOf(long key, int mask) {
+        // the finalizer of MurmurHash3, since sequential IDs would otherwise cluster
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    /**
+     * Copies the routes into new arrays, dropping removed slots, and sized so that they are at most half full.
+     */
+    private void rebuild(Table old) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < size * 2 + 2) {
+            capacity <<= 1;
+        }
+        final Table t = new Table(capacity, bytesKeys);
+        for (int i = 0; i < old.keys.length; i++) {
+            final Object value = old.values.get(i);
+            if (value != null && value != REMOVED) {
+                int index = indexOf(old.keys[i], t.mask);
+                while (t.values.get(index) != null) {
+                    index = (index + 1) & t.mask;
+                }
+                t.keys[index] = old.keys[i];
+                if (t.bytes != null) {
+                    t.bytes[index] = old.bytes[i];
+                }
+                t.values.lazySet(index, value);
+            }
+        }
+        used = size;
+        table = t;
+    }
+}
@@ -0,0 +1,186 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads a slow-start buffer ahead of the drainer in large chunks. Two buffers alternate: while the drainer parses
+ * events out of one, the next chunk is loaded into the other on a separate I/O executor, so the disk keeps
+ * reading while the consumer runs and each event costs copies from memory rather than small reads.
+ * <p>
+ * Only the drainer reads through this store, and {@link #getReadBytes()} counts what it has consumed rather than
+ * what has been loaded. Writes go straight to the underlying store.
+ *
+ * @author Geoff Bourne
+ */
+class ReadAheadSlowStore implements SlowStore {
+    private final SlowStore store;
+    private final Executor ioExecutor;
+
+    private ByteBuffer current;
+    private ByteBuffer loading;
+    /**
+     * The load of {@link #loading}, if one is in progress. The loading buffer is only touched by the I/O stage
+     * until this completes.
+     */
+    private CompletableFuture<Void> pending;
+    private long readBytes;
+
+    /**
+     * @param chunkSize  the size of each of the two buffers
+     * @param ioExecutor runs the loads, which must not need the thread of the drainer
+     */
+    ReadAheadSlowStore(SlowStore store, int chunkSize, Executor ioExecutor) {
+        this.store = store;
+        this.ioExecutor = ioExecutor;
+        current = ByteBuffer.allocateDirect(chunkSize);
+        current.flip();
+        loading = ByteBuffer.allocateDirect(chunkSize);
+        readBytes = store.getReadBytes();
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        store.write(srcs);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        store.write(src);
+    }
+
+    @Override
+    public void force() throws IOException {
+        store.force();
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return store.getWrittenBytes();
+    }
+
+    @Override
+    public void closeForWriting() throws IOException {
+        store.closeForWriting();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        while (dst.hasRemaining()) {
+            if (!current.hasRemaining()) {
+                if (pending == null) {
+                    startLoad();
+                }
+                awaitLoad();
+                if (!current.hasRemaining()) {
+                    // caught up with what's written, so the next read loads again
+                    break;
+                }
+                startLoad();
+            }
+
+            final int chunk = Math.min(current.remaining(), dst.remaining());
+            final int limit = current.limit();
+            current.limit(current.position() + chunk);
+            dst.put(current);
+            current.limit(limit);
+            count += chunk;
+        }
+        readBytes += count;
+        return count;
+    }
+
+    /**
+     * Skips what has been loaded and, beyond that, skips in the underlying store without loading it.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        long count = 0;
+        while (count < n) {
+            if (current.hasRemaining()) {
+                final int chunk = (int) Math.min(current.remaining(), n - count);
+                current.position(current.position() + chunk);
+                count += chunk;
+            }
+            else if (pending != null) {
+                awaitLoad();
+                if (!current.hasRemaining()) {
+                    break;
+                }
+            }
+            else {
+                count += store.skip(n - count);
+                break;
+            }
+        }
+        readBytes += count;
+        return count;
+    }
+
+    private void startLoad() {
+        final ByteBuffer buf = loading;
+        buf.clear();
+        pending = CompletableFuture.runAsync(() -> {
+            try {
+                while (buf.hasRemaining() && store.read(buf) > 0) {
+                    // keep filling until the chunk is full or the writes run out
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, ioExecutor);
+    }
+
+    /**
+     * Waits for the pending load and swaps it in as the current buffer.
+     */
+    private void awaitLoad() throws IOException {
+        final CompletableFuture<Void> load = pending;
+        pending = null;
+        try {
+            load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        final ByteBuffer loaded = loading;
+        loading = current;
+        current = loaded;
+        current.flip();
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        abandonLoad();
+        store.close();
+    }
+
+    @Override
+    public void release() throws IOException {
+        abandonLoad();
+        store.release();
+    }
+
+    private void abandonLoad() {
+        final CompletableFuture<Void> load = pending;
+        pending = null;
+        if (load != null) {
+            try {
+                load.join();
+            } catch (CompletionException e) {
+                // nothing more is read
+            }
+        }
+    }
+}
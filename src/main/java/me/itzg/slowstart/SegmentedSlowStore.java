@@ -0,0 +1,383 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the slow-start buffer in a sequence of fixed-size, memory-mapped segment files. The drainer deletes each
+ * segment as soon as it has read past it, so disk use during a long drain is bounded by the undrained backlog
+ * rather than by everything ever spilled. That relies on {@link MappedBuffers} unmapping the segment, since the
+ * blocks of a deleted file that is still mapped are only freed once its buffer is garbage collected. That is also
+ * the fallback on a JDK where unmapping isn't accessible.
+ * <p>
+ * Each write is kept within one segment, which means a segment always starts with a whole event. A write that
+ * does not fit in the remainder of the current segment starts a new segment, and a write larger than the segment
+ * size gets a segment of its own sized to fit.
+ *
+ * @author Geoff Bourne
+ */
+class SegmentedSlowStore implements SlowStore {
+    private static final Logger log = Logger.getLogger(SegmentedSlowStore.class.getName());
+
+    private static final String SEGMENT_PREFIX = "store-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static class Segment {
+        final long index;
+        final Path path;
+        final MappedByteBuffer buffer;
+        /**
+         * The number of bytes of the segment that have been written, published to the reader.
+         */
+        volatile int limit;
+        /**
+         * Set once no more writes will go to this segment.
+         */
+        volatile boolean sealed;
+        /**
+         * Set once the segment has been forced after it was sealed.
+         */
+        volatile boolean forced;
+        /**
+         * Set, while holding {@link #forceLock}, once the segment is unmapped and must no longer be accessed.
+         */
+        boolean unmapped;
+
+        Segment(long index, Path path, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * Keeps forcing apart from unmapping, which may be concurrent since forcing isn't done by the drainer.
+     */
+    private final ReentrantLock forceLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Segment> segments = new ConcurrentLinkedQueue<>();
+
+    private Segment writeSegment;
+    private volatile long writtenBytes;
+
+    private Segment readSegment;
+    private ByteBuffer readView;
+    private long readBytes;
+
+    /**
+     * Opens the segmented store in the given directory, resuming after any segments left from a previous run. The
+     * events of those segments are validated and everything from the first invalid event on, such as one torn by
+     * a crash, is discarded.
+     */
+    SegmentedSlowStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        final List<Path> existing = listSegments(directory);
+        final FrameScanner scanner = new FrameScanner();
+        long nextIndex = 0;
+        boolean torn = false;
+        for (Path path : existing) {
+            final MappedByteBuffer buffer = torn ? null : mapExisting(path);
+            if (buffer == null) {
+                // either after a torn segment or created, but not yet sized, when the previous run stopped
+                Files.delete(path);
+                continue;
+            }
+
+            // the unwritten tail of a segment is zero-filled, and since events are never empty, a zero length
+            // marks the end of what was written. Anything else that stops the scan means the segment was torn.
+            final int position = scanner.scan(buffer);
+            torn = scanner.getStop() == FrameScanner.STOP_INVALID ||
+                    (scanner.getStop() == FrameScanner.STOP_END &&
+                            buffer.capacity() - position >= SlowStartEventQueue.HEADER_SIZE);
+            if (torn) {
+                log.warning("Discarding invalid or torn events from " + path);
+                // zero the rest so that what is written next is followed by the end marker
+                for (int i = position; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+            buffer.position(position);
+
+            final Segment segment = new Segment(indexOf(path), path, buffer);
+            segment.limit = position;
+            segment.sealed = true;
+            segment.forced = true;
+            segments.add(segment);
+            writeSegment = segment;
+            writtenBytes += position;
+            nextIndex = segment.index + 1;
+        }
+
+        if (writeSegment == null) {
+            writeSegment = createSegment(nextIndex, segmentSize);
+            segments.add(writeSegment);
+        }
+        else {
+            // the last segment continues to take writes
+            writeSegment.sealed = false;
+            writeSegment.forced = false;
+        }
+    }
+
+    static List<Path> listSegments(Path directory) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort((a, b) -> Long.compare(indexOf(a), indexOf(b)));
+        return paths;
+    }
+
+    private static long indexOf(Path path) {
+        final String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Segment createSegment(long index, int size) throws IOException {
+        final Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            // the mapping remains valid after the channel is closed
+            return new Segment(index, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * @return the mapping of the existing segment file, or null if it is empty
+     */
+    private static MappedByteBuffer mapExisting(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            return size > 0 ? channel.map(FileChannel.MapMode.READ_WRITE, 0, size) : null;
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        int len = 0;
+        for (ByteBuffer src : srcs) {
+            len += src.remaining();
+        }
+
+        writeLock.lock();
+        try {
+            final Segment segment = segmentFor(len);
+            for (ByteBuffer src : srcs) {
+                segment.buffer.put(src);
+            }
+            publishWrite(segment, len);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        final int len = src.remaining();
+
+        writeLock.lock();
+        try {
+            final Segment segment = segmentFor(len);
+            segment.buffer.put(src);
+            publishWrite(segment, len);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Segment segmentFor(int len) throws IOException {
+        final Segment current = writeSegment;
+        if (current == null) {
+            throw new ClosedChannelException();
+        }
+        if (current.buffer.remaining() >= len) {
+            return current;
+        }
+
+        final Segment next = createSegment(current.index + 1, Math.max(segmentSize, len));
+        segments.add(next);
+        writeSegment = next;
+        current.sealed = true;
+        return next;
+    }
+
+    private void publishWrite(Segment segment, int len) {
+        segment.limit = segment.buffer.position();
+        writtenBytes += len;
+    }
+
+    @Override
+    public void force() {
+        forceLock.lock();
+        try {
+            // a segment may have been drained and unmapped since it was taken from the queue
+            for (Segment segment : segments) {
+                if (!segment.forced && !segment.unmapped) {
+                    final boolean sealed = segment.sealed;
+                    segment.buffer.force();
+                    segment.forced = sealed;
+                }
+            }
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public void closeForWriting() {
+        writeLock.lock();
+        try {
+            if (writeSegment != null) {
+                writeSegment.sealed = true;
+                writeSegment = null;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        while (dst.hasRemaining()) {
+            final int available = readable();
+            if (available == 0) {
+                break;
+            }
+            readView.limit(readView.position() + Math.min(available, dst.remaining()));
+            count += readView.remaining();
+            dst.put(readView);
+        }
+        readBytes += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long count = 0;
+        while (count < n) {
+            final int available = readable();
+            if (available == 0) {
+                break;
+            }
+            final int chunk = (int) Math.min(available, n - count);
+            readView.position(readView.position() + chunk);
+            count += chunk;
+        }
+        readBytes += count;
+        return count;
+    }
+
+    /**
+     * Moves on to the next segment, deleting the one read past, if the current one has been read to its end.
+     *
+     * @return the number of bytes that can be read from {@link #readView}, which is zero when caught up
+     */
+    private int readable() {
+        while (true) {
+            if (readSegment == null) {
+                readSegment = segments.peek();
+                if (readSegment == null) {
+                    return 0;
+                }
+                readView = readSegment.buffer.duplicate();
+                readView.position(0);
+            }
+
+            // read sealed ahead of limit, since the limit is final once sealed
+            final boolean sealed = readSegment.sealed;
+            final int limit = readSegment.limit;
+            final int position = readView.position();
+            if (position < limit) {
+                readView.limit(limit);
+                return limit - position;
+            }
+            else if (sealed) {
+                final Segment drained = segments.poll();
+                // the view is dropped ahead of unmapping, since it must not be accessed afterwards
+                readSegment = null;
+                readView = null;
+                deleteSegment(drained);
+            }
+            else {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Unmaps and deletes a segment that is no longer written to and whose views have been dropped by the reader.
+     */
+    private void deleteSegment(Segment segment) {
+        unmapSegment(segment);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to delete drained segment " + segment.path, e);
+        }
+    }
+
+    private void unmapSegment(Segment segment) {
+        forceLock.lock();
+        try {
+            segment.unmapped = true;
+            MappedBuffers.unmap(segment.buffer);
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    @Override
+    public void close() {
+        closeForWriting();
+        readSegment = null;
+        readView = null;
+        Segment segment;
+        while ((segment = segments.poll()) != null) {
+            deleteSegment(segment);
+        }
+    }
+
+    @Override
+    public void release() {
+        closeForWriting();
+        readSegment = null;
+        readView = null;
+        Segment segment;
+        while ((segment = segments.poll()) != null) {
+            unmapSegment(segment);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package me.itzg.slowstart;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on an underlying executor that may have many
+ * threads. Nothing is held on a thread while there are no tasks, and after a run of tasks the executor's thread
+ * is given back, so that many serial executors can share a small pool fairly.
+ * <p>
+ * If the underlying executor rejects a run of tasks, such as once it has been shut down, the tasks that were
+ * waiting for that run are discarded, so that later tasks aren't left waiting for a run that never comes. Once a
+ * run has started, it keeps its thread rather than let a saturated executor strand the tasks that follow.
+ *
+ * @author Geoff Bourne
+ */
+class SerialExecutor implements Executor {
+    private static final Logger log = Logger.getLogger(SerialExecutor.class.getName());
+
+    /**
+     * The most tasks run before giving the underlying executor's thread back.
+     */
+    private static final int MAX_RUN = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * The number of tasks submitted and not yet completed.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @throws RejectedExecutionException if the underlying executor rejected the run that was to carry out the
+     *                                    task, which is then discarded
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0) {
+            try {
+                executor.execute(this::run);
+            } catch (RejectedExecutionException e) {
+                discardRejected(1);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if every task submitted so far has completed
+     */
+    boolean isIdle() {
+        return pending.get() == 0;
+    }
+
+    private void run() {
+        while (true) {
+            for (int i = 0; i < MAX_RUN; i++) {
+                final Runnable task = tasks.poll();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.log(Level.SEVERE, "Serial task failed", e);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    return;
+                }
+            }
+            try {
+                executor.execute(this::run);
+                return;
+            } catch (RejectedExecutionException e) {
+                // the tasks already accepted are carried out on this thread instead
+            }
+        }
+    }
+
+    /**
+     * Discards the tasks that were waiting on a rejected run, so that the next task submitted starts a new one.
+     *
+     * @param reported the number of those tasks that the submitter is told were rejected
+     */
+    private void discardRejected(int reported) {
+        int discarded = 0;
+        while (tasks.poll() != null) {
+            discarded++;
+        }
+        if (discarded > reported) {
+            log.log(Level.SEVERE, "Discarded {0} serial tasks that were rejected", discarded - reported);
+        }
+        pending.addAndGet(-discarded);
+    }
+}
@@ -0,0 +1,212 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One key's slow-start buffer within a {@link SharedSpillLog}. The chunks written by the key are indexed in
+ * order by parallel arrays, rather than by objects per chunk, and read back through a view of the segment that
+ * holds them.
+ *
+ * @author Geoff Bourne
+ */
+class SharedLogSlowStore implements SlowStore {
+    private static final int INITIAL_INDEX_SIZE = 16;
+
+    private final SharedSpillLog.Shard shard;
+    private final int keyId;
+    private final ReentrantLock indexLock = new ReentrantLock();
+
+    // the index of chunks yet to be read, as a FIFO from head to tail
+    private SharedSpillLog.Segment[] chunkSegments = new SharedSpillLog.Segment[INITIAL_INDEX_SIZE];
+    private int[] chunkOffsets = new int[INITIAL_INDEX_SIZE];
+    private int[] chunkLengths = new int[INITIAL_INDEX_SIZE];
+    private int head;
+    private int tail;
+
+    private volatile boolean closedForWriting;
+    private volatile long writtenBytes;
+
+    private SharedSpillLog.Segment readSegment;
+    private ByteBuffer readView;
+    private int readRemaining;
+    private long readBytes;
+
+    SharedLogSlowStore(SharedSpillLog.Shard shard, int keyId) {
+        this.shard = shard;
+        this.keyId = keyId;
+    }
+
+    int getKeyId() {
+        return keyId;
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        int len = 0;
+        for (ByteBuffer src : srcs) {
+            len += src.remaining();
+        }
+        append(srcs, len);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        append(new ByteBuffer[]{src}, src.remaining());
+    }
+
+    private void append(ByteBuffer[] srcs, int len) throws IOException {
+        if (closedForWriting) {
+            throw new ClosedChannelException();
+        }
+        shard.append(this, srcs, len);
+    }
+
+    /**
+     * Called by the shard, while holding its lock, for each chunk appended on behalf of this key.
+     */
+    void addChunk(SharedSpillLog.Segment segment, int offset, int len) {
+        indexLock.lock();
+        try {
+            if (tail == chunkSegments.length) {
+                growIndex();
+            }
+            chunkSegments[tail] = segment;
+            chunkOffsets[tail] = offset;
+            chunkLengths[tail] = len;
+            tail++;
+            writtenBytes += len;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    private void growIndex() {
+        final int count = tail - head;
+        // compact in place when at least half of the index has been read, otherwise double it
+        final int size = count * 2 <= chunkSegments.length ? chunkSegments.length : chunkSegments.length * 2;
+        final SharedSpillLog.Segment[] segments = new SharedSpillLog.Segment[size];
+        System.arraycopy(chunkSegments, head, segments, 0, count);
+        chunkSegments = segments;
+        chunkOffsets = Arrays.copyOfRange(chunkOffsets, head, head + size);
+        chunkLengths = Arrays.copyOfRange(chunkLengths, head, head + size);
+        head = 0;
+        tail = count;
+    }
+
+    @Override
+    public void force() {
+        if (!closedForWriting) {
+            shard.force();
+        }
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public void closeForWriting() {
+        closedForWriting = true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        int count = 0;
+        while (dst.hasRemaining()) {
+            if (readRemaining == 0 && !nextChunk()) {
+                break;
+            }
+            final int chunk = Math.min(readRemaining, dst.remaining());
+            final int limit = readView.position() + chunk;
+            readView.limit(limit);
+            dst.put(readView);
+            readRemaining -= chunk;
+            count += chunk;
+            if (readRemaining == 0) {
+                readSegment.release();
+            }
+        }
+        readBytes += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long count = 0;
+        while (count < n) {
+            if (readRemaining == 0 && !nextChunk()) {
+                break;
+            }
+            final int chunk = (int) Math.min(readRemaining, n - count);
+            readView.limit(readView.position() + chunk);
+            readView.position(readView.limit());
+            readRemaining -= chunk;
+            count += chunk;
+            if (readRemaining == 0) {
+                readSegment.release();
+            }
+        }
+        readBytes += count;
+        return count;
+    }
+
+    private boolean nextChunk() {
+        final SharedSpillLog.Segment segment;
+        final int offset;
+        indexLock.lock();
+        try {
+            if (head == tail) {
+                return false;
+            }
+            segment = chunkSegments[head];
+            offset = chunkOffsets[head];
+            readRemaining = chunkLengths[head];
+            chunkSegments[head] = null;
+            head++;
+        } finally {
+            indexLock.unlock();
+        }
+
+        if (segment != readSegment) {
+            readSegment = segment;
+            readView = segment.buffer.duplicate();
+        }
+        readView.clear();
+        readView.position(offset);
+        return true;
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Discards any chunks that were not read, which allows their segments to be reclaimed.
+     */
+    @Override
+    public void close() {
+        closedForWriting = true;
+        if (readRemaining > 0) {
+            readRemaining = 0;
+            readSegment.release();
+        }
+        indexLock.lock();
+        try {
+            while (head < tail) {
+                chunkSegments[head].release();
+                chunkSegments[head] = null;
+                head++;
+            }
+        } finally {
+            indexLock.unlock();
+        }
+        readSegment = null;
+        readView = null;
+    }
+}
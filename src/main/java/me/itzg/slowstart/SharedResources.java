@@ -0,0 +1,51 @@
+package me.itzg.slowstart;
+
+import java.nio.file.Path;
+
+/**
+ * Holds what the queues of one {@link SlowStartEventRouter} share with each other. A queue created on its own
+ * gets resources of its own.
+ *
+ * @author Geoff Bourne
+ */
+class SharedResources {
+    final ByteBudget memoryBudget;
+    /**
+     * Null unless an overall spill quota is configured.
+     */
+    final ByteBudget spillBudget;
+    /**
+     * Null unless {@link SlowStartConfig#setSharedLog(int, int)} is enabled.
+     */
+    final SharedSpillLog sharedLog;
+    final SlowStartMetrics metrics = new SlowStartMetrics();
+    /**
+     * Null unless drains are limited by {@link SlowStartConfig#setDrainConcurrency(int, DrainPriority)} or
+     * {@link SlowStartConfig#setDrainReadRate(long)}.
+     */
+    final DrainScheduler drainScheduler;
+    /**
+     * Null unless {@link DurabilityMode#PERIODIC} is configured.
+     */
+    final PeriodicFsync periodicFsync;
+
+    SharedResources(SlowStartConfig config, Path storagePath) {
+        memoryBudget = new ByteBudget(config.getMemoryTierTotalBytes());
+        spillBudget = config.getSpillQuotaTotalBytes() > 0 ? new ByteBudget(config.getSpillQuotaTotalBytes()) : null;
+        sharedLog = config.getSharedLogShards() > 0 ?
+                new SharedSpillLog(storagePath, config.getSharedLogShards(), config.getSharedLogSegmentSize(),
+                                   config.getDurabilityMode() != DurabilityMode.NONE) :
+                null;
+        if (config.getDrainConcurrency() > 0 || config.getDrainReadRate() > 0) {
+            final int maxConcurrent = config.getDrainConcurrency() > 0 ?
+                    config.getDrainConcurrency() : Integer.MAX_VALUE;
+            drainScheduler = new DrainScheduler(maxConcurrent, config.getDrainPriority(), config.getDrainStepBytes(),
+                                                config.getDrainReadRate(), config.getScheduler());
+        }
+        else {
+            drainScheduler = null;
+        }
+        periodicFsync = config.getDurabilityMode() == DurabilityMode.PERIODIC ?
+                new PeriodicFsync(config.getFsyncIntervalNS(), config.getFsyncScheduler()) : null;
+    }
+}
@@ -0,0 +1,241 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small, fixed number of append logs that hold the slow-start buffers of many keys, so that spilling doesn't
+ * need a directory and open file per key. Each key is assigned to one shard by its hash. Every write by a key
+ * becomes a chunk tagged with the key's id, and the key's {@link SharedLogSlowStore} keeps the in-memory index
+ * of where its chunks are.
+ * <p>
+ * Shards are made of memory-mapped segment files, like {@link SegmentedSlowStore}. A segment counts the chunks
+ * in it that are yet to be drained and is unmapped and deleted once it is no longer written to and that count
+ * reaches zero.
+ *
+ * @author Geoff Bourne
+ */
+class SharedSpillLog {
+    private static final Logger log = Logger.getLogger(SharedSpillLog.class.getName());
+
+    /**
+     * Each chunk is prefixed by the id of its key and its length.
+     */
+    static final int CHUNK_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    static final String SHARD_PREFIX = "shared-";
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    static class Segment {
+        final long index;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final AtomicInteger live = new AtomicInteger();
+        final AtomicBoolean deleted = new AtomicBoolean();
+        /**
+         * Keeps forcing apart from unmapping.
+         */
+        private final ReentrantLock mapLock = new ReentrantLock();
+        volatile boolean sealed;
+
+        Segment(long index, Path path, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Called once a chunk in this segment has been drained or discarded.
+         */
+        void release() {
+            if (live.decrementAndGet() == 0 && sealed) {
+                delete();
+            }
+        }
+
+        /**
+         * Forces the segment to disk, unless it has been deleted.
+         */
+        void force() {
+            mapLock.lock();
+            try {
+                if (!deleted.get()) {
+                    buffer.force();
+                }
+            } finally {
+                mapLock.unlock();
+            }
+        }
+
+        /**
+         * Unmaps and deletes the segment, which no reader accesses anymore since none of its chunks are live.
+         */
+        void delete() {
+            if (deleted.compareAndSet(false, true)) {
+                mapLock.lock();
+                try {
+                    MappedBuffers.unmap(buffer);
+                } finally {
+                    mapLock.unlock();
+                }
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to delete drained segment " + path, e);
+                }
+            }
+        }
+    }
+
+    class Shard {
+        private final Path directory;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Segment writeSegment;
+        private long nextIndex = -1;
+        /**
+         * Sealed segments that haven't been forced since, which are only tracked if a forcing
+         * {@link DurabilityMode} is configured.
+         */
+        private List<Segment> unforced = new ArrayList<>();
+
+        Shard(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Appends one chunk and, while still holding the shard lock, records it in the key's index. That keeps
+         * the index in the same order as concurrent writes by the key.
+         */
+        void append(SharedLogSlowStore store, ByteBuffer[] srcs, int len) throws IOException {
+            lock.lock();
+            try {
+                final Segment segment = segmentFor(CHUNK_HEADER_SIZE + len);
+                final int offset = segment.buffer.position() + CHUNK_HEADER_SIZE;
+                segment.buffer.putInt(store.getKeyId());
+                segment.buffer.putInt(len);
+                for (ByteBuffer src : srcs) {
+                    segment.buffer.put(src);
+                }
+                segment.live.incrementAndGet();
+                store.addChunk(segment, offset, len);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forces what's been written to the shard, which covers every key of the shard and not only the caller's.
+         */
+        void force() {
+            final List<Segment> sealed;
+            final Segment current;
+            lock.lock();
+            try {
+                sealed = unforced;
+                unforced = new ArrayList<>();
+                current = writeSegment;
+            } finally {
+                lock.unlock();
+            }
+            for (Segment segment : sealed) {
+                segment.force();
+            }
+            if (current != null) {
+                current.force();
+            }
+        }
+
+        private Segment segmentFor(int len) throws IOException {
+            final Segment current = writeSegment;
+            if (current != null && current.buffer.remaining() >= len) {
+                return current;
+            }
+
+            if (nextIndex < 0) {
+                Files.createDirectories(directory);
+                nextIndex = firstFreeIndex(directory);
+            }
+            final Segment next = createSegment(directory, nextIndex++, Math.max(segmentSize, len));
+            writeSegment = next;
+            if (current != null) {
+                current.sealed = true;
+                if (current.live.get() == 0) {
+                    current.delete();
+                }
+                else if (forced) {
+                    unforced.add(current);
+                }
+            }
+            return next;
+        }
+    }
+
+    private final int segmentSize;
+    private final boolean forced;
+    private final Shard[] shards;
+    private final AtomicInteger nextKeyId = new AtomicInteger();
+
+    /**
+     * @param directory   where the shard directories are created, on first use
+     * @param shardCount  the number of independent append logs
+     * @param segmentSize the size of each segment file of a shard
+     * @param forced      true if shards are forced to disk, which is otherwise left to the operating system
+     */
+    SharedSpillLog(Path directory, int shardCount, int segmentSize, boolean forced) {
+        this.segmentSize = segmentSize;
+        this.forced = forced;
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(directory.resolve(SHARD_PREFIX + i));
+        }
+    }
+
+    /**
+     * Creates the slow-start buffer of one key within this shared log.
+     */
+    SharedLogSlowStore openStore(String key) {
+        final Shard shard = shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+        return new SharedLogSlowStore(shard, nextKeyId.incrementAndGet());
+    }
+
+    /**
+     * Segments left by a previous run are not reused, since the index of their chunks was only kept in memory.
+     */
+    private static long firstFreeIndex(Path directory) throws IOException {
+        long next = 0;
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                final String name = path.getFileName().toString();
+                final long index = Long.parseLong(
+                        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                next = Math.max(next, index + 1);
+            }
+        }
+        return next;
+    }
+
+    private static Segment createSegment(Path directory, long index, int size) throws IOException {
+        final Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path,
+                                                    StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return new Segment(index, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+}
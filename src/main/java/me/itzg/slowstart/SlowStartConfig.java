@@ -0,0 +1,806 @@
+package me.itzg.slowstart;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional tuning for {@link SlowStartEventQueue} and {@link SlowStartEventRouter}. A default instance
+ * reproduces the behavior of the plain constructors. Setters return this config so that options can be chained.
+ *
+ * @author Geoff Bourne
+ */
+public class SlowStartConfig {
+    /**
+     * The group-commit batch size used for compression when group-commit isn't otherwise configured.
+     */
+    public static final int DEFAULT_COMPRESSION_BATCH_SIZE = 64 * 1024;
+
+    private int groupCommitBatchSize;
+    private SpillCodec codec;
+    private long groupCommitFlushIntervalNS = TimeUnit.MILLISECONDS.toNanos(5);
+    private ScheduledExecutorService scheduler;
+    private boolean reuseDrainBuffer;
+    private int segmentSize;
+    private int sharedLogShards;
+    private int sharedLogSegmentSize;
+    private int memoryTierPerKeyBytes;
+    private long memoryTierTotalBytes;
+    private int drainBatchMaxEvents = 256;
+    private int drainBatchMaxBytes = 1024 * 1024;
+    private int drainConcurrency;
+    private DrainPriority drainPriority = DrainPriority.READINESS;
+    private long drainStepBytes = 1024 * 1024;
+    private long drainReadRate;
+    private int drainReadAheadSize;
+    private int tailHandoffBytes;
+    private long maxAgeMillis;
+    private SubKeyExtractor subKeyExtractor;
+    private Executor readAheadExecutor;
+    private Executor asyncPublishExecutor;
+    private boolean asyncSteadyHandoff = true;
+    private boolean dispatch;
+    private Executor dispatchExecutor;
+    private boolean virtualThreads;
+    private DurabilityMode durabilityMode = DurabilityMode.NONE;
+    private long fsyncIntervalNS;
+    private ScheduledExecutorService fsyncScheduler;
+    private KeyPathScheme keyPathScheme = KeyPathScheme.NAME_UUID;
+    private int keyPathFanOut;
+    private long routeIdleTimeoutNS;
+    private int maxRoutes;
+    private boolean reobserveEvictedKeys = true;
+    private long invalidRouteRetryNS = TimeUnit.SECONDS.toNanos(1);
+    private long spillQuotaPerKeyBytes;
+    private long spillQuotaTotalBytes;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long overflowBlockTimeoutNS = TimeUnit.SECONDS.toNanos(10);
+    private int latencySampling;
+
+    /**
+     * Enables group-commit for the slow-start buffer. Concurrent publishers append framed events into a shared
+     * staging buffer, which is written to the slow-start buffer in one sequential write when it fills or when the
+     * flush interval elapses after the first event is staged.
+     *
+     * @param batchSize     the size of the staging buffer in bytes. Events larger than this are written directly.
+     *                      Zero disables group-commit.
+     * @param flushInterval the longest an event waits in the staging buffer
+     * @param unit          the unit of <code>flushInterval</code>
+     * @return this config
+     */
+    public SlowStartConfig setGroupCommit(int batchSize, long flushInterval, TimeUnit unit) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize must not be negative");
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be positive");
+        }
+        this.groupCommitBatchSize = batchSize;
+        this.groupCommitFlushIntervalNS = unit.toNanos(flushInterval);
+        return this;
+    }
+
+    /**
+     * @return the group-commit batch size, which defaults to {@link #DEFAULT_COMPRESSION_BATCH_SIZE} when
+     * compression is enabled
+     */
+    public int getGroupCommitBatchSize() {
+        return groupCommitBatchSize == 0 && codec != null ? DEFAULT_COMPRESSION_BATCH_SIZE : groupCommitBatchSize;
+    }
+
+    /**
+     * Enables compression of the slow-start buffer. The batches staged by group-commit are each compressed into
+     * a block, so group-commit is enabled with a batch size of {@link #DEFAULT_COMPRESSION_BATCH_SIZE} unless
+     * configured otherwise. Batches that don't compress are written as they are.
+     * <p>
+     * The codec is recorded in the slow-start buffer, so a buffer left by a previous run with another codec, or
+     * with none, remains readable.
+     *
+     * @param codec the codec, such as one of {@link SpillCodecs}, or null to disable compression
+     * @return this config
+     */
+    public SlowStartConfig setCompression(SpillCodec codec) {
+        this.codec = codec;
+        return this;
+    }
+
+    public SpillCodec getCodec() {
+        return codec;
+    }
+
+    public long getGroupCommitFlushIntervalNS() {
+        return groupCommitFlushIntervalNS;
+    }
+
+    /**
+     * Selects a segmented slow-start buffer made of memory-mapped files of the given size instead of a single
+     * growing file. Segments are deleted one at a time as the drain moves past them.
+     *
+     * @param segmentSize the size of each segment file in bytes, or zero for a single file
+     * @return this config
+     */
+    public SlowStartConfig setSegmentSize(int segmentSize) {
+        if (segmentSize < 0) {
+            throw new IllegalArgumentException("segmentSize must not be negative");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Selects shared append logs for the slow-start buffers instead of a directory and files per key. Each key is
+     * assigned to one of the shards by its hash and its events are indexed in memory. A shard's segment files are
+     * deleted once every key with events in them has drained or been discarded.
+     * <p>
+     * This suits very high key counts. Since the index is only held in memory, a shared log can't be resumed
+     * after a restart.
+     *
+     * @param shards      the number of shared append logs, or zero for per-key storage
+     * @param segmentSize the size of each segment file of a shard in bytes
+     * @return this config
+     */
+    public SlowStartConfig setSharedLog(int shards, int segmentSize) {
+        if (shards < 0) {
+            throw new IllegalArgumentException("shards must not be negative");
+        }
+        if (shards > 0 && segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.sharedLogShards = shards;
+        this.sharedLogSegmentSize = segmentSize;
+        return this;
+    }
+
+    public int getSharedLogShards() {
+        return sharedLogShards;
+    }
+
+    public int getSharedLogSegmentSize() {
+        return sharedLogSegmentSize;
+    }
+
+    /**
+     * Enables an in-memory tier in front of the disk-based slow-start buffer. Each queue buffers up to
+     * <code>perKeyBytes</code> of framed events off-heap and only spills to disk once that is exceeded or the
+     * total budget is exhausted. A queue that becomes ready before spilling drains straight from memory and never
+     * creates its storage directory.
+     *
+     * @param perKeyBytes the most memory a single queue may use, or zero to disable the memory tier
+     * @param totalBytes  the memory budget shared by all queues of a {@link SlowStartEventRouter}. A queue created
+     *                    on its own has a budget of its own.
+     * @return this config
+     */
+    public SlowStartConfig setMemoryTier(int perKeyBytes, long totalBytes) {
+        if (perKeyBytes < 0 || totalBytes < 0) {
+            throw new IllegalArgumentException("perKeyBytes and totalBytes must not be negative");
+        }
+        this.memoryTierPerKeyBytes = perKeyBytes;
+        this.memoryTierTotalBytes = totalBytes;
+        return this;
+    }
+
+    public int getMemoryTierPerKeyBytes() {
+        return memoryTierPerKeyBytes;
+    }
+
+    public long getMemoryTierTotalBytes() {
+        return memoryTierTotalBytes;
+    }
+
+    /**
+     * Bounds the batches handed to a {@link BatchEventConsumer} while draining the slow-start buffer. A batch is
+     * delivered when either bound would be exceeded or when the drain has read everything available.
+     *
+     * @param maxEvents the most events in one batch
+     * @param maxBytes the most payload bytes in one batch, although a single larger event is delivered by itself
+     * @return this config
+     */
+    public SlowStartConfig setDrainBatchSize(int maxEvents, int maxBytes) {
+        if (maxEvents <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEvents and maxBytes must be positive");
+        }
+        this.drainBatchMaxEvents = maxEvents;
+        this.drainBatchMaxBytes = maxBytes;
+        return this;
+    }
+
+    public int getDrainBatchMaxEvents() {
+        return drainBatchMaxEvents;
+    }
+
+    public int getDrainBatchMaxBytes() {
+        return drainBatchMaxBytes;
+    }
+
+    /**
+     * Enables reuse of a single buffer for all events delivered by the drain of the slow-start buffer, so that
+     * draining doesn't allocate per event. When enabled, the payload given to
+     * {@link EventConsumer#consume(String, ByteBuffer)} is only valid until that call returns and must be copied
+     * if the consumer needs to retain it.
+     *
+     * @param reuseDrainBuffer true to reuse the drain buffer
+     * @return this config
+     */
+    public SlowStartConfig setReuseDrainBuffer(boolean reuseDrainBuffer) {
+        this.reuseDrainBuffer = reuseDrainBuffer;
+        return this;
+    }
+
+    public boolean isReuseDrainBuffer() {
+        return reuseDrainBuffer;
+    }
+
+    /**
+     * Limits how many slow-start buffers are drained at once, such as when many keys become ready together. The
+     * drains then run in steps of {@link #setDrainStepBytes(long) a bounded size} and the next step to run is
+     * picked by <code>priority</code>, so that one large backlog can't hold up the rest. The limit applies to all
+     * queues of a {@link SlowStartEventRouter}.
+     *
+     * @param maxConcurrent the most drains that run at once, or zero, the default, to run every drain in full as
+     *                      soon as its key is ready
+     * @param priority      picks which waiting drain runs next
+     * @return this config
+     */
+    public SlowStartConfig setDrainConcurrency(int maxConcurrent, DrainPriority priority) {
+        if (maxConcurrent < 0) {
+            throw new IllegalArgumentException("maxConcurrent must not be negative");
+        }
+        this.drainConcurrency = maxConcurrent;
+        this.drainPriority = priority;
+        return this;
+    }
+
+    public int getDrainConcurrency() {
+        return drainConcurrency;
+    }
+
+    public DrainPriority getDrainPriority() {
+        return drainPriority;
+    }
+
+    /**
+     * @param stepBytes the payload bytes a scheduled drain reads before yielding to other drains, which is 1MB by
+     *                  default
+     * @return this config
+     */
+    public SlowStartConfig setDrainStepBytes(long stepBytes) {
+        if (stepBytes <= 0) {
+            throw new IllegalArgumentException("stepBytes must be positive");
+        }
+        this.drainStepBytes = stepBytes;
+        return this;
+    }
+
+    public long getDrainStepBytes() {
+        return drainStepBytes;
+    }
+
+    /**
+     * Limits the rate at which all drains together read from slow-start buffers, which leaves disk bandwidth for
+     * spilling. Like {@link #setDrainConcurrency(int, DrainPriority)}, this runs drains in steps.
+     *
+     * @param bytesPerSecond the payload bytes per second, or zero, the default, for no limit
+     * @return this config
+     */
+    public SlowStartConfig setDrainReadRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond must not be negative");
+        }
+        this.drainReadRate = bytesPerSecond;
+        return this;
+    }
+
+    public long getDrainReadRate() {
+        return drainReadRate;
+    }
+
+    /**
+     * Enables reading the slow-start buffer ahead of the drain, using a shared pool of daemon threads. See
+     * {@link #setDrainReadAhead(int, Executor)}.
+     *
+     * @param chunkSize the size of each read-ahead chunk, or zero to disable read-ahead
+     * @return this config
+     */
+    public SlowStartConfig setDrainReadAhead(int chunkSize) {
+        return setDrainReadAhead(chunkSize, null);
+    }
+
+    /**
+     * Enables reading the slow-start buffer ahead of the drain. The buffer is read in chunks of the given size
+     * into two alternating buffers, one being loaded by the I/O executor while the drain parses events out of the
+     * other and delivers them, so that disk reads overlap with the consumer. This mostly benefits the single-file
+     * slow-start buffer, which otherwise takes two small reads per event. Each draining queue holds two chunks.
+     *
+     * @param chunkSize  the size of each read-ahead chunk, or zero to disable read-ahead
+     * @param ioExecutor loads the chunks. This must not be the executor that runs the drain, unless it has a
+     *                   thread to spare for each draining queue. Null selects a shared pool of daemon threads.
+     * @return this config
+     */
+    public SlowStartConfig setDrainReadAhead(int chunkSize, Executor ioExecutor) {
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("chunkSize must not be negative");
+        }
+        this.drainReadAheadSize = chunkSize;
+        this.readAheadExecutor = ioExecutor;
+        return this;
+    }
+
+    public int getDrainReadAheadSize() {
+        return drainReadAheadSize;
+    }
+
+    public Executor getReadAheadExecutor() {
+        if (readAheadExecutor != null) {
+            return readAheadExecutor;
+        }
+        return virtualThreads ? VirtualThreads.perTask("slowstart-read-ahead-") : DefaultReadAheadExecutor.INSTANCE;
+    }
+
+    /**
+     * Selects when spilled events are forced to disk, trading publish latency for what survives a power failure.
+     * By default they never are. The memory tier, when enabled, is held in memory regardless.
+     * <p>
+     * The cost can be observed by the fsync time of {@link SlowStartEventQueueMXBean} and
+     * {@link SlowStartEventRouterMXBean}.
+     *
+     * @param mode          when spilled events are forced
+     * @param fsyncInterval the interval of {@link DurabilityMode#PERIODIC}, otherwise ignored
+     * @param unit          the unit of <code>fsyncInterval</code>
+     * @return this config
+     */
+    public SlowStartConfig setDurability(DurabilityMode mode, long fsyncInterval, TimeUnit unit) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode is required");
+        }
+        if (mode == DurabilityMode.PERIODIC && fsyncInterval <= 0) {
+            throw new IllegalArgumentException("fsyncInterval must be positive");
+        }
+        this.durabilityMode = mode;
+        this.fsyncIntervalNS = unit.toNanos(fsyncInterval);
+        return this;
+    }
+
+    public DurabilityMode getDurabilityMode() {
+        return durabilityMode;
+    }
+
+    public long getFsyncIntervalNS() {
+        return fsyncIntervalNS;
+    }
+
+    /**
+     * @param fsyncScheduler runs the forces of {@link DurabilityMode#PERIODIC}, which are shared by all queues of a
+     *                       {@link SlowStartEventRouter}. Since forcing blocks on the disk, this is kept apart from
+     *                       {@link #setScheduler(ScheduledExecutorService) the scheduler}. When not set, a shared
+     *                       single daemon thread is used.
+     * @return this config
+     */
+    public SlowStartConfig setFsyncScheduler(ScheduledExecutorService fsyncScheduler) {
+        this.fsyncScheduler = fsyncScheduler;
+        return this;
+    }
+
+    public ScheduledExecutorService getFsyncScheduler() {
+        return fsyncScheduler != null ? fsyncScheduler : DefaultFsyncScheduler.INSTANCE;
+    }
+
+    /**
+     * Selects how each key's storage directory under the storage path is named. By default, directories are
+     * named by {@link KeyPathScheme#NAME_UUID} directly within the storage path. Fan-out places them under
+     * levels of intermediate directories named by the leading hex digits of the name, so that no one directory
+     * holds millions of entries. Intermediate directories are left in place once created.
+     * <p>
+     * Recovery of a previous run's slow-start buffers only finds them when using the same fan-out.
+     *
+     * @param scheme       derives the name of a key's directory
+     * @param fanOutLevels the number of intermediate directory levels, each with up to 256 directories, from zero
+     *                     to four
+     * @return this config
+     */
+    public SlowStartConfig setKeyPaths(KeyPathScheme scheme, int fanOutLevels) {
+        if (fanOutLevels < 0 || fanOutLevels > KeyPathScheme.MAX_FAN_OUT_LEVELS) {
+            throw new IllegalArgumentException("fanOutLevels must be from 0 to " + KeyPathScheme.MAX_FAN_OUT_LEVELS);
+        }
+        this.keyPathScheme = scheme;
+        this.keyPathFanOut = fanOutLevels;
+        return this;
+    }
+
+    public KeyPathScheme getKeyPathScheme() {
+        return keyPathScheme;
+    }
+
+    public int getKeyPathFanOut() {
+        return keyPathFanOut;
+    }
+
+    /**
+     * Tunes {@link SlowStartEventQueue#publishAsync(java.nio.ByteBuffer)}. By default, asynchronous publishes run
+     * on a shared pool with a daemon thread per processor and steady-state events are handed off to it as well.
+     *
+     * @param executor      runs the spills and, unless <code>steadyHandoff</code> is false, steady-state
+     *                      deliveries of asynchronous publishes. Null selects the shared pool.
+     * @param steadyHandoff false to deliver a steady-state event to the consumer on the publishing thread whenever
+     *                      no earlier asynchronous publish of the key is still in progress
+     * @return this config
+     */
+    public SlowStartConfig setAsyncPublish(Executor executor, boolean steadyHandoff) {
+        this.asyncPublishExecutor = executor;
+        this.asyncSteadyHandoff = steadyHandoff;
+        return this;
+    }
+
+    public Executor getAsyncPublishExecutor() {
+        if (asyncPublishExecutor != null) {
+            return asyncPublishExecutor;
+        }
+        return virtualThreads ? VirtualThreads.perTask("slowstart-publisher-") : DefaultAsyncPublishExecutor.INSTANCE;
+    }
+
+    public boolean isAsyncSteadyHandoff() {
+        return asyncSteadyHandoff;
+    }
+
+    /**
+     * Bounds the switch from draining to pass-through. Once the drain is within <code>maxBytes</code> of the end
+     * of the slow-start buffer, events published meanwhile are handed to an in-memory tail instead of being
+     * written, so the drain only has to finish what was already written and then deliver the tail, rather than
+     * chase a busy key's publishers through the slow-start buffer. Ordering is unaffected. Each event handed to the
+     * tail is copied, and publishers wait no longer than the {@link #setOverflowBlockTimeout(long, TimeUnit)
+     * overflow block timeout} for room in the tail or for the drain to finish it.
+     *
+     * @param maxBytes how close to the end the drain needs to be, and how many payload bytes the tail may hold
+     *                 before publishers wait for the drain to deliver from it. Zero, the default, keeps writing to
+     *                 the slow-start buffer until the drain catches up.
+     * @return this config
+     */
+    public SlowStartConfig setTailHandoff(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.tailHandoffBytes = maxBytes;
+        return this;
+    }
+
+    public int getTailHandoffBytes() {
+        return tailHandoffBytes;
+    }
+
+    /**
+     * Skips events that are older than <code>maxAge</code> by the time the drain reaches them, which suits events
+     * that no longer matter after a long wait for readiness. Expired events are seeked past without reading or
+     * checksumming their payloads and are counted by {@link SlowStartEventQueue.Stats#getExpired()}.
+     * <p>
+     * The age is taken from the wall-clock time each event was published, so it carries over to slow-start buffers
+     * recovered from a previous run. Events recovered from buffers written before publish times were recorded
+     * never expire.
+     *
+     * @param maxAge the age after which events are skipped, or zero, the default, to deliver every event
+     * @param unit   the unit of <code>maxAge</code>
+     * @return this config
+     */
+    public SlowStartConfig setMaxAge(long maxAge, TimeUnit unit) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge must not be negative");
+        }
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        return this;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Enables last-value compaction for streams of state updates, where only the latest event of each entity
+     * matters. Each queue counts the events of each sub-key that are spilled and not yet drained, and the drain
+     * skips an event when a later one of the same sub-key is still pending. The events that are delivered keep
+     * their original order, and skipped events are counted by {@link SlowStartEventQueue.Stats#getCompacted()}.
+     * <p>
+     * Only events written to the slow-start buffer are compacted, so events handed to the in-memory tail or passed
+     * through are always delivered. Events skipped for their {@link #setMaxAge(long, TimeUnit) age} or dropped by
+     * {@link OverflowPolicy#DROP_OLDEST} are read rather than seeked past, since their sub-keys are needed.
+     *
+     * @param extractor gives the sub-key of each event, or null, the default, to deliver every event
+     * @return this config
+     */
+    public SlowStartConfig setCompaction(SubKeyExtractor extractor) {
+        this.subKeyExtractor = extractor;
+        return this;
+    }
+
+    public SubKeyExtractor getSubKeyExtractor() {
+        return subKeyExtractor;
+    }
+
+    /**
+     * Delivers events to the consumer on a pool of workers rather than on the publishing thread while steady and
+     * on the drain's executor before that. Each key's events are queued without locking and consumed one at a
+     * time in their original order, including across the switch from draining to pass-through, while the events
+     * of different keys are consumed in parallel. This keeps a slow consumer from holding up publishers and gives
+     * the consumer the same threading in every phase.
+     * <p>
+     * Since publishing no longer waits for the consumer, passed-through payloads are copied, drain buffer reuse
+     * is not applied, and an exception thrown by the consumer is logged rather than thrown to the publisher.
+     * Events waiting for a busy consumer are held in memory.
+     *
+     * @param dispatch true to dispatch events to the consumer
+     * @param executor the workers, or null for a shared pool with a daemon thread per available processor
+     * @return this config
+     */
+    public SlowStartConfig setDispatch(boolean dispatch, Executor executor) {
+        this.dispatch = dispatch;
+        this.dispatchExecutor = executor;
+        return this;
+    }
+
+    public boolean isDispatch() {
+        return dispatch;
+    }
+
+    public Executor getDispatchExecutor() {
+        if (dispatchExecutor != null) {
+            return dispatchExecutor;
+        }
+        return virtualThreads ? VirtualThreads.perTask("slowstart-dispatch-") : DefaultDispatchExecutor.INSTANCE;
+    }
+
+    /**
+     * Runs each drain on its own virtual thread, in place of the executor given to the queue or router, so that
+     * thousands of keys becoming ready at once don't call for a pool of platform threads sized for the drains'
+     * blocking reads. Read-ahead, asynchronous publishes and dispatch also get a virtual thread per task, unless
+     * given their own executor.
+     * <p>
+     * This needs Java 21 or later, where the multi-release jar provides virtual threads. The drain and publish
+     * paths don't block inside <code>synchronized</code>, so they don't pin carrier threads.
+     *
+     * @param virtualThreads true to use virtual threads
+     * @return this config
+     * @throws UnsupportedOperationException if enabled before Java 21
+     */
+    public SlowStartConfig setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Limits how much can be held in slow-start buffers, counted as the framed size of events spilled and not yet
+     * drained. Without a limit, the slow-start buffer of a key whose readiness never comes grows until the disk is
+     * full.
+     *
+     * @param perKeyBytes the most bytes held for a single queue, or zero for no per-key limit
+     * @param totalBytes  the most bytes held across all queues of a {@link SlowStartEventRouter}, or zero for no
+     *                    overall limit. A queue created on its own has a limit of its own.
+     * @param policy      what to do with an event that would exceed either limit
+     * @return this config
+     */
+    public SlowStartConfig setSpillQuota(long perKeyBytes, long totalBytes, OverflowPolicy policy) {
+        if (perKeyBytes < 0 || totalBytes < 0) {
+            throw new IllegalArgumentException("perKeyBytes and totalBytes must not be negative");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy is required");
+        }
+        this.spillQuotaPerKeyBytes = perKeyBytes;
+        this.spillQuotaTotalBytes = totalBytes;
+        this.overflowPolicy = policy;
+        return this;
+    }
+
+    public long getSpillQuotaPerKeyBytes() {
+        return spillQuotaPerKeyBytes;
+    }
+
+    public long getSpillQuotaTotalBytes() {
+        return spillQuotaTotalBytes;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param timeout how long {@link OverflowPolicy#BLOCK} blocks a publisher, which is ten seconds by default.
+     *                This also bounds how long a publisher waits on the {@link #setTailHandoff(int) tail}.
+     * @param unit    the unit of <code>timeout</code>
+     * @return this config
+     */
+    public SlowStartConfig setOverflowBlockTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.overflowBlockTimeoutNS = unit.toNanos(timeout);
+        return this;
+    }
+
+    public long getOverflowBlockTimeoutNS() {
+        return overflowBlockTimeoutNS;
+    }
+
+    /**
+     * Enables the publish latency histograms of {@link SlowStartEventQueueMXBean} and
+     * {@link SlowStartEventRouterMXBean}. Sampling keeps the cost of timing off most publishes, and the
+     * histograms themselves are lock-free.
+     *
+     * @param everyN one in how many publishes, chosen at random, is timed. One times every publish and zero,
+     *               the default, disables publish latencies.
+     * @return this config
+     */
+    public SlowStartConfig setLatencySampling(int everyN) {
+        if (everyN < 0) {
+            throw new IllegalArgumentException("everyN must not be negative");
+        }
+        this.latencySampling = everyN;
+        return this;
+    }
+
+    public int getLatencySampling() {
+        return latencySampling;
+    }
+
+    /**
+     * Enables eviction of routes by {@link SlowStartEventRouter} once no event has been routed to them for the
+     * given time. Only routes that have finished draining, and so hold no slow-start buffer, are evicted; along
+     * with the route, its stats and its empty storage directory are released. Eviction is carried out
+     * periodically on the {@link #setScheduler(ScheduledExecutorService) scheduler}, so idle routes may linger
+     * for up to half the timeout beyond it.
+     *
+     * @param idleTimeout how long a route may go unused, or zero to never evict idle routes
+     * @param unit        the unit of <code>idleTimeout</code>
+     * @return this config
+     */
+    public SlowStartConfig setRouteIdleTimeout(long idleTimeout, TimeUnit unit) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout must not be negative");
+        }
+        this.routeIdleTimeoutNS = unit.toNanos(idleTimeout);
+        return this;
+    }
+
+    public long getRouteIdleTimeoutNS() {
+        return routeIdleTimeoutNS;
+    }
+
+    /**
+     * Bounds the number of routes held by {@link SlowStartEventRouter}. When exceeded, the least recently used
+     * routes that have finished draining are evicted. Routes that are still in slow-start are never evicted, so
+     * the bound can be exceeded while many keys are awaiting readiness.
+     *
+     * @param maxRoutes the most routes to hold, or zero for no bound
+     * @return this config
+     */
+    public SlowStartConfig setMaxRoutes(int maxRoutes) {
+        if (maxRoutes < 0) {
+            throw new IllegalArgumentException("maxRoutes must not be negative");
+        }
+        this.maxRoutes = maxRoutes;
+        return this;
+    }
+
+    public int getMaxRoutes() {
+        return maxRoutes;
+    }
+
+    /**
+     * Selects what happens when {@link SlowStartEventRouter} sees a key again after evicting its route. By default
+     * the key is treated as new and {@link NewKeyObserver#observeNewKey(String)} is called again. Otherwise, the
+     * router remembers evicted keys, at the cost of retaining each key, and their routes are re-created already
+     * ready.
+     *
+     * @param reobserveEvictedKeys false to skip observing keys that were previously evicted
+     * @return this config
+     */
+    public SlowStartConfig setReobserveEvictedKeys(boolean reobserveEvictedKeys) {
+        this.reobserveEvictedKeys = reobserveEvictedKeys;
+        return this;
+    }
+
+    public boolean isReobserveEvictedKeys() {
+        return reobserveEvictedKeys;
+    }
+
+    /**
+     * When the slow-start buffer of a key fails to open, such as when its storage directory can't be created,
+     * publishing or routing to that key fails until this backoff elapses, after which opening it is retried. The
+     * backoff doubles with each consecutive failure, up to 64 times the given value. A router likewise waits this
+     * long before replacing the route of a key whose drain was aborted.
+     *
+     * @param backoff the initial time before retrying, which is one second by default
+     * @param unit    the unit of <code>backoff</code>
+     * @return this config
+     */
+    public SlowStartConfig setInvalidRouteRetry(long backoff, TimeUnit unit) {
+        if (backoff <= 0) {
+            throw new IllegalArgumentException("backoff must be positive");
+        }
+        this.invalidRouteRetryNS = unit.toNanos(backoff);
+        return this;
+    }
+
+    public long getInvalidRouteRetryNS() {
+        return invalidRouteRetryNS;
+    }
+
+    /**
+     * @param scheduler used for timed background work, such as group-commit flushes and route eviction. When not
+     *                  set, a shared single daemon thread is used.
+     * @return this config
+     */
+    public SlowStartConfig setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler != null ? scheduler : DefaultScheduler.INSTANCE;
+    }
+
+    private static class DefaultScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "slowstart-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class DefaultFsyncScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "slowstart-fsync");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class DefaultReadAheadExecutor {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "slowstart-read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static class DefaultDispatchExecutor {
+        static final Executor INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    final Thread thread = new Thread(r, "slowstart-dispatch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Bounded in threads and in queued runs, so that a burst of asynchronous publishes can't create a thread per
+     * key. Each key queues at most one run at a time, and a run that is rejected fails the publish that started it.
+     */
+    private static class DefaultAsyncPublishExecutor {
+        private static final int MAX_QUEUED_RUNS = 4096;
+
+        static final Executor INSTANCE;
+
+        static {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED_RUNS), r -> {
+                        final Thread thread = new Thread(r, "slowstart-publisher");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            INSTANCE = pool;
+        }
+    }
+}
@@ -1,18 +1,31 @@
 package me.itzg.slowstart;
 
-import com.fasterxml.uuid.Generators;
-import com.fasterxml.uuid.impl.NameBasedGenerator;
-
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
 import java.util.zip.Adler32;
 
@@ -26,14 +39,22 @@ import java.util.zip.Adler32;
  * @author Geoff Bourne
  */
 public class SlowStartEventQueue {
-    private volatile IOException lastException;
+    private static final int MAX_RETRY_BACKOFF_SHIFT = 6;
 
     public static class Stats {
-        long timeToDrainNS;
+        volatile long timeToDrainNS;
+        volatile long drainStartNS;
         LongAdder preReady = new LongAdder();
         LongAdder preDrained = new LongAdder();
         LongAdder total = new LongAdder();
         LongAdder drained = new LongAdder();
+        LongAdder drainedBytes = new LongAdder();
+        LongAdder dropped = new LongAdder();
+        LongAdder spilledBytes = new LongAdder();
+        LongAdder backlog = new LongAdder();
+        LongAdder checksumFailures = new LongAdder();
+        LongAdder expired = new LongAdder();
+        LongAdder compacted = new LongAdder();
 
         public long getPreReady() {
             return preReady.sum();
@@ -51,31 +72,264 @@ public class SlowStartEventQueue {
             return drained.sum();
         }
 
+        /**
+         * @return the payload bytes of the drained events
+         */
+        public long getDrainedBytes() {
+            return drainedBytes.sum();
+        }
+
         public long getTimeToDrainNS() {
             return timeToDrainNS;
         }
+
+        /**
+         * @return the number of events dropped due to the spill quota
+         */
+        public long getDropped() {
+            return dropped.sum();
+        }
+
+        /**
+         * @return the framed size of events currently held in the slow-start buffer, which is what counts
+         * towards the spill quota
+         */
+        public long getSpilledBytes() {
+            return spilledBytes.sum();
+        }
+
+        /**
+         * @return the number of events spilled and not yet drained or dropped. Events recovered from a previous
+         * run are not counted.
+         */
+        public long getBacklogEvents() {
+            return Math.max(backlog.sum(), 0);
+        }
+
+        /**
+         * @return the number of events and compressed blocks that were skipped by the drain since they failed
+         * their checksum
+         */
+        public long getChecksumFailures() {
+            return checksumFailures.sum();
+        }
+
+        /**
+         * @return the number of events that the drain skipped since they were older than
+         * {@link SlowStartConfig#setMaxAge(long, TimeUnit) the max age}
+         */
+        public long getExpired() {
+            return expired.sum();
+        }
+
+        /**
+         * @return the number of drained events that weren't delivered since a later event of the same sub-key was
+         * pending, with {@link SlowStartConfig#setCompaction(SubKeyExtractor) compaction}
+         */
+        public long getCompacted() {
+            return compacted.sum();
+        }
+
+        /**
+         * @return the rate of the drain, while in progress or once completed, or zero if it hasn't started
+         */
+        public double getDrainEventsPerSecond() {
+            return perSecond(drained.sum());
+        }
+
+        /**
+         * @return the rate of the drain in payload bytes, while in progress or once completed, or zero if it
+         * hasn't started
+         */
+        public double getDrainBytesPerSecond() {
+            return perSecond(drainedBytes.sum());
+        }
+
+        private double perSecond(long count) {
+            final long startNS = drainStartNS;
+            if (startNS == 0) {
+                return 0;
+            }
+            final long timeToDrain = timeToDrainNS;
+            final long elapsedNS = timeToDrain > 0 ? timeToDrain : System.nanoTime() - startNS;
+            return elapsedNS > 0 ? count * 1e9 / elapsedNS : 0;
+        }
+    }
+
+    /**
+     * Each frame in the slow-start buffer starts with a length and a 64-bit word. For an event, the word holds the
+     * {@link #RECORD_FORMAT format} of its header in the top byte, per-record flags in the next three bytes and the
+     * Adler-32 checksum of the payload in the low four bytes. Events written before the format was versioned have
+     * a zero top byte and a header of only this size.
+     */
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    /**
+     * The header of an event of the current format, which is followed by the wall-clock millis it was published.
+     */
+    static final int RECORD_HEADER_SIZE = HEADER_SIZE + Long.BYTES;
+    static final int RECORD_FORMAT = 2;
+    /**
+     * No per-record flags are defined yet, so they are written as zero and ignored when read.
+     */
+    private static final int RECORD_FLAGS = 0;
+    /**
+     * In place of a length, this marks a header that carries the id of a {@link SpillCodec} in place of a
+     * checksum. The codec applies to the compressed blocks that follow. A compressed block is framed by its
+     * negated length and its checksum, and starts with its uncompressed length.
+     */
+    static final int CODEC_MARKER = Integer.MIN_VALUE;
+    private static final int MIN_DRAIN_BUFFER_SIZE = 4096;
+
+    /**
+     * Holds the name of the key in its storage directory, since the directory's name can't be reversed.
+     */
+    static final String KEY_FILE = "key";
+    static final String STORE_FILE = "store.dat";
+
+    /**
+     * Per-thread scratch space used to frame events while spilling, which avoids allocating per event.
+     */
+    private static final class SpillFrame {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        final Adler32 adler32 = new Adler32();
+        final ByteBuffer[] srcs = {header, null};
     }
 
-    private static final NameBasedGenerator keyUuidGen = Generators.nameBasedGenerator();
+    private static final ThreadLocal<SpillFrame> spillFrames = ThreadLocal.withInitial(SpillFrame::new);
 
     private static final Logger log = Logger.getLogger(SlowStartEventQueue.class.getName());
 
     private final Stats stats = new Stats();
-    private final Path storePath;
+    private final Path storagePath;
+    /**
+     * Resolved when the key's storage directory is first needed, which is only once events are spilled to disk.
+     */
+    private volatile Path keyStoragePath;
     private final String key;
     private final Executor executor;
     private final EventConsumer consumer;
+    private final SlowStartConfig config;
+    private final SharedResources shared;
+    private final SlowStartMetrics metrics;
+    /**
+     * One in this many publishes has its latency recorded, or none if zero.
+     */
+    private final int latencySampling;
 
     private static final int STATE_INITIAL = 0;
     private static final int STATE_PENDING_SLOW_START = 1;
     private static final int STATE_SLOW_START = 2;
     private static final int STATE_DRAINING = 3;
-    private static final int STATE_DRAIN_DONE = 4;
-    private static final int STATE_STEADY = 5;
+    /**
+     * The drain is finishing what was written to the slow-start buffer, while publishers hand events to the
+     * in-memory tail.
+     */
+    private static final int STATE_TAIL = 4;
+    /**
+     * The drain is delivering what's left of the tail, while publishers wait to pass events through.
+     */
+    private static final int STATE_TAIL_SEALED = 5;
+    private static final int STATE_DRAIN_DONE = 6;
+    private static final int STATE_STEADY = 7;
+    /**
+     * The backlog was handed to another router, so nothing more is published to this queue.
+     */
+    private static final int STATE_EXPORTED = 8;
+    /**
+     * The drain was aborted by an I/O failure or by the consumer throwing, so publishing fails from here on. The
+     * slow-start buffer is left in place, so that what it holds can be recovered, such as by the router
+     * {@link #retire() retiring} the queue.
+     */
+    private static final int STATE_FAILED = 9;
     private AtomicInteger state = new AtomicInteger();
+    private volatile boolean readyRequested;
+    private volatile long readyNS;
+    private volatile long slowStartNS;
+    /**
+     * Maintained by the router, in terms of its coarse clock, to find idle routes.
+     */
+    volatile long lastRoutedNS;
+    /**
+     * Set by the publisher that failed to open the slow-start buffer, ahead of returning to
+     * {@link #STATE_INITIAL}: the failure, the number of consecutive failures and when opening may be retried.
+     */
+    private Exception openFailure;
+    private int openFailures;
+    private long retryOpenAfterNS;
+    private final ReentrantReadWriteLock spillLock = new ReentrantReadWriteLock();
+    private static final AtomicReferenceFieldUpdater<SlowStartEventQueue, SerialExecutor> PUBLISH_SERIAL =
+            AtomicReferenceFieldUpdater.newUpdater(SlowStartEventQueue.class, SerialExecutor.class, "publishSerial");
+    /**
+     * Orders asynchronous publishes. Null until the first one that can't be carried out straight away, since most
+     * queues never publish asynchronously.
+     */
+    private volatile SerialExecutor publishSerial;
+    /**
+     * Null unless {@link SlowStartConfig#setDispatch(boolean, Executor) dispatch} is configured, in which case it
+     * delivers this key's events to the consumer in the order they are handed to it.
+     */
+    private final SerialExecutor dispatchSerial;
+    /**
+     * Drained payloads can only be reused when the consumer is done with them once it returns.
+     */
+    private final boolean reuseDrainBuffer;
 
-    private volatile FileChannel slowStoreIn;
-    private FileChannel slowStoreOut;
+    private volatile SlowStore slowStore;
+    /**
+     * Completed by the first publisher once it has opened the slow-start buffer, or exceptionally if that failed.
+     * Only set while in {@link #STATE_PENDING_SLOW_START} due to a publish.
+     */
+    private volatile CompletableFuture<Void> slowStoreOpening;
+    private volatile GroupCommitWriter groupCommitWriter;
+    /**
+     * Null unless a {@link DurabilityMode} other than NONE is configured.
+     */
+    private volatile StoreSync storeSync;
+    /**
+     * Events published during {@link #STATE_TAIL}, each a copy owned by the queue, which the drain delivers after
+     * the slow-start buffer.
+     */
+    private final Queue<ByteBuffer> tail = new ConcurrentLinkedQueue<>();
+    private final AtomicLong tailBytes = new AtomicLong();
+    /**
+     * Signalled by the drain as it delivers from the tail and as the tail changes state, for publishers waiting
+     * on either.
+     */
+    private final ReentrantLock tailLock = new ReentrantLock();
+    private final Condition tailChanged = tailLock.newCondition();
+    private volatile Throwable drainFailure;
+    /**
+     * When the router may retire this queue once its drain was aborted.
+     */
+    private volatile long retryDrainAfterNS;
+    private ByteBuffer drainBuffer;
+
+    /**
+     * Null unless a per-key spill quota is configured.
+     */
+    private final ByteBudget keySpillBudget;
+    /**
+     * Held by the drain for its whole run and by publishers discarding the oldest events, since both read the
+     * slow-start buffer.
+     */
+    private final ReentrantLock readLock = new ReentrantLock();
+    /**
+     * Owned by whoever holds {@link #readLock}.
+     */
+    private final FrameReader frameReader;
+    /**
+     * Reads the payloads of events that are skipped while compacting. Owned by whoever holds {@link #readLock}.
+     */
+    private ByteBuffer skipBuffer;
+    /**
+     * Null unless {@link SlowStartConfig#setCompaction(SubKeyExtractor) compaction} is configured.
+     */
+    private final CompactionIndex compaction;
+    /**
+     * What {@link #frameReader} held when the queue was sealed for export, which precedes the unread content of
+     * the slow-start buffer.
+     */
+    private ByteBuffer exportedFrames;
 
     /**
      * Creates a queue that can immediately accept calls to {@link #publish(ByteBuffer)}; however, it starts
@@ -87,48 +341,148 @@ public class SlowStartEventQueue {
      *                    consumer instance to be shared across multiple {@link SlowStartEventQueue}.
      *                    This consumer may either
      *                    be invoked within a thread from <code>executor</code> or within the calling thread depending on
-     *                    the phase of the queue.
+     *                    the phase of the queue, unless {@link SlowStartConfig#setDispatch(boolean, Executor)
+     *                    dispatch} is configured.
      * @param storagePath the path under which key-specific start-start buffer directories are created. This directory
-     *                    and its parents will be created, if absent
-     * @param executor    used for executing the slow-start draining thread
-     * @throws IOException when the key-specific slow-start buffer directory cannot be created
+     *                    and its parents will be created, if absent, once the first event is spilled
+     * @param executor    used for executing the slow-start draining thread, unless
+     *                    {@link SlowStartConfig#setVirtualThreads(boolean) virtual threads} are configured
      */
-    public SlowStartEventQueue(String key, EventConsumer consumer, Path storagePath, Executor executor) throws IOException {
+    public SlowStartEventQueue(String key, EventConsumer consumer, Path storagePath, Executor executor) {
+        this(key, consumer, storagePath, executor, new SlowStartConfig());
+    }
+
+    /**
+     * Creates a queue just like {@link #SlowStartEventQueue(String, EventConsumer, Path, Executor)}, but with
+     * additional tuning.
+     *
+     * @param config tuning of the slow-start buffer. With the memory tier enabled, the key's directory is only
+     *               created upon spilling to disk, and with the shared log it is never created.
+     */
+    public SlowStartEventQueue(String key, EventConsumer consumer, Path storagePath, Executor executor,
+                               SlowStartConfig config) {
+        this(key, consumer, storagePath, executor, config, new SharedResources(config, storagePath));
+    }
+
+    /**
+     * Used by the router to share resources, such as the memory budget, across its queues.
+     */
+    SlowStartEventQueue(String key, EventConsumer consumer, Path storagePath, Executor executor,
+                        SlowStartConfig config, SharedResources shared) {
         this.key = key;
-        this.executor = executor;
+        this.executor = config.isVirtualThreads() ? VirtualThreads.perTask("slowstart-drain-") : executor;
         this.consumer = consumer;
-        final Path keyStoragePath = storagePath.resolve(keyUuidGen.generate(key).toString());
-        Files.createDirectories(keyStoragePath);
+        this.config = config;
+        this.shared = shared;
+        metrics = shared.metrics;
+        latencySampling = config.getLatencySampling();
+        keySpillBudget = config.getSpillQuotaPerKeyBytes() > 0 ?
+                new ByteBudget(config.getSpillQuotaPerKeyBytes()) : null;
+        frameReader = new FrameReader(config.getCodec(), this::countChecksumFailure);
+        compaction = config.getSubKeyExtractor() != null ? new CompactionIndex(config.getSubKeyExtractor()) : null;
+        dispatchSerial = config.isDispatch() ? new SerialExecutor(config.getDispatchExecutor()) : null;
+        reuseDrainBuffer = config.isReuseDrainBuffer() && dispatchSerial == null;
+        this.storagePath = storagePath;
+    }
+
+    /**
+     * Used by the router to count failed routes.
+     *
+     * @return true if the slow-start buffer failed to open and publishes fail until opening is retried
+     */
+    boolean isFailed() {
+        final int current = state.get();
+        return current == STATE_FAILED || current == STATE_INITIAL && openFailure != null;
+    }
 
-        storePath = keyStoragePath.resolve("store.dat");
+    /**
+     * Used by the router to find routes to {@link #retire()}, so that a key whose drain was aborted doesn't fail
+     * forever. Like opening the slow-start buffer, this is only retried after
+     * {@link SlowStartConfig#setInvalidRouteRetry(long, TimeUnit) a backoff}.
+     *
+     * @return true if the drain was aborted and the backoff has elapsed
+     */
+    boolean isRetryDue() {
+        return state.get() == STATE_FAILED && System.nanoTime() - retryDrainAfterNS >= 0;
+    }
+
+    /**
+     * Used by the router to replace this queue after its drain was aborted. The slow-start buffer is made durable
+     * and released, but left in place for {@link StorageRecovery} to resume in the replacement. Since the position
+     * of the drain isn't recovered, events delivered ahead of the failure are delivered again. Publishing to this
+     * queue keeps failing.
+     *
+     * @return the storage directory left for the replacement to recover, or null if this queue wasn't retired
+     */
+    Path retire() {
+        spillLock.writeLock().lock();
+        try {
+            final SlowStore store = slowStore;
+            if (state.get() != STATE_FAILED || store == null) {
+                return null;
+            }
+            slowStore = null;
+            try {
+                final StoreSync sync = storeSync;
+                if (sync != null) {
+                    sync.syncAll();
+                }
+                else if (groupCommitWriter != null) {
+                    groupCommitWriter.flush();
+                }
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to force the slow-start buffer of retired key " + key, e);
+            }
+            if (groupCommitWriter != null) {
+                groupCommitWriter.close();
+            }
+            try {
+                store.release();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Unable to release the slow-start buffer of retired key " + key, e);
+            }
+            releaseSpillQuota(stats.spilledBytes.sumThenReset());
+            stats.backlog.reset();
+            return keyStoragePath;
+        } finally {
+            spillLock.writeLock().unlock();
+        }
     }
 
     /**
-     * Used only to create a purposely non-functional queue to propagate errors during creation.
-     * @param e
+     * Used by the router to find routes that can be evicted.
+     *
+     * @return true if events are passed straight through and the slow-start buffer, if any, has been released
      */
-    SlowStartEventQueue(IOException e) {
-        key = null;
-        executor = null;
-        consumer = null;
-        storePath = null;
-        this.lastException = e;
+    boolean isSteady() {
+        return state.get() == STATE_STEADY;
     }
 
     /**
-     * Used for the router to recall the reason for invalid queue creation.
-     * @return the exception passed at creation or null if this queue is valid
+     * Used by the router to avoid evicting a route whose asynchronous publishes or dispatched events are still in
+     * flight, since events of its replacement could overtake them.
+     *
+     * @return true if no asynchronous publish is in progress and every dispatched event has been consumed
      */
-    IOException getLastException() {
-        return lastException;
+    boolean isAsyncIdle() {
+        final SerialExecutor serial = publishSerial;
+        return (serial == null || serial.isIdle()) && (dispatchSerial == null || dispatchSerial.isIdle());
     }
 
     /**
-     * Used by the router to see if a non-functional queue was created.
-     * @return true if valid for use
+     * Called by the router after evicting this steady queue, or exporting its backlog, to remove its, by now empty,
+     * storage directory.
      */
-    boolean isValid() {
-        return key != null;
+    void releaseStorage() {
+        final Path keyStoragePath = this.keyStoragePath;
+        if (keyStoragePath != null && Files.isDirectory(keyStoragePath)) {
+            try {
+                Files.deleteIfExists(keyStoragePath.resolve(KEY_FILE));
+                Files.deleteIfExists(keyStoragePath);
+            } catch (IOException e) {
+                log.log(Level.FINE, "Unable to remove storage directory of evicted route " + keyStoragePath, e);
+            }
+        }
     }
 
     /**
@@ -136,7 +490,10 @@ public class SlowStartEventQueue {
      * to the slow-start buffer and/or passed directly to the <code>consumer</code>. This method is thread-safe.
      *
      * @param payload the opaque content of the event that needs to be rewound prior to this call
-     * @throws IOException if the slow-start buffer is currently in use and an I/O operation fails
+     * @throws IOException if the slow-start buffer is currently in use and an I/O operation fails, or if its
+     *                     drain was aborted
+     * @throws SpillQuotaExceededException if the event would exceed the configured spill quota and the
+     *                                     {@link OverflowPolicy} rejects it
      */
     public void publish(ByteBuffer payload) throws IOException {
         if (payload == null || payload.remaining() == 0) {
@@ -144,42 +501,730 @@ public class SlowStartEventQueue {
         }
 
         stats.total.add(1);
+        final long startNS = isSampled() ? System.nanoTime() : 0;
+
+        if (state.get() <= STATE_PENDING_SLOW_START) {
+            awaitSlowStore();
+        }
+
+        final int current = state.get();
+        checkUsable(current);
+        if (current < STATE_DRAIN_DONE && spill(payload)) {
+            if (startNS != 0) {
+                (current < STATE_DRAINING ? metrics.publishSlowStart : metrics.publishDraining)
+                        .record(System.nanoTime() - startNS);
+            }
+            return;
+        }
+
+        if (dispatchSerial != null) {
+            // the publisher may reuse its payload as soon as this returns
+            final ByteBuffer copy = copyOf(payload);
+            dispatchSerial.execute(() -> consumer.consume(key, copy));
+        }
+        else {
+            consumer.consume(key, payload);
+        }
+        if (startNS != 0) {
+            metrics.publishSteady.record(System.nanoTime() - startNS);
+        }
+    }
+
+    /**
+     * Publishes an event without blocking the calling thread on the slow-start buffer or, by default, on the
+     * consumer. This suits publishers that run on event-loop threads. Asynchronous publishes of this queue are
+     * carried out one at a time in the order they were called, on the executor configured by
+     * {@link SlowStartConfig#setAsyncPublish(Executor, boolean)}; however, they are not ordered with concurrent
+     * calls to {@link #publish(ByteBuffer)}.
+     *
+     * @param payload the opaque content of the event that needs to be rewound prior to this call. It must not be
+     *                modified until the returned future completes.
+     * @return a future that completes once the event has been accepted: either written to the slow-start buffer,
+     * or staged for it by group-commit, or delivered to the consumer or queued for dispatch to it. It completes exceptionally with what
+     * {@link #publish(ByteBuffer)} would have thrown.
+     * @throws java.util.concurrent.RejectedExecutionException if the event had to be handed to the configured
+     *                                                         executor and it rejected the event
+     */
+    public CompletableFuture<Void> publishAsync(ByteBuffer payload) {
+        if (payload == null || payload.remaining() == 0) {
+            throw new IllegalArgumentException("payload is absent or empty");
+        }
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final SerialExecutor serial = publishSerial;
+        if (!config.isAsyncSteadyHandoff() && state.get() == STATE_STEADY && (serial == null || serial.isIdle())) {
+            // nothing published earlier is still in flight, so the event can't overtake one
+            publishTo(future, payload);
+        }
+        else {
+            publishSerial().execute(() -> publishTo(future, payload));
+        }
+        return future;
+    }
+
+    private SerialExecutor publishSerial() {
+        final SerialExecutor serial = publishSerial;
+        if (serial != null) {
+            return serial;
+        }
+        PUBLISH_SERIAL.compareAndSet(this, null, new SerialExecutor(config.getAsyncPublishExecutor()));
+        return publishSerial;
+    }
+
+    private void publishTo(CompletableFuture<Void> future, ByteBuffer payload) {
+        try {
+            publish(payload);
+            future.complete(null);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private boolean isSampled() {
+        final int sampling = latencySampling;
+        return sampling == 1 || (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) == 0);
+    }
+
+    /**
+     * Writes the event to the slow-start buffer unless the drain has caught up in the meantime. The spill lock
+     * is shared by publishers and only taken exclusively by the drain to decide that it has caught up, so no
+     * event can be written after that decision.
+     *
+     * @return true if the event was written, false if it needs to be passed through instead
+     */
+    private boolean spill(ByteBuffer payload) throws IOException {
+        final int entered = state.get();
+        checkUsable(entered);
+        if (entered >= STATE_TAIL) {
+            return appendTail(payload);
+        }
+
+        final SpillFrame frame = frameOf(payload);
+        final ByteBuffer header = frame.header;
+
+        final int frameLen = RECORD_HEADER_SIZE + payload.remaining();
+        final boolean quota = keySpillBudget != null || shared.spillBudget != null;
+        if (quota && !acquireSpillQuota(frameLen)) {
+            stats.dropped.add(1);
+            return true;
+        }
 
+        boolean written = false;
+        boolean handOff = false;
+        Object subKey = null;
+        spillLock.readLock().lock();
+        try {
+            final int current = state.get();
+            checkUsable(current);
+            if (current >= STATE_DRAIN_DONE) {
+                return false;
+            }
+            if (current >= STATE_TAIL) {
+                // the handoff started after the check above, and the quota is released since nothing is spilled
+                handOff = true;
+            }
+            else {
+                if (compaction != null) {
+                    // counted ahead of the write so that the drain can't read the event before it's counted
+                    subKey = compaction.track(payload);
+                }
+                final GroupCommitWriter writer = groupCommitWriter;
+                if (writer == null) {
+                    final ByteBuffer[] srcs = frame.srcs;
+                    srcs[1] = payload;
+                    try {
+                        slowStore.write(srcs);
+                    } finally {
+                        srcs[1] = null;
+                    }
+                }
+                else {
+                    writer.append(header, payload);
+                }
+                written = true;
+            }
+        } finally {
+            spillLock.readLock().unlock();
+            if (!written) {
+                if (subKey != null) {
+                    compaction.untrack(subKey);
+                }
+                if (quota) {
+                    releaseSpillQuota(frameLen);
+                }
+            }
+        }
+        if (handOff) {
+            return appendTail(payload);
+        }
+        stats.preDrained.add(1);
+        stats.backlog.increment();
+        stats.spilledBytes.add(frameLen);
+
+        final StoreSync sync = storeSync;
+        if (sync != null) {
+            if (shared.periodicFsync != null) {
+                shared.periodicFsync.markDirty(sync);
+            }
+            else {
+                // forced outside of the spill lock so that the drain can catch up meanwhile, in which case the
+                // store has been closed for writing and forcing it does nothing
+                sync.syncAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands an event to the in-memory tail. While the tail holds more than
+     * {@link SlowStartConfig#setTailHandoff(int) its limit}, publishers wait for the drain to deliver from it, as
+     * they would wait for the consumer once passing events through. Once the tail is sealed, publishers wait for
+     * the drain to deliver what's left of it, which is what bounds the switch-over even if publishers are faster
+     * than the drain. Either wait is bounded by the {@link SlowStartConfig#setOverflowBlockTimeout(long, TimeUnit)
+     * overflow block timeout}.
+     *
+     * @return true if the event was added, false if the drain has finished and it needs to be passed through
+     * @throws IOException if the wait timed out or was interrupted, or the drain was aborted meanwhile
+     */
+    private boolean appendTail(ByteBuffer payload) throws IOException {
+        final int limit = config.getTailHandoffBytes();
+        if (tailBytes.get() >= limit && state.get() == STATE_TAIL) {
+            awaitTail(() -> tailBytes.get() < limit || state.get() != STATE_TAIL);
+        }
+        final ByteBuffer copy = copyOf(payload);
+        // shared with other publishers, so that the drain can seal the tail
+        spillLock.readLock().lock();
+        try {
+            if (state.get() == STATE_TAIL) {
+                tail.add(copy);
+                tailBytes.addAndGet(copy.remaining());
+                return true;
+            }
+        } finally {
+            spillLock.readLock().unlock();
+        }
         if (state.get() < STATE_DRAIN_DONE) {
-            stats.preDrained.add(1);
+            awaitTail(() -> state.get() >= STATE_DRAIN_DONE);
+        }
+        checkUsable(state.get());
+        return false;
+    }
+
+    private void awaitTail(BooleanSupplier done) throws IOException {
+        final long deadline = System.nanoTime() + config.getOverflowBlockTimeoutNS();
+        tailLock.lock();
+        try {
+            while (!done.getAsBoolean()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for the drain of key " + key + " to deliver its tail");
+                }
+                tailChanged.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the drain of key " + key);
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    private void signalTail() {
+        tailLock.lock();
+        try {
+            tailChanged.signalAll();
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    /**
+     * Fills in the thread's frame header for the event, leaving the payload rewound.
+     */
+    private static SpillFrame frameOf(ByteBuffer payload) {
+        final SpillFrame frame = spillFrames.get();
+        final ByteBuffer header = frame.header;
+        final Adler32 adler32 = frame.adler32;
+        adler32.reset();
+        adler32.update(payload);
+        payload.rewind();
+
+        header.clear();
+        header.putInt(payload.remaining());
+        header.putLong(recordWord(RECORD_FLAGS, adler32.getValue()));
+        header.putLong(System.currentTimeMillis());
+        header.rewind();
+        return frame;
+    }
+
+    static long recordWord(int flags, long checksum) {
+        return (long) RECORD_FORMAT << 56 | (long) (flags & 0xffffff) << 32 | checksum;
+    }
+
+    /**
+     * @return the format of an event's header given the word that follows its length, where zero is the format
+     * written before it was versioned
+     */
+    static int recordFormat(long word) {
+        return (int) (word >>> 56);
+    }
+
+    private IllegalStateException exported() {
+        return new IllegalStateException("The backlog of key " + key + " was exported or discarded");
+    }
+
+    /**
+     * @throws IllegalStateException if the backlog was exported or the queue closed
+     * @throws IOException if the drain was aborted
+     */
+    private void checkUsable(int current) throws IOException {
+        if (current == STATE_EXPORTED) {
+            throw exported();
+        }
+        if (current == STATE_FAILED) {
+            throw new IOException("The drain of key " + key + " was aborted", drainFailure);
+        }
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer payload) {
+        final ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        return copy;
+    }
+
+    /**
+     * Acquires room for one framed event from the per-key and overall spill quotas, applying the configured
+     * {@link OverflowPolicy} if either is exhausted.
+     *
+     * @return true if acquired, false if the event is to be dropped
+     */
+    private boolean acquireSpillQuota(int frameLen) throws IOException {
+        final OverflowPolicy policy = config.getOverflowPolicy();
+        switch (policy) {
+            case BLOCK:
+                final long deadline = System.nanoTime() + config.getOverflowBlockTimeoutNS();
+                try {
+                    if (!acquireBlocking(keySpillBudget, frameLen, deadline)) {
+                        throw quotaExceeded(frameLen);
+                    }
+                    if (!acquireBlocking(shared.spillBudget, frameLen, deadline)) {
+                        if (keySpillBudget != null) {
+                            keySpillBudget.release(frameLen);
+                        }
+                        throw quotaExceeded(frameLen);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for spill quota");
+                }
+                return true;
+
+            case DROP_OLDEST:
+                while (!tryAcquireSpillQuota(frameLen)) {
+                    if (!discardOldest()) {
+                        return false;
+                    }
+                }
+                return true;
+
+            default:
+                if (tryAcquireSpillQuota(frameLen)) {
+                    return true;
+                }
+                if (policy == OverflowPolicy.REJECT) {
+                    throw quotaExceeded(frameLen);
+                }
+                return false;
+        }
+    }
+
+    private static boolean acquireBlocking(ByteBudget budget, int bytes, long deadline)
+            throws InterruptedException {
+        return budget == null || budget.acquire(bytes, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private boolean tryAcquireSpillQuota(int bytes) {
+        if (keySpillBudget != null && !keySpillBudget.tryAcquire(bytes)) {
+            return false;
+        }
+        if (shared.spillBudget != null && !shared.spillBudget.tryAcquire(bytes)) {
+            if (keySpillBudget != null) {
+                keySpillBudget.release(bytes);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseSpillQuota(long bytes) {
+        if (keySpillBudget != null) {
+            keySpillBudget.release(bytes);
+        }
+        if (shared.spillBudget != null) {
+            shared.spillBudget.release(bytes);
+        }
+    }
+
+    private SpillQuotaExceededException quotaExceeded(int frameLen) {
+        return new SpillQuotaExceededException(key, String.format(
+                "Spilling %d bytes for key %s would exceed the spill quota", frameLen, key));
+    }
+
+    /**
+     * Reads and discards the oldest event in the slow-start buffer. This is not done while the buffer is being
+     * drained.
+     *
+     * @return true if an event was discarded
+     */
+    private boolean discardOldest() throws IOException {
+        if (!readLock.tryLock()) {
+            return false;
+        }
+        try {
+            final SlowStore store = slowStore;
+            if (store == null || state.get() != STATE_SLOW_START) {
+                return false;
+            }
+            if (!frameReader.next(store)) {
+                // what's staged by group-commit can only be discarded once written
+                final GroupCommitWriter writer = groupCommitWriter;
+                if (writer == null || !writer.flush() || !frameReader.next(store)) {
+                    return false;
+                }
+            }
+            final int frameLen = frameReader.getFrameLength();
+            skipEvent(store);
 
-            if (state.get() == STATE_INITIAL) {
-                if (state.compareAndSet(STATE_INITIAL, STATE_SLOW_START)) {
-                    openSlowStoreIn();
+            releaseSpillQuota(frameLen);
+            stats.spilledBytes.add(-frameLen);
+            stats.backlog.decrement();
+            stats.dropped.add(1);
+            return true;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Skips the payload of the event that {@link #frameReader} is at, which is only read if the compaction index
+     * needs its sub-key. Called while holding {@link #readLock}.
+     */
+    private void skipEvent(SlowStore store) throws IOException {
+        if (compaction == null) {
+            frameReader.skipPayload(store);
+            return;
+        }
+        final int len = frameReader.getLength();
+        ByteBuffer buf = skipBuffer;
+        if (buf == null || buf.capacity() < len) {
+            buf = skipBuffer = ByteBuffer.allocate(Math.max(len, MIN_DRAIN_BUFFER_SIZE));
+        }
+        buf.clear();
+        buf.limit(len);
+        frameReader.readPayload(store, buf);
+        buf.flip();
+        compaction.drained(buf);
+    }
+
+    /**
+     * The first publisher opens the slow-start buffer while any concurrent publishers wait for it, since they
+     * would otherwise find no store to write to. If opening fails, the waiting publishers fail with it, as do
+     * publishes until the {@link SlowStartConfig#setInvalidRouteRetry(long, TimeUnit) retry backoff} elapses,
+     * after which the next publish tries again. A {@link #ready()} that arrives in the meantime is re-applied once
+     * the slow-start buffer is open.
+     */
+    private void awaitSlowStore() throws IOException {
+        while (true) {
+            final int current = state.get();
+            if (current == STATE_INITIAL) {
+                final Exception failure = openFailure;
+                if (failure != null && System.nanoTime() - retryOpenAfterNS < 0) {
+                    throw new IOException("Unable to open the slow-start buffer of key " + key +
+                                                  " until it is retried", failure);
+                }
+                if (state.compareAndSet(STATE_INITIAL, STATE_PENDING_SLOW_START)) {
+                    final CompletableFuture<Void> opening = new CompletableFuture<>();
+                    slowStoreOpening = opening;
+                    slowStartNS = System.nanoTime();
+                    try {
+                        openSlowStore();
+                    } catch (IOException | RuntimeException e) {
+                        openFailure = e;
+                        openFailures++;
+                        retryOpenAfterNS = System.nanoTime() + (config.getInvalidRouteRetryNS() <<
+                                Math.min(openFailures - 1, MAX_RETRY_BACKOFF_SHIFT));
+                        // cleared ahead of the state so that a later attempt is never mistaken for this one
+                        slowStoreOpening = null;
+                        state.set(STATE_INITIAL);
+                        opening.completeExceptionally(e);
+                        if (readyRequested) {
+                            ready();
+                        }
+                        throw e;
+                    }
+                    openFailure = null;
+                    openFailures = 0;
+                    slowStoreOpening = null;
+                    state.set(STATE_SLOW_START);
+                    opening.complete(null);
+                    if (readyRequested) {
+                        ready();
+                    }
+                    return;
                 }
             }
+            else if (current == STATE_PENDING_SLOW_START) {
+                awaitOpening(true);
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for the publisher that is opening the slow-start buffer, if any.
+     *
+     * @param rethrow whether to throw the opening publisher's failure rather than return
+     */
+    private void awaitOpening(boolean rethrow) throws IOException {
+        final CompletableFuture<Void> opening = slowStoreOpening;
+        if (opening == null) {
+            // the opening publisher is about to set it, or finishing up, or a backlog is being resumed
+            Thread.yield();
+            return;
+        }
+        try {
+            opening.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the slow-start buffer was opened");
+        } catch (ExecutionException e) {
+            if (rethrow) {
+                throw new IOException("Unable to open the slow-start buffer of key " + key, e.getCause());
+            }
+        }
+    }
+
+    private void openSlowStore() throws IOException {
+        if (config.getMemoryTierPerKeyBytes() > 0) {
+            attachSlowStore(new TieredSlowStore(config.getMemoryTierPerKeyBytes(), shared.memoryBudget,
+                                                this::openDiskStore));
+        }
+        else {
+            attachSlowStore(openDiskStore());
+        }
+    }
 
-            final ByteBuffer header = ByteBuffer.allocate(12);
-            final Adler32 adler32 = new Adler32();
-            adler32.update(payload);
-            payload.rewind();
+    /**
+     * Used by the router's recovery to resume a slow-start buffer left by a previous run. The queue starts out in
+     * slow-start with the recovered events ahead of any that are published. The recovered events count towards
+     * the spill quota even if they exceed it. Since the recovered events are already on disk, the memory tier
+     * isn't used for this queue.
+     */
+    void resume(SlowStore store) {
+        if (!state.compareAndSet(STATE_INITIAL, STATE_PENDING_SLOW_START)) {
+            throw new IllegalStateException("Only a queue that hasn't been used can be resumed");
+        }
+        slowStartNS = System.nanoTime();
+        resolveKeyStoragePath();
+        attachSlowStore(store);
+        adoptSpilled(store.getWrittenBytes());
+        state.set(STATE_SLOW_START);
+    }
 
-            header.putInt(payload.remaining());
-            header.putLong(adler32.getValue());
-            header.rewind();
+    /**
+     * Used by the router to adopt a backlog exported by another router. Like {@link #resume(SlowStore)}, the queue
+     * starts out in slow-start with the imported events ahead of any that are published, and they count towards
+     * the spill quota even if they exceed it. The events are copied into a slow-start buffer opened just like for
+     * a first spill.
+     *
+     * @param length the bytes of frames that follow in <code>source</code>
+     * @throws IOException if the slow-start buffer can't be opened, or the backlog can't be read or holds an invalid
+     *                     frame, in which case the queue is left unusable and what was imported is removed
+     */
+    void importBacklog(ReadableByteChannel source, long length) throws IOException {
+        if (!state.compareAndSet(STATE_INITIAL, STATE_PENDING_SLOW_START)) {
+            throw new IllegalStateException("Only a queue that hasn't been used can import a backlog");
+        }
+        slowStartNS = System.nanoTime();
+        try {
+            openSlowStore();
+            BacklogTransfer.importFrames(source, length, slowStore);
+            final StoreSync sync = storeSync;
+            if (sync != null) {
+                sync.syncAll();
+            }
+        } catch (IOException | RuntimeException e) {
+            // terminal, rather than pending, so that nothing waits on a slow-start buffer that never opens
+            state.set(STATE_EXPORTED);
+            if (slowStore != null) {
+                discardBacklog();
+            }
+            else {
+                releaseStorage();
+            }
+            throw e;
+        }
+        adoptSpilled(length);
+        state.set(STATE_SLOW_START);
+    }
+
+    /**
+     * Counts events that this queue didn't spill itself towards its spilled bytes and the spill quota.
+     */
+    private void adoptSpilled(long bytes) {
+        stats.spilledBytes.add(bytes);
+        if (keySpillBudget != null) {
+            keySpillBudget.forceAcquire(bytes);
+        }
+        if (shared.spillBudget != null) {
+            shared.spillBudget.forceAcquire(bytes);
+        }
+    }
 
-            slowStoreIn.write(new ByteBuffer[]{header, payload});
+    /**
+     * Used by the router to export this queue's backlog, such as to rebalance keys across nodes. From here on,
+     * publishing to this queue fails. The reader's position in the slow-start buffer is kept, so events that
+     * were discarded by {@link OverflowPolicy#DROP_OLDEST} aren't exported.
+     *
+     * @return the bytes of frames that {@link #transferBacklog(WritableByteChannel)} will write, which is zero
+     * if the queue never spilled or is already steady
+     * @throws IllegalStateException if the backlog is being drained or was already exported
+     */
+    long seal() throws IOException {
+        int sealed;
+        while (true) {
+            spillLock.writeLock().lock();
+            try {
+                sealed = state.get();
+                if (sealed != STATE_PENDING_SLOW_START) {
+                    if (sealed != STATE_INITIAL && sealed != STATE_SLOW_START && sealed != STATE_STEADY) {
+                        throw new IllegalStateException(
+                                "The backlog of key " + key + " is being drained or was already exported");
+                    }
+                    if (sealed == STATE_SLOW_START && groupCommitWriter != null) {
+                        // nothing more is staged since publishers are excluded by the spill lock
+                        groupCommitWriter.flush();
+                    }
+                    state.set(STATE_EXPORTED);
+                    break;
+                }
+            } finally {
+                spillLock.writeLock().unlock();
+            }
+            // the first publisher is still opening the slow-start buffer, and if that fails the queue is sealed
+            // without a backlog
+            awaitOpening(false);
+        }
+        if (sealed != STATE_SLOW_START) {
+            return 0;
+        }
+
+        final SlowStore store = slowStore;
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        store.closeForWriting();
+        // waits for a publisher that is discarding the oldest event
+        readLock.lock();
+        try {
+            exportedFrames = frameReader.unread();
+            return exportedFrames.remaining() + store.getWrittenBytes() - store.getReadBytes();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the backlog of a queue sealed by {@link #seal()} and then releases its slow-start buffer and
+     * storage, even if writing fails.
+     */
+    void transferBacklog(WritableByteChannel target) throws IOException {
+        final ByteBuffer frames = exportedFrames;
+        if (frames == null) {
+            releaseStorage();
             return;
         }
-        // this is the ack to the reader seeing that the draining of the slow start caught up
-        else if (state.compareAndSet(STATE_DRAIN_DONE, STATE_STEADY)) {
-            slowStoreIn.close();
+        readLock.lock();
+        try {
+            BacklogTransfer.writeFully(target, frames);
+            slowStore.transferTo(target);
+        } finally {
+            readLock.unlock();
+            discardBacklog();
         }
+    }
 
-        consumer.consume(key, payload);
+    /**
+     * Removes the slow-start buffer along with what it holds, such as when an imported backlog couldn't be routed.
+     */
+    void discardBacklog() throws IOException {
+        try {
+            slowStore.close();
+        } finally {
+            releaseSpillQuota(stats.spilledBytes.sumThenReset());
+            stats.backlog.reset();
+            releaseStorage();
+        }
     }
 
-    private void openSlowStoreIn() throws IOException {
-        slowStoreIn = FileChannel.open(storePath,
-                                       StandardOpenOption.CREATE,
-                                       // append to allow for rudimentary resuming of the slow-store
-                                       StandardOpenOption.APPEND,
-                                       StandardOpenOption.WRITE);
+    /**
+     * Discards the backlog and removes the slow-start buffer, after which publishing fails just like once the
+     * backlog was exported. This is for a queue used on its own, since a router manages the queues of its routes.
+     *
+     * @throws IllegalStateException if the backlog is being drained or was already exported
+     */
+    public void close() throws IOException {
+        seal();
+        if (exportedFrames != null) {
+            exportedFrames = null;
+            discardBacklog();
+        }
+        else {
+            releaseStorage();
+        }
+    }
+
+    private void attachSlowStore(SlowStore store) {
+        if (config.getGroupCommitBatchSize() > 0) {
+            // assigned ahead of the store so that no publisher writes around the staging buffer
+            groupCommitWriter = new GroupCommitWriter(store, config.getGroupCommitBatchSize(),
+                                                      config.getGroupCommitFlushIntervalNS(),
+                                                      config.getScheduler(), config.getCodec());
+        }
+        if (config.getDurabilityMode() != DurabilityMode.NONE) {
+            storeSync = new StoreSync(store, groupCommitWriter, metrics.fsync);
+        }
+        slowStore = store;
+    }
+
+    private SlowStore openDiskStore() throws IOException {
+        if (shared.sharedLog != null) {
+            return shared.sharedLog.openStore(key);
+        }
+        final Path keyStoragePath = resolveKeyStoragePath();
+        Files.createDirectories(keyStoragePath);
+        try {
+            Files.write(keyStoragePath.resolve(KEY_FILE), key.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            // left by a previous run of the same key
+        }
+        if (config.getSegmentSize() > 0) {
+            return new SegmentedSlowStore(keyStoragePath, config.getSegmentSize());
+        }
+        else {
+            return new FileSlowStore(keyStoragePath.resolve(STORE_FILE));
+        }
+    }
+
+    private Path resolveKeyStoragePath() {
+        Path path = keyStoragePath;
+        if (path == null) {
+            path = keyStoragePath = config.getKeyPathScheme().resolve(storagePath, key, config.getKeyPathFanOut());
+        }
+        return path;
     }
 
     /**
@@ -188,60 +1233,367 @@ public class SlowStartEventQueue {
      * {@link #publish(ByteBuffer)}.
      */
     public void ready() {
+        readyRequested = true;
         if (state.compareAndSet(STATE_SLOW_START, STATE_DRAINING)) {
+            readyNS = System.nanoTime();
             // snap the stats here
             stats.preReady.add(stats.preDrained.sum());
-            executor.execute(this::drainSlowStore);
+            final Drain drain = new Drain();
+            if (shared.drainScheduler != null) {
+                shared.drainScheduler.submit(drain, executor);
+            }
+            else {
+                executor.execute(drain::run);
+            }
         } else {
             state.compareAndSet(STATE_INITIAL, STATE_STEADY);
         }
     }
 
-    private void drainSlowStore() {
-        final ByteBuffer header = ByteBuffer.allocate(12);
+    /**
+     * Drains the slow-start buffer, either in one run on the executor or in steps given by the
+     * {@link DrainScheduler}. Only one thread runs the drain at a time, while holding {@link #readLock}.
+     */
+    private class Drain implements DrainScheduler.Drain {
+        private final Adler32 adler32 = new Adler32();
+        private final DrainBatch batch = consumer instanceof BatchEventConsumer ?
+                new DrainBatch(key, (BatchEventConsumer) consumer,
+                               config.getDrainBatchMaxEvents(), config.getDrainBatchMaxBytes(),
+                               reuseDrainBuffer, dispatchSerial) : null;
+        private final boolean quota = keySpillBudget != null || shared.spillBudget != null;
+        private final int tailHandoffBytes = config.getTailHandoffBytes();
+        private final long maxAgeMillis = config.getMaxAgeMillis();
+        private boolean started;
+        private long startTS;
 
-        try {
-            slowStoreOut = FileChannel.open(storePath,
-                                            StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        void run() {
+            while (!step(Long.MAX_VALUE)) {
+                // caught up with what was written, but publishers are still writing
+            }
+        }
 
-            final long startTS = System.nanoTime();
-            while (true) {
-                if (slowStoreOut.read(header) < 12) {
-                    if (state.compareAndSet(STATE_DRAINING, STATE_DRAIN_DONE)) {
-                        stats.timeToDrainNS = System.nanoTime() - startTS;
-                        slowStoreOut.close();
+        @Override
+        public boolean step(long maxBytes) {
+            final FrameReader reader = frameReader;
+            readLock.lock();
+            try {
+                if (!started) {
+                    started = true;
+                    startTS = System.nanoTime();
+                    stats.drainStartNS = startTS;
+                    if (config.getDrainReadAheadSize() > 0) {
+                        // publishers may write through either, since writes go straight to the same store
+                        slowStore = new ReadAheadSlowStore(slowStore, config.getDrainReadAheadSize(),
+                                                           config.getReadAheadExecutor());
                     }
-                    return;
                 }
-                header.rewind();
+                final SlowStore store = slowStore;
 
-                final int len = header.getInt();
-                if (len == 0) {
-                    throw new IllegalStateException("Read a zero length");
+                long stepBytes = 0;
+                while (true) {
+                    if (tailHandoffBytes > 0 && state.get() == STATE_DRAINING &&
+                            store.getWrittenBytes() - store.getReadBytes() <= tailHandoffBytes) {
+                        startTail();
+                    }
+                    if (stepBytes >= maxBytes || !reader.next(store)) {
+                        if (stepBytes < maxBytes && state.get() >= STATE_TAIL && isStoreDrained(store)) {
+                            stepBytes += drainTail(maxBytes - stepBytes);
+                        }
+                        if (batch != null) {
+                            // deliver what we have before yielding and certainly before pass-through starts
+                            batch.deliver();
+                        }
+                        if (stepBytes >= maxBytes || !isCaughtUp()) {
+                            return false;
+                        }
+                        final long endTS = System.nanoTime();
+                        stats.timeToDrainNS = endTS - startTS;
+                        store.close();
+                        // only now is the slow-start buffer fully released
+                        state.set(STATE_STEADY);
+                        metrics.switchOver.record(System.nanoTime() - readyNS);
+                        metrics.drainedEvents.add(stats.drained.sum());
+                        metrics.drainedBytes.add(stats.drainedBytes.sum());
+                        metrics.drainTimeNS.add(endTS - startTS);
+                        return true;
+                    }
+                    final int len = reader.getLength();
+                    final int frameLen = reader.getFrameLength();
+                    if (isExpired(reader.getPublishedMillis())) {
+                        skipEvent(store);
+                        stats.expired.increment();
+                        metrics.expiredEvents.increment();
+                        stats.backlog.decrement();
+                        stats.spilledBytes.add(-frameLen);
+                        if (quota) {
+                            releaseSpillQuota(frameLen);
+                        }
+                        continue;
+                    }
+                    final long checksum = reader.getChecksum();
+
+                    final ByteBuffer buf = batch != null ? batch.allocate(len) : drainBufferFor(len);
+                    final int start = buf.position();
+                    reader.readPayload(store, buf);
+                    buf.position(start);
+
+                    adler32.reset();
+                    adler32.update(buf);
+                    buf.position(start);
+
+                    stepBytes += len;
+                    stats.drained.add(1);
+                    stats.drainedBytes.add(len);
+                    stats.backlog.decrement();
+                    stats.spilledBytes.add(-frameLen);
+                    if (quota) {
+                        releaseSpillQuota(frameLen);
+                    }
+                    if (checksum != adler32.getValue()) {
+                        log.log(Level.SEVERE, String.format("Block with length=%d failed checksum", len));
+                        countChecksumFailure();
+                    }
+                    else if (compaction != null && compaction.drained(buf)) {
+                        stats.compacted.increment();
+                        metrics.compactedEvents.increment();
+                    }
+                    else if (batch != null) {
+                        batch.add(buf);
+                    }
+                    else if (dispatchSerial != null) {
+                        // queued ahead of any pass-through, which only starts once the drain has caught up
+                        dispatchSerial.execute(() -> consumer.consume(key, buf));
+                    }
+                    else {
+                        consumer.consume(key, buf);
+                    }
                 }
-                final long checksum = header.getLong();
-                header.rewind();
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Unable to read file store", e);
+                abortDrain(e);
+                return true;
+            } catch (RuntimeException e) {
+                abortDrain(e);
+                throw e;
+            } finally {
+                readLock.unlock();
+            }
+        }
 
-                final ByteBuffer buf = ByteBuffer.allocate(len);
-                while (buf.remaining() > 0) {
-                    slowStoreOut.read(buf);
+        /**
+         * @param publishedMillis the publish time of an event, or zero if unknown, in which case it never expires
+         */
+        private boolean isExpired(long publishedMillis) {
+            return maxAgeMillis > 0 && publishedMillis > 0 &&
+                    System.currentTimeMillis() - publishedMillis > maxAgeMillis;
+        }
+
+        /**
+         * Delivers events from the in-memory tail, which is only done once everything in the slow-start buffer
+         * has been read, since nothing is written to it anymore. This delivers no more than the tail held when
+         * called, so that it returns even if publishers are adding to the tail faster.
+         *
+         * @return the payload bytes delivered
+         */
+        private long drainTail(long maxBytes) {
+            final long limit = Math.min(maxBytes, tailBytes.get());
+            long bytes = 0;
+            ByteBuffer next;
+            while (bytes < limit && (next = tail.poll()) != null) {
+                final int len = next.remaining();
+                tailBytes.addAndGet(-len);
+                bytes += len;
+                if (batch != null) {
+                    final ByteBuffer buf = batch.allocate(len);
+                    final int start = buf.position();
+                    buf.put(next);
+                    buf.position(start);
+                    batch.add(buf);
+                }
+                else if (dispatchSerial != null) {
+                    final ByteBuffer payload = next;
+                    dispatchSerial.execute(() -> consumer.consume(key, payload));
+                }
+                else {
+                    consumer.consume(key, next);
                 }
-                buf.rewind();
+            }
+            if (bytes > 0) {
+                // publishers may be waiting for room in the tail
+                signalTail();
+            }
+            return bytes;
+        }
+
+        @Override
+        public long getDrainedBytes() {
+            return stats.drainedBytes.sum();
+        }
+
+        @Override
+        public long getBacklogBytes() {
+            return stats.spilledBytes.sum();
+        }
+
+        @Override
+        public long getSlowStartNS() {
+            return slowStartNS;
+        }
+    }
+
+    /**
+     * Provides the buffer for the next drained event. Unless the config enables drain buffer reuse, consumers may
+     * retain what they are given, so each event gets its own buffer.
+     */
+    private ByteBuffer drainBufferFor(int len) {
+        if (!reuseDrainBuffer) {
+            return ByteBuffer.allocate(len);
+        }
+        ByteBuffer buf = drainBuffer;
+        if (buf == null || buf.capacity() < len) {
+            buf = drainBuffer = ByteBuffer.allocateDirect(Math.max(len, MIN_DRAIN_BUFFER_SIZE));
+        }
+        buf.clear();
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Called when the drain reaches the end of what it can read. The drain has caught up if nothing further was
+     * written, staged or added to the tail, in which case the queue moves to {@link #STATE_DRAIN_DONE} while
+     * holding the spill lock exclusively. With group-commit, staged events are flushed first so that the drain
+     * can read them.
+     * <p>
+     * With the tail handoff, the drain delivers the tail once it has read everything written before
+     * {@link #startTail()}, and then seals the tail to deliver what's left of it.
+     */
+    private boolean isCaughtUp() throws IOException {
+        final GroupCommitWriter writer = groupCommitWriter;
+        if (writer != null && writer.flush()) {
+            return false;
+        }
+
+        spillLock.writeLock().lock();
+        try {
+            final int current = state.get();
+            if (!isStoreDrained(slowStore)) {
+                return false;
+            }
+            if (current == STATE_TAIL) {
+                state.set(STATE_TAIL_SEALED);
+                signalTail();
+                return false;
+            }
+            if (!tail.isEmpty()) {
+                return false;
+            }
+            state.set(STATE_DRAIN_DONE);
+            if (current == STATE_TAIL_SEALED) {
+                signalTail();
+            }
+        } finally {
+            spillLock.writeLock().unlock();
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        slowStore.closeForWriting();
+        return true;
+    }
 
-                final Adler32 adler32 = new Adler32();
-                adler32.update(buf);
-                buf.rewind();
+    /**
+     * Called by the drain when it can't continue, so that publishers neither keep spilling into a slow-start buffer
+     * that nothing drains nor wait for a tail that nothing delivers. What's left of the tail is appended to the
+     * slow-start buffer, behind everything written before it, so that it can be recovered with the rest.
+     */
+    private void abortDrain(Throwable cause) {
+        spillLock.writeLock().lock();
+        try {
+            final int current = state.get();
+            if (current == STATE_DRAIN_DONE) {
+                // everything was delivered, so only releasing the slow-start buffer failed
+                state.set(STATE_STEADY);
+                return;
+            }
+            if (current < STATE_DRAINING || current > STATE_TAIL_SEALED) {
+                return;
+            }
+            drainFailure = cause;
+            retryDrainAfterNS = System.nanoTime() + config.getInvalidRouteRetryNS();
+            if (current != STATE_DRAINING) {
+                spillTail();
+            }
+            state.set(STATE_FAILED);
+        } finally {
+            spillLock.writeLock().unlock();
+        }
+        signalTail();
+    }
 
-                stats.drained.add(1);
-                if (checksum == adler32.getValue()) {
-                    consumer.consume(key, buf);
-                } else {
-                    log.log(Level.SEVERE, String.format("Block with length=%d failed checksum", len));
+    /**
+     * Writes the events of the tail to the slow-start buffer, while holding the spill lock exclusively.
+     */
+    private void spillTail() {
+        final GroupCommitWriter writer = groupCommitWriter;
+        int kept = 0;
+        try {
+            ByteBuffer payload;
+            while ((payload = tail.peek()) != null) {
+                final SpillFrame frame = frameOf(payload);
+                if (writer == null) {
+                    frame.srcs[1] = payload;
+                    try {
+                        slowStore.write(frame.srcs);
+                    } finally {
+                        frame.srcs[1] = null;
+                    }
                 }
+                else {
+                    writer.append(frame.header, payload);
+                }
+                tail.poll();
+                kept++;
+            }
+            if (writer != null) {
+                writer.flush();
             }
         } catch (IOException e) {
-            log.log(Level.SEVERE, "Unable to read file store", e);
+            log.log(Level.SEVERE, String.format("Unable to keep %d events of the tail of key %s",
+                                                tail.size(), key), e);
         }
+        stats.backlog.add(kept);
+        tail.clear();
+        tailBytes.set(0);
+    }
+
+    /**
+     * Called by the drain once it's within {@link SlowStartConfig#setTailHandoff(int) the tail's limit} of the
+     * end of the slow-start buffer. From here on publishers hand events to the in-memory tail, so the drain only
+     * has to finish what was written up to now rather than chase publishers through the slow-start buffer.
+     */
+    private void startTail() {
+        spillLock.writeLock().lock();
+        try {
+            state.compareAndSet(STATE_DRAINING, STATE_TAIL);
+        } finally {
+            spillLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the drain has read everything written and staged so far
+     */
+    private boolean isStoreDrained(SlowStore store) throws IOException {
+        final GroupCommitWriter writer = groupCommitWriter;
+        if (writer == null) {
+            return store.getWrittenBytes() == store.getReadBytes();
+        }
+        return !writer.flush() && writer.isDrained(store.getReadBytes());
+    }
+
+    private void countChecksumFailure() {
+        stats.checksumFailures.increment();
+        metrics.checksumFailures.increment();
     }
 
     /**
@@ -251,4 +1603,150 @@ public class SlowStartEventQueue {
     public Stats getStats() {
         return stats;
     }
+
+    /**
+     * Provides the management interface of this queue, such as to be registered with
+     * {@link java.lang.management.ManagementFactory#getPlatformMBeanServer() the platform MBean server}.
+     */
+    public SlowStartEventQueueMXBean getMXBean() {
+        return new Management();
+    }
+
+    /**
+     * @return the phase of the queue as named by {@link SlowStartEventQueueMXBean#getState()}
+     */
+    String getStateName() {
+        switch (state.get()) {
+            case STATE_INITIAL:
+                return "INITIAL";
+            case STATE_PENDING_SLOW_START:
+            case STATE_SLOW_START:
+                return "SLOW_START";
+            case STATE_DRAINING:
+            case STATE_TAIL:
+            case STATE_TAIL_SEALED:
+            case STATE_DRAIN_DONE:
+                return "DRAINING";
+            case STATE_EXPORTED:
+                return "EXPORTED";
+            case STATE_FAILED:
+                return "FAILED";
+            default:
+                return "STEADY";
+        }
+    }
+
+    /**
+     * @return the bytes written to the slow-start buffer and not yet read. This is read without synchronizing
+     * with the drain, so it's only an estimate while draining.
+     */
+    long getStoredBytes() {
+        final SlowStore store = slowStore;
+        if (store == null || state.get() == STATE_STEADY) {
+            return 0;
+        }
+        return Math.max(store.getWrittenBytes() - store.getReadBytes(), 0);
+    }
+
+    private class Management implements SlowStartEventQueueMXBean {
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public String getState() {
+            return getStateName();
+        }
+
+        @Override
+        public long getTotal() {
+            return stats.getTotal();
+        }
+
+        @Override
+        public long getPreReady() {
+            return stats.getPreReady();
+        }
+
+        @Override
+        public long getDrained() {
+            return stats.getDrained();
+        }
+
+        @Override
+        public long getDropped() {
+            return stats.getDropped();
+        }
+
+        @Override
+        public long getSpilledBytes() {
+            return stats.getSpilledBytes();
+        }
+
+        @Override
+        public long getStoredBytes() {
+            return SlowStartEventQueue.this.getStoredBytes();
+        }
+
+        @Override
+        public long getBacklogEvents() {
+            return stats.getBacklogEvents();
+        }
+
+        @Override
+        public long getChecksumFailures() {
+            return stats.getChecksumFailures();
+        }
+
+        @Override
+        public long getExpired() {
+            return stats.getExpired();
+        }
+
+        @Override
+        public long getCompacted() {
+            return stats.getCompacted();
+        }
+
+        @Override
+        public long getTimeToDrainNS() {
+            return stats.getTimeToDrainNS();
+        }
+
+        @Override
+        public double getDrainEventsPerSecond() {
+            return stats.getDrainEventsPerSecond();
+        }
+
+        @Override
+        public double getDrainBytesPerSecond() {
+            return stats.getDrainBytesPerSecond();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishSlowStartLatency() {
+            return metrics.publishSlowStart.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishDrainingLatency() {
+            return metrics.publishDraining.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishSteadyLatency() {
+            return metrics.publishSteady.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getSwitchOverTime() {
+            return metrics.switchOver.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getFsyncTime() {
+            return metrics.fsync.snapshot();
+        }
+    }
 }
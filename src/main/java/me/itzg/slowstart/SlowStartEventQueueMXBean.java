@@ -0,0 +1,75 @@
+package me.itzg.slowstart;
+
+/**
+ * The management interface of a {@link SlowStartEventQueue}, as provided by
+ * {@link SlowStartEventQueue#getMXBean()} for registration with an MBean server.
+ * <p>
+ * The latency histograms are shared by all queues of a router, so they describe a queue on its own only if it
+ * was created on its own. Publish latencies are only recorded when enabled by
+ * {@link SlowStartConfig#setLatencySampling(int)}.
+ *
+ * @author Geoff Bourne
+ */
+public interface SlowStartEventQueueMXBean {
+    String getKey();
+
+    /**
+     * @return one of INITIAL, SLOW_START, DRAINING or STEADY, or EXPORTED once the backlog was handed to another
+     * router, or FAILED once the drain was aborted
+     */
+    String getState();
+
+    long getTotal();
+
+    long getPreReady();
+
+    long getDrained();
+
+    long getDropped();
+
+    /**
+     * @return the framed size of events held in the slow-start buffer
+     */
+    long getSpilledBytes();
+
+    /**
+     * @return the bytes written to the slow-start buffer and not yet read, which is less than the spilled bytes
+     * when compressed and excludes what's staged by group-commit
+     */
+    long getStoredBytes();
+
+    long getBacklogEvents();
+
+    long getChecksumFailures();
+
+    /**
+     * @return the number of events skipped by the drain since they were older than the max age
+     */
+    long getExpired();
+
+    /**
+     * @return the number of drained events that weren't delivered since they were superseded by a later event of
+     * the same sub-key
+     */
+    long getCompacted();
+
+    long getTimeToDrainNS();
+
+    double getDrainEventsPerSecond();
+
+    double getDrainBytesPerSecond();
+
+    LatencyHistogram.Snapshot getPublishSlowStartLatency();
+
+    LatencyHistogram.Snapshot getPublishDrainingLatency();
+
+    LatencyHistogram.Snapshot getPublishSteadyLatency();
+
+    LatencyHistogram.Snapshot getSwitchOverTime();
+
+    /**
+     * @return the time taken by each force of a slow-start buffer to disk, as configured by
+     * {@link SlowStartConfig#setDurability(DurabilityMode, long, java.util.concurrent.TimeUnit)}
+     */
+    LatencyHistogram.Snapshot getFsyncTime();
+}
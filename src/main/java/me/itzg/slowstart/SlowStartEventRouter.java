@@ -2,33 +2,122 @@ package me.itzg.slowstart;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This is a construct that automatically manages {@link SlowStartEventQueue} instances by creating them upon
  * observation of a new key and likewise notifying an observer.
+ * <p>
+ * When {@link SlowStartConfig#setRouteIdleTimeout(long, TimeUnit) idle eviction} or
+ * {@link SlowStartConfig#setMaxRoutes(int) a bound on routes} is configured, routes are periodically evicted on the
+ * config's scheduler and the router should be {@link #close() closed} once no longer used.
+ * <p>
+ * Routing a key whose drain was aborted fails until {@link SlowStartConfig#setInvalidRouteRetry(long, TimeUnit)
+ * the retry backoff} has elapsed. The route is then replaced, by the next route of the key or by the periodic
+ * eviction, with one that resumes what the failed drain left and delivers it again from the start.
+ * <p>
+ * Keys may be a {@link #route(String, ByteBuffer) String}, a {@link #route(long, ByteBuffer) long} or a
+ * {@link #route(byte[], ByteBuffer) byte[]}. Each kind of key is a separate namespace with its own storage
+ * directory, and the consumer and observer are called with the key as it was routed. The routes of
+ * <code>long</code> and <code>byte[]</code> keys are held in open-addressing tables, which makes looking them up
+ * cheaper than a string key and holding them smaller.
+ * <p>
+ * The backlog of a key can be handed from one router to another, such as when keys are rebalanced across nodes,
+ * with {@link #exportBacklog(String, WritableByteChannel)} and {@link #importBacklog(ReadableByteChannel)}.
  *
  * @author Geoff Bourne
  */
-public class SlowStartEventRouter {
+public class SlowStartEventRouter implements AutoCloseable {
     private static final Logger log = Logger.getLogger(SlowStartEventRouter.class.getName());
 
+    private static final long DEFAULT_SWEEP_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The storage directories of <code>long</code> and <code>byte[]</code> keys are kept apart from those of
+     * string keys, whose names are hex digits, under these directories of the storage path.
+     */
+    static final String LONG_KEYS_DIR = "long-keys";
+    static final String BYTES_KEYS_DIR = "bytes-keys";
+
     private final NewKeyObserver newKeyObserver;
     private final EventConsumer consumer;
     private final Path storagePath;
+    private final Path longKeysPath;
+    private final Path bytesKeysPath;
     private final Executor executor;
+    private final SlowStartConfig config;
+    private final SharedResources shared;
     private ConcurrentHashMap<String, SlowStartEventQueue> routes = new ConcurrentHashMap<>();
+    private final PrimitiveRouteTable longRoutes = new PrimitiveRouteTable(false);
+    private final PrimitiveRouteTable bytesRoutes = new PrimitiveRouteTable(true);
+
+    private final boolean evictionEnabled;
+    private final long sweepIntervalNS;
+    /**
+     * Keys whose routes were evicted, only tracked when evicted keys are not to be observed again. These are a
+     * String, a Long or a ByteBuffer wrapping a <code>byte[]</code> key, which never equal each other.
+     */
+    private final Set<Object> evictedKeys;
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private final AtomicBoolean sweepRequested = new AtomicBoolean();
+    private final ScheduledFuture<?> scheduledSweep;
+    /**
+     * A coarse clock, advanced by each sweep, so that routing only needs a volatile read to track use.
+     */
+    private volatile long clockNS = System.nanoTime();
 
     public SlowStartEventRouter(NewKeyObserver newKeyObserver, EventConsumer consumer, Path storagePath, Executor executor) {
+        this(newKeyObserver, consumer, storagePath, executor, new SlowStartConfig());
+    }
+
+    /**
+     * @param config tuning that is applied to every {@link SlowStartEventQueue} created by this router
+     */
+    public SlowStartEventRouter(NewKeyObserver newKeyObserver, EventConsumer consumer, Path storagePath, Executor executor,
+                                SlowStartConfig config) {
         this.newKeyObserver = newKeyObserver;
         this.consumer = consumer;
         this.storagePath = storagePath;
+        longKeysPath = storagePath.resolve(LONG_KEYS_DIR);
+        bytesKeysPath = storagePath.resolve(BYTES_KEYS_DIR);
         this.executor = executor;
+        this.config = config;
+        shared = new SharedResources(config, storagePath);
+
+        evictionEnabled = config.getRouteIdleTimeoutNS() > 0 || config.getMaxRoutes() > 0;
+        evictedKeys = evictionEnabled && !config.isReobserveEvictedKeys() ? ConcurrentHashMap.newKeySet() : null;
+        if (evictionEnabled) {
+            // sweeping four times per timeout bounds how long past the timeout an idle route lingers
+            sweepIntervalNS = config.getRouteIdleTimeoutNS() > 0 ?
+                    Math.max(config.getRouteIdleTimeoutNS() / 4, 1) : DEFAULT_SWEEP_INTERVAL_NS;
+            scheduledSweep = config.getScheduler().scheduleWithFixedDelay(this::sweep, sweepIntervalNS,
+                                                                          sweepIntervalNS, TimeUnit.NANOSECONDS);
+        }
+        else {
+            sweepIntervalNS = 0;
+            scheduledSweep = null;
+        }
     }
 
     /**
@@ -38,32 +127,812 @@ public class SlowStartEventRouter {
      * @param key the event's key
      * @param payload the opaque content of the event
      * @throws IOException
+     * @throws IllegalStateException if the key's backlog is being {@link #exportBacklog(String, WritableByteChannel)
+     *                               exported}, since the key is being handed to another router. Once the export
+     *                               has completed, routing the key creates a new route.
      */
     public void route(String key, ByteBuffer payload) throws IOException {
-        final SlowStartEventQueue queue = routes.computeIfAbsent(key, this::createNewRoute);
+        publish(stringRoute(key), payload);
+    }
+
+    /**
+     * Routes the event's payload like {@link #route(String, ByteBuffer)} for a key that is a <code>long</code>,
+     * such as a tenant or device ID, without formatting or boxing it.
+     */
+    public void route(long key, ByteBuffer payload) throws IOException {
+        publish(tableRoute(longRoutes, key, null), payload);
+    }
+
+    /**
+     * Routes the event's payload like {@link #route(String, ByteBuffer)} for a key that is a <code>byte[]</code>.
+     * The key is compared by content and copied when its route is created, so the caller may reuse the array.
+     */
+    public void route(byte[] key, ByteBuffer payload) throws IOException {
+        publish(tableRoute(bytesRoutes, PrimitiveRouteTable.hash(key), key), payload);
+    }
+
+    private void publish(SlowStartEventQueue queue, ByteBuffer payload) throws IOException {
+        touch(queue);
+        queue.publish(payload);
+    }
+
+    /**
+     * Routes the event's payload like {@link #route(String, ByteBuffer)}, but publishes it with
+     * {@link SlowStartEventQueue#publishAsync(ByteBuffer)}, so events of the same key are delivered in the order
+     * they were routed without blocking the calling thread.
+     *
+     * @return a future that completes once the event has been accepted, or exceptionally if the key's route could
+     * not be created or the publish failed
+     */
+    public CompletableFuture<Void> routeAsync(String key, ByteBuffer payload) {
+        return publishAsync(stringRoute(key), payload);
+    }
+
+    /**
+     * Routes the event's payload like {@link #routeAsync(String, ByteBuffer)} for a key that is a <code>long</code>.
+     */
+    public CompletableFuture<Void> routeAsync(long key, ByteBuffer payload) {
+        return publishAsync(tableRoute(longRoutes, key, null), payload);
+    }
+
+    /**
+     * Routes the event's payload like {@link #routeAsync(String, ByteBuffer)} for a key that is a
+     * <code>byte[]</code>.
+     */
+    public CompletableFuture<Void> routeAsync(byte[] key, ByteBuffer payload) {
+        return publishAsync(tableRoute(bytesRoutes, PrimitiveRouteTable.hash(key), key), payload);
+    }
+
+    private CompletableFuture<Void> publishAsync(SlowStartEventQueue queue, ByteBuffer payload) {
+        touch(queue);
+        return queue.publishAsync(payload);
+    }
+
+    /**
+     * Recovers the slow-start buffers left under the storage path by a previous run, such as after a crash, using
+     * the router's executor to scan key directories. See {@link #recover(Executor)}.
+     */
+    public int recover() throws IOException {
+        return recover(executor);
+    }
+
+    /**
+     * Recovers the slow-start buffers left under the storage path by a previous run, such as after a crash. Each
+     * key directory is scanned as a separate task, its events are validated and anything from the first invalid
+     * event on, such as one torn by the crash, is truncated. A route is created in slow-start for each key with a
+     * remaining backlog and its key is observed just like a new key, so the backlog is delivered ahead of newly
+     * routed events once the key is ready.
+     * <p>
+     * Backlogs of <code>long</code> and <code>byte[]</code> keys are recovered into routes of the same kind.
+     * <p>
+     * This must be called before any events are routed. Backlogs of a {@link SlowStartConfig#setSharedLog(int, int)
+     * shared log} or of the memory tier can't be recovered.
+     *
+     * @param scanExecutor runs the scans of the key directories, so an executor with several threads recovers
+     *                     many keys faster
+     * @return the number of recovered routes
+     * @throws IOException if the storage path can't be listed. Key directories that fail to be recovered are
+     *                     logged and skipped.
+     * @throws IllegalStateException if any events have already been routed
+     */
+    public int recover(Executor scanExecutor) throws IOException {
+        if (getRouteCount() > 0) {
+            throw new IllegalStateException("Recovery must happen before any events are routed");
+        }
+        if (!Files.isDirectory(storagePath)) {
+            return 0;
+        }
+
+        final int fanOut = config.getKeyPathFanOut();
+        final List<Path> keyDirs = new ArrayList<>();
+        final List<Path> longKeyDirs = new ArrayList<>();
+        final List<Path> bytesKeyDirs = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(storagePath, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                final String name = dir.getFileName().toString();
+                if (name.equals(LONG_KEYS_DIR)) {
+                    collectKeyDirectories(dir, fanOut + 1, longKeyDirs);
+                }
+                else if (name.equals(BYTES_KEYS_DIR)) {
+                    collectKeyDirectories(dir, fanOut + 1, bytesKeyDirs);
+                }
+                else if (!name.startsWith(SharedSpillLog.SHARD_PREFIX)) {
+                    collectKeyDirectories(dir, fanOut, keyDirs);
+                }
+            }
+        }
+        final List<CompletableFuture<StorageRecovery.Recovered>> scans = scan(keyDirs, scanExecutor);
+        final List<CompletableFuture<StorageRecovery.Recovered>> longScans = scan(longKeyDirs, scanExecutor);
+        final List<CompletableFuture<StorageRecovery.Recovered>> bytesScans = scan(bytesKeyDirs, scanExecutor);
+
+        return resumeRoutes(scans, null) + resumeRoutes(longScans, longRoutes) + resumeRoutes(bytesScans, bytesRoutes);
+    }
+
+    private List<CompletableFuture<StorageRecovery.Recovered>> scan(List<Path> keyDirs, Executor scanExecutor) {
+        final List<CompletableFuture<StorageRecovery.Recovered>> scans = new ArrayList<>();
+        for (Path dir : keyDirs) {
+            scans.add(CompletableFuture.supplyAsync(() -> recoverKeyDirectory(dir), scanExecutor));
+        }
+        return scans;
+    }
+
+    /**
+     * @param table the table of the scanned kind of key, or null for string keys
+     * @return the number of resumed routes
+     */
+    private int resumeRoutes(List<CompletableFuture<StorageRecovery.Recovered>> scans, PrimitiveRouteTable table) {
+        int recovered = 0;
+        for (CompletableFuture<StorageRecovery.Recovered> scan : scans) {
+            final StorageRecovery.Recovered result = scan.join();
+            if (result == null) {
+                continue;
+            }
+            final SlowStartEventQueue queue;
+            long key = 0;
+            byte[] bytes = null;
+            try {
+                if (table == null) {
+                    queue = new SlowStartEventQueue(result.key, consumer, storagePath, executor, config, shared);
+                }
+                else {
+                    if (table == longRoutes) {
+                        key = Long.parseLong(result.key);
+                    }
+                    else {
+                        bytes = result.key.getBytes(StandardCharsets.ISO_8859_1);
+                        key = PrimitiveRouteTable.hash(bytes);
+                    }
+                    queue = newTableQueue(key, bytes);
+                }
+            } catch (NumberFormatException e) {
+                log.log(Level.SEVERE, "Unable to create recovered route for " + result.key, e);
+                continue;
+            }
+            queue.resume(result.store);
+            if (evictionEnabled) {
+                queue.lastRoutedNS = clockNS;
+            }
+            if (table == null) {
+                routes.put(result.key, queue);
+                observe(result.key, queue);
+            }
+            else {
+                table.compareAndPut(key, bytes, null, queue);
+                observe(key, bytes, queue);
+            }
+            recovered++;
+        }
+        return recovered;
+    }
 
-        if (queue.isValid()) {
-            queue.publish(payload);
+    /**
+     * @param levels the number of fan-out levels remaining below <code>dir</code>
+     */
+    private static void collectKeyDirectories(Path dir, int levels, List<Path> keyDirs) throws IOException {
+        if (levels == 0) {
+            keyDirs.add(dir);
+            return;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path child : dirs) {
+                collectKeyDirectories(child, levels - 1, keyDirs);
+            }
+        }
+    }
+
+    private StorageRecovery.Recovered recoverKeyDirectory(Path dir) {
+        try {
+            return StorageRecovery.recover(dir, config.getSegmentSize());
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.SEVERE, "Unable to recover " + dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Hands the backlog of a key over to another router, such as when keys are rebalanced across nodes. The key's
+     * route is sealed, so that routing further events of the key to it fails, and removed. The events it spilled
+     * are written to the target, rather than delivered to the consumer, preceded by a header that names the key
+     * and the record format of the events, for {@link #importBacklog(ReadableByteChannel)} to adopt.
+     * <p>
+     * The single-file slow-start buffer is written with {@link FileChannel#transferTo(long, long,
+     * WritableByteChannel)}, so a target that is the channel of a file or socket receives it without copying
+     * through user space. A key without a route, or whose route is already steady, has an empty backlog, which is
+     * exported all the same so that the receiving router observes the key.
+     *
+     * @param target receives the backlog, such as a file or a connection to the receiving node
+     * @return the bytes of events written after the header
+     * @throws IOException if writing to the target fails, in which case the backlog is discarded, since the
+     *                     target may hold part of it
+     * @throws IllegalStateException if the key's backlog is being drained, since part of it has already been
+     *                               delivered
+     * @see #route(String, ByteBuffer) for routing the key while it's exported
+     */
+    public long exportBacklog(String key, WritableByteChannel target) throws IOException {
+        final SlowStartEventQueue queue = routes.get(key);
+        if (evictedKeys != null) {
+            evictedKeys.remove(key);
+        }
+        return export(queue, BacklogTransfer.KIND_STRING, key.getBytes(StandardCharsets.UTF_8),
+                      () -> routes.remove(key, queue), target);
+    }
+
+    /**
+     * Hands the backlog of a key that is a <code>long</code> over to another router like
+     * {@link #exportBacklog(String, WritableByteChannel)}.
+     */
+    public long exportBacklog(long key, WritableByteChannel target) throws IOException {
+        final SlowStartEventQueue queue = longRoutes.get(key, null);
+        if (evictedKeys != null) {
+            evictedKeys.remove(key);
+        }
+        final byte[] encoded = ByteBuffer.allocate(Long.BYTES).putLong(0, key).array();
+        return export(queue, BacklogTransfer.KIND_LONG, encoded,
+                      () -> longRoutes.remove(key, null, queue, null), target);
+    }
+
+    /**
+     * Hands the backlog of a key that is a <code>byte[]</code> over to another router like
+     * {@link #exportBacklog(String, WritableByteChannel)}.
+     */
+    public long exportBacklog(byte[] key, WritableByteChannel target) throws IOException {
+        final long hash = PrimitiveRouteTable.hash(key);
+        final SlowStartEventQueue queue = bytesRoutes.get(hash, key);
+        if (evictedKeys != null) {
+            evictedKeys.remove(ByteBuffer.wrap(key));
+        }
+        return export(queue, BacklogTransfer.KIND_BYTES, key,
+                      () -> bytesRoutes.remove(hash, key, queue, null), target);
+    }
+
+    /**
+     * @param queue  the key's route, if any
+     * @param remove removes the key's route
+     */
+    private long export(SlowStartEventQueue queue, byte kind, byte[] key, Runnable remove,
+                        WritableByteChannel target) throws IOException {
+        final boolean sealed = queue != null;
+        // sealed ahead of removing the route, so that events can't be routed to a replacement meanwhile
+        final long length = sealed ? queue.seal() : 0;
+        try {
+            BacklogTransfer.writeHeader(target, kind, key, length);
+            if (sealed) {
+                queue.transferBacklog(target);
+            }
+        } finally {
+            if (queue != null) {
+                remove.run();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Adopts a backlog exported by {@link #exportBacklog(String, WritableByteChannel)} of another router as the
+     * slow-start backlog of its key. A route is created in slow-start for the key, of the same kind as it was
+     * exported, and its key is observed just like a new key, so the backlog is delivered ahead of newly routed
+     * events once the key is ready. The events are validated as they are copied into the route's slow-start
+     * buffer, which is of whatever kind this router's config gives.
+     * <p>
+     * This must be called before any events of the key are routed to this router.
+     *
+     * @param source positioned at the start of an exported backlog, which is read up to its end
+     * @return the bytes of events adopted
+     * @throws IOException if the source doesn't hold a backlog that can be imported, ends early or holds an invalid
+     *                     event, in which case nothing is adopted
+     * @throws IllegalStateException if the key already has a route
+     */
+    public long importBacklog(ReadableByteChannel source) throws IOException {
+        final BacklogTransfer.Header header = BacklogTransfer.readHeader(source);
+        final String name;
+        final PrimitiveRouteTable table;
+        long key = 0;
+        byte[] bytes = null;
+        if (header.kind == BacklogTransfer.KIND_LONG) {
+            table = longRoutes;
+            key = ByteBuffer.wrap(header.key).getLong();
+            name = Long.toString(key);
+        }
+        else if (header.kind == BacklogTransfer.KIND_BYTES) {
+            table = bytesRoutes;
+            bytes = header.key;
+            key = PrimitiveRouteTable.hash(bytes);
+            name = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        else {
+            table = null;
+            name = new String(header.key, StandardCharsets.UTF_8);
+        }
+        if (table == null ? routes.containsKey(name) : table.get(key, bytes) != null) {
+            throw new IllegalStateException("The backlog of " + name + " must be imported before it is routed");
+        }
+
+        final SlowStartEventQueue queue = table == null ?
+                new SlowStartEventQueue(name, consumer, storagePath, executor, config, shared) :
+                newTableQueue(key, bytes);
+        if (header.length > 0) {
+            queue.importBacklog(source, header.length);
+        }
+        if (evictionEnabled) {
+            queue.lastRoutedNS = clockNS;
+        }
+        final boolean put = table == null ?
+                routes.putIfAbsent(name, queue) == null : table.compareAndPut(key, bytes, null, queue) == queue;
+        if (!put) {
+            if (header.length > 0) {
+                queue.discardBacklog();
+            }
+            throw new IllegalStateException("The key " + name + " was routed while its backlog was imported");
+        }
+        if (table == null) {
+            observe(name, queue);
         }
         else {
-            // this will get noisy since re-thrown on every routing of the given key, but being noisy is probably good
-            throw queue.getLastException();
+            observe(key, bytes, queue);
+        }
+        return header.length;
+    }
+
+    /**
+     * Stops the periodic eviction of routes, if enabled. Existing routes continue to operate.
+     */
+    @Override
+    public void close() {
+        if (scheduledSweep != null) {
+            scheduledSweep.cancel(false);
         }
+    }
+
+    /**
+     * @return the number of routes currently held
+     */
+    public int getRouteCount() {
+        return routes.size() + longRoutes.size() + bytesRoutes.size();
+    }
+
+    /**
+     * Provides the overall usage of slow-start buffers, such as for alerting before a spill quota is reached.
+     *
+     * @return the framed size of events currently held in the slow-start buffers of all routes
+     */
+    public long getSpilledBytes() {
+        final long[] total = {0};
+        forEachRoute(queue -> total[0] += queue.getStats().getSpilledBytes());
+        return total[0];
+    }
 
+    /**
+     * Visits the routes of every kind of key.
+     */
+    private void forEachRoute(Consumer<SlowStartEventQueue> action) {
+        routes.values().forEach(action);
+        longRoutes.forEach((key, bytes, queue) -> action.accept(queue));
+        bytesRoutes.forEach((key, bytes, queue) -> action.accept(queue));
+    }
+
+    /**
+     * Provides the management interface of this router, such as to be registered with
+     * {@link java.lang.management.ManagementFactory#getPlatformMBeanServer() the platform MBean server}.
+     */
+    public SlowStartEventRouterMXBean getMXBean() {
+        return new Management();
+    }
+
+    private void touch(SlowStartEventQueue queue) {
+        if (evictionEnabled) {
+            final long now = clockNS;
+            // avoid writing, and so contending on, the route's cache line while the clock hasn't moved
+            if (queue.lastRoutedNS != now) {
+                queue.lastRoutedNS = now;
+            }
+        }
+    }
+
+    private SlowStartEventQueue stringRoute(String key) {
+        final SlowStartEventQueue queue = routes.computeIfAbsent(key, this::createNewRoute);
+        return queue.isRetryDue() ? replaceFailedRoute(key, queue) : queue;
+    }
+
+    /**
+     * @param bytes the <code>byte[]</code> key with <code>key</code> being its hash, or null for a
+     *              <code>long</code> key
+     */
+    private SlowStartEventQueue tableRoute(PrimitiveRouteTable table, long key, byte[] bytes) {
+        final SlowStartEventQueue queue = table.get(key, bytes);
+        if (queue != null) {
+            return queue.isRetryDue() ? replaceFailedRoute(table, key, bytes, queue) : queue;
+        }
+
+        // created outside of the table's lock, which is cheap since storage is only created upon spilling, and
+        // only observed if it was put in the table
+        final byte[] retained = bytes != null ? bytes.clone() : null;
+        final SlowStartEventQueue created = newRoute(newTableQueue(key, retained));
+        final SlowStartEventQueue current = table.compareAndPut(key, retained, null, created);
+        if (current == created) {
+            final Object evictedKey = retained != null ? ByteBuffer.wrap(retained) : (Object) key;
+            if (evictedKeys != null && evictedKeys.remove(evictedKey)) {
+                created.ready();
+            }
+            else {
+                observe(key, retained, created);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Creates the queue of a <code>long</code> or <code>byte[]</code> key, which delivers events to the consumer
+     * with the key as it was routed.
+     */
+    private SlowStartEventQueue newTableQueue(long key, byte[] bytes) {
+        if (bytes == null) {
+            return new SlowStartEventQueue(Long.toString(key), keyedConsumer(key, null), longKeysPath, executor,
+                                           config, shared);
+        }
+        return new SlowStartEventQueue(new String(bytes, StandardCharsets.ISO_8859_1), keyedConsumer(0, bytes),
+                                       bytesKeysPath, executor, config, shared);
+    }
+
+    private EventConsumer keyedConsumer(long key, byte[] bytes) {
+        if (consumer instanceof BatchEventConsumer) {
+            return new KeyedBatchConsumer((BatchEventConsumer) consumer, key, bytes);
+        }
+        return new KeyedConsumer(consumer, key, bytes);
     }
 
     private SlowStartEventQueue createNewRoute(String key) {
-        final SlowStartEventQueue queue;
-        try {
-            queue = new SlowStartEventQueue(key, consumer, storagePath, executor);
-        } catch (IOException e) {
-            log.log(Level.SEVERE, "Unable to create new route", e);
-            return new SlowStartEventQueue(e);
+        final SlowStartEventQueue queue = newRoute(
+                new SlowStartEventQueue(key, consumer, storagePath, executor, config, shared));
+        if (evictedKeys != null && evictedKeys.remove(key)) {
+            // the key was already observed and made ready before its route was evicted
+            queue.ready();
+        }
+        else {
+            observe(key, queue);
         }
 
+        return queue;
+    }
+
+    /**
+     * Retires a route whose drain was aborted and puts a replacement in its place that resumes the backlog the
+     * failed queue left behind. Callers racing with the one that retires it are given the failed queue meanwhile.
+     */
+    private SlowStartEventQueue replaceFailedRoute(String key, SlowStartEventQueue failed) {
+        final Path keyDir = failed.retire();
+        if (keyDir == null) {
+            return failed;
+        }
+        final SlowStartEventQueue replacement = resumeFailedRoute(
+                keyDir, new SlowStartEventQueue(key, consumer, storagePath, executor, config, shared));
+        routes.replace(key, failed, replacement);
+        return replacement;
+    }
+
+    private SlowStartEventQueue replaceFailedRoute(PrimitiveRouteTable table, long key, byte[] bytes,
+                                                   SlowStartEventQueue failed) {
+        final Path keyDir = failed.retire();
+        if (keyDir == null) {
+            return failed;
+        }
+        final byte[] retained = bytes != null ? bytes.clone() : null;
+        return table.compareAndPut(key, retained, failed, resumeFailedRoute(keyDir, newTableQueue(key, retained)));
+    }
+
+    private SlowStartEventQueue resumeFailedRoute(Path keyDir, SlowStartEventQueue replacement) {
+        final StorageRecovery.Recovered recovered = recoverKeyDirectory(keyDir);
+        if (recovered != null) {
+            replacement.resume(recovered.store);
+        }
+        log.info("Retrying the drain of " + (recovered != null ? recovered.key : keyDir));
+        // the key was observed before the failed drain started
+        replacement.ready();
+        return newRoute(replacement);
+    }
+
+    private SlowStartEventQueue newRoute(SlowStartEventQueue queue) {
+        if (evictionEnabled) {
+            queue.lastRoutedNS = clockNS;
+            if (config.getMaxRoutes() > 0 && getRouteCount() >= config.getMaxRoutes()) {
+                requestSweep();
+            }
+        }
+        return queue;
+    }
+
+    private void observe(String key, SlowStartEventQueue queue) {
         CompletableFuture<Void> future = newKeyObserver.observeNewKey(key);
         future.thenAccept((v) -> queue.ready());
+    }
 
-        return queue;
+    private void observe(long key, byte[] bytes, SlowStartEventQueue queue) {
+        final CompletableFuture<Void> future = bytes != null ?
+                newKeyObserver.observeNewKey(bytes) : newKeyObserver.observeNewKey(key);
+        future.thenAccept((v) -> queue.ready());
+    }
+
+    private void requestSweep() {
+        if (sweepRequested.compareAndSet(false, true)) {
+            final ScheduledExecutorService scheduler = config.getScheduler();
+            scheduler.execute(this::sweep);
+        }
+    }
+
+    /**
+     * Replaces routes whose drain was aborted, once their retry backoff has elapsed, and evicts idle routes and then
+     * the least recently used routes while over the bound.
+     */
+    void sweep() {
+        if (!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            sweepRequested.set(false);
+            final long now = System.nanoTime();
+            clockNS = now;
+
+            final long idleTimeoutNS = config.getRouteIdleTimeoutNS();
+            final List<Candidate> candidates = new ArrayList<>();
+            for (Map.Entry<String, SlowStartEventQueue> entry : routes.entrySet()) {
+                final SlowStartEventQueue queue = entry.getValue();
+                if (queue.isRetryDue()) {
+                    replaceFailedRoute(entry.getKey(), queue);
+                }
+                else if (queue.isSteady() && queue.isAsyncIdle()) {
+                    final long lastRoutedNS = queue.lastRoutedNS;
+                    // the last use may have been up to a sweep interval after the clock value that was recorded
+                    if (idleTimeoutNS > 0 && now - lastRoutedNS > idleTimeoutNS + sweepIntervalNS) {
+                        evict(entry.getKey(), queue);
+                    }
+                    else {
+                        final String key = entry.getKey();
+                        candidates.add(new Candidate(lastRoutedNS, () -> evict(key, queue)));
+                    }
+                }
+            }
+            sweep(longRoutes, now, idleTimeoutNS, candidates);
+            sweep(bytesRoutes, now, idleTimeoutNS, candidates);
+
+            final int excess = config.getMaxRoutes() > 0 ? getRouteCount() - config.getMaxRoutes() : 0;
+            if (excess > 0) {
+                candidates.sort((a, b) -> Long.compare(a.lastRoutedNS, b.lastRoutedNS));
+                for (int i = 0; i < excess && i < candidates.size(); i++) {
+                    candidates.get(i).evict.run();
+                }
+            }
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Unable to evict routes", e);
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+    private void sweep(PrimitiveRouteTable table, long now, long idleTimeoutNS, List<Candidate> candidates) {
+        table.forEach((key, bytes, queue) -> {
+            if (queue.isRetryDue()) {
+                replaceFailedRoute(table, key, bytes, queue);
+            }
+            else if (queue.isSteady() && queue.isAsyncIdle()) {
+                final long lastRoutedNS = queue.lastRoutedNS;
+                if (idleTimeoutNS > 0 && now - lastRoutedNS > idleTimeoutNS + sweepIntervalNS) {
+                    evict(table, key, bytes, queue);
+                }
+                else {
+                    candidates.add(new Candidate(lastRoutedNS, () -> evict(table, key, bytes, queue)));
+                }
+            }
+        });
+    }
+
+    private void evict(PrimitiveRouteTable table, long key, byte[] bytes, SlowStartEventQueue queue) {
+        table.remove(key, bytes, queue, () -> {
+            queue.releaseStorage();
+            if (evictedKeys != null) {
+                evictedKeys.add(bytes != null ? ByteBuffer.wrap(bytes) : (Object) key);
+            }
+        });
+    }
+
+    private void evict(String key, SlowStartEventQueue queue) {
+        routes.computeIfPresent(key, (k, existing) -> {
+            if (existing != queue) {
+                return existing;
+            }
+            // removed while holding the key's mapping so that a re-created route can't race with the removal
+            queue.releaseStorage();
+            if (evictedKeys != null) {
+                evictedKeys.add(k);
+            }
+            return null;
+        });
+    }
+
+    private static class Candidate {
+        final long lastRoutedNS;
+        final Runnable evict;
+
+        Candidate(long lastRoutedNS, Runnable evict) {
+            this.lastRoutedNS = lastRoutedNS;
+            this.evict = evict;
+        }
+    }
+
+    /**
+     * Delivers the events of a <code>long</code> or <code>byte[]</code> route with the key as it was routed.
+     */
+    private static class KeyedConsumer implements EventConsumer {
+        final EventConsumer consumer;
+        final long key;
+        final byte[] bytes;
+
+        KeyedConsumer(EventConsumer consumer, long key, byte[] bytes) {
+            this.consumer = consumer;
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void consume(String key, ByteBuffer byteBuffer) {
+            if (bytes != null) {
+                consumer.consume(bytes, byteBuffer);
+            }
+            else {
+                consumer.consume(this.key, byteBuffer);
+            }
+        }
+    }
+
+    private static class KeyedBatchConsumer implements BatchEventConsumer {
+        final BatchEventConsumer consumer;
+        final long key;
+        final byte[] bytes;
+
+        KeyedBatchConsumer(BatchEventConsumer consumer, long key, byte[] bytes) {
+            this.consumer = consumer;
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void consumeBatch(String key, List<ByteBuffer> events) {
+            if (bytes != null) {
+                consumer.consumeBatch(bytes, events);
+            }
+            else {
+                consumer.consumeBatch(this.key, events);
+            }
+        }
+    }
+
+    private class Management implements SlowStartEventRouterMXBean {
+        @Override
+        public int getRouteCount() {
+            return SlowStartEventRouter.this.getRouteCount();
+        }
+
+        @Override
+        public int getInitialRouteCount() {
+            return countRoutes("INITIAL");
+        }
+
+        @Override
+        public int getSlowStartRouteCount() {
+            return countRoutes("SLOW_START");
+        }
+
+        @Override
+        public int getDrainingRouteCount() {
+            return countRoutes("DRAINING");
+        }
+
+        @Override
+        public int getSteadyRouteCount() {
+            return countRoutes("STEADY");
+        }
+
+        private int countRoutes(String state) {
+            final int[] count = {0};
+            forEachRoute(queue -> {
+                if (state.equals(queue.getStateName())) {
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+
+        @Override
+        public int getFailedRouteCount() {
+            final int[] count = {0};
+            forEachRoute(queue -> {
+                if (queue.isFailed()) {
+                    count[0]++;
+                }
+            });
+            return count[0];
+        }
+
+        @Override
+        public int getRunningDrains() {
+            return shared.drainScheduler != null ? shared.drainScheduler.getRunning() : 0;
+        }
+
+        @Override
+        public int getWaitingDrains() {
+            return shared.drainScheduler != null ? shared.drainScheduler.getWaiting() : 0;
+        }
+
+        @Override
+        public long getSpilledBytes() {
+            return SlowStartEventRouter.this.getSpilledBytes();
+        }
+
+        @Override
+        public long getStoredBytes() {
+            final long[] total = {0};
+            forEachRoute(queue -> total[0] += queue.getStoredBytes());
+            return total[0];
+        }
+
+        @Override
+        public long getBacklogEvents() {
+            final long[] total = {0};
+            forEachRoute(queue -> total[0] += queue.getStats().getBacklogEvents());
+            return total[0];
+        }
+
+        @Override
+        public long getChecksumFailures() {
+            return shared.metrics.checksumFailures.sum();
+        }
+
+        @Override
+        public long getExpiredEvents() {
+            return shared.metrics.expiredEvents.sum();
+        }
+
+        @Override
+        public long getCompactedEvents() {
+            return shared.metrics.compactedEvents.sum();
+        }
+
+        @Override
+        public long getDrainedEvents() {
+            return shared.metrics.drainedEvents.sum();
+        }
+
+        @Override
+        public double getDrainEventsPerSecond() {
+            return shared.metrics.getDrainEventsPerSecond();
+        }
+
+        @Override
+        public double getDrainBytesPerSecond() {
+            return shared.metrics.getDrainBytesPerSecond();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishSlowStartLatency() {
+            return shared.metrics.publishSlowStart.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishDrainingLatency() {
+            return shared.metrics.publishDraining.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublishSteadyLatency() {
+            return shared.metrics.publishSteady.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getSwitchOverTime() {
+            return shared.metrics.switchOver.snapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getFsyncTime() {
+            return shared.metrics.fsync.snapshot();
+        }
     }
 }
@@ -0,0 +1,83 @@
+package me.itzg.slowstart;
+
+/**
+ * The management interface of a {@link SlowStartEventRouter}, as provided by
+ * {@link SlowStartEventRouter#getMXBean()} for registration with an MBean server. Gauges are aggregated over the
+ * current routes each time they are read, whereas counters, rates and histograms also cover routes that have
+ * since been evicted.
+ *
+ * @author Geoff Bourne
+ */
+public interface SlowStartEventRouterMXBean {
+    int getRouteCount();
+
+    int getInitialRouteCount();
+
+    int getSlowStartRouteCount();
+
+    int getDrainingRouteCount();
+
+    int getSteadyRouteCount();
+
+    /**
+     * @return the number of routes whose slow-start buffer failed to open and are awaiting a retry
+     */
+    int getFailedRouteCount();
+
+    /**
+     * @return the number of drains currently running a step, which is only tracked when drains are limited by
+     * {@link SlowStartConfig#setDrainConcurrency(int, DrainPriority)} or {@link SlowStartConfig#setDrainReadRate(long)}
+     */
+    int getRunningDrains();
+
+    /**
+     * @return the number of drains waiting to run their next step, which is likewise only tracked when drains are
+     * limited
+     */
+    int getWaitingDrains();
+
+    long getSpilledBytes();
+
+    long getStoredBytes();
+
+    long getBacklogEvents();
+
+    long getChecksumFailures();
+
+    /**
+     * @return the number of events skipped by drains since they were older than the max age
+     */
+    long getExpiredEvents();
+
+    /**
+     * @return the number of drained events that weren't delivered since they were superseded by a later event of
+     * the same sub-key
+     */
+    long getCompactedEvents();
+
+    long getDrainedEvents();
+
+    /**
+     * @return the drain rate averaged over completed drains
+     */
+    double getDrainEventsPerSecond();
+
+    /**
+     * @return the drain rate in payload bytes averaged over completed drains
+     */
+    double getDrainBytesPerSecond();
+
+    LatencyHistogram.Snapshot getPublishSlowStartLatency();
+
+    LatencyHistogram.Snapshot getPublishDrainingLatency();
+
+    LatencyHistogram.Snapshot getPublishSteadyLatency();
+
+    LatencyHistogram.Snapshot getSwitchOverTime();
+
+    /**
+     * @return the time taken by each force of a slow-start buffer to disk, as configured by
+     * {@link SlowStartConfig#setDurability(DurabilityMode, long, java.util.concurrent.TimeUnit)}
+     */
+    LatencyHistogram.Snapshot getFsyncTime();
+}
@@ -0,0 +1,52 @@
+package me.itzg.slowstart;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instrumentation shared by the queues of one {@link SlowStartEventRouter}, or held by a queue created on its
+ * own. Unlike {@link SlowStartEventQueue.Stats}, these outlive any one queue, such as one evicted by the router.
+ *
+ * @author Geoff Bourne
+ */
+class SlowStartMetrics {
+    /**
+     * Sampled publishes that were spilled before the queue was ready.
+     */
+    final LatencyHistogram publishSlowStart = new LatencyHistogram();
+    /**
+     * Sampled publishes that were spilled while the slow-start buffer was being drained.
+     */
+    final LatencyHistogram publishDraining = new LatencyHistogram();
+    /**
+     * Sampled publishes that were passed straight through to the consumer.
+     */
+    final LatencyHistogram publishSteady = new LatencyHistogram();
+    /**
+     * From a queue being made ready until its slow-start buffer was drained and released.
+     */
+    final LatencyHistogram switchOver = new LatencyHistogram();
+    /**
+     * Each force of a slow-start buffer to disk, whether periodic or by publishers.
+     */
+    final LatencyHistogram fsync = new LatencyHistogram();
+
+    final LongAdder checksumFailures = new LongAdder();
+    final LongAdder expiredEvents = new LongAdder();
+    final LongAdder compactedEvents = new LongAdder();
+    /**
+     * Accumulated once each drain completes, so that the drain rate can be averaged over completed drains.
+     */
+    final LongAdder drainedEvents = new LongAdder();
+    final LongAdder drainedBytes = new LongAdder();
+    final LongAdder drainTimeNS = new LongAdder();
+
+    double getDrainEventsPerSecond() {
+        final long timeNS = drainTimeNS.sum();
+        return timeNS > 0 ? drainedEvents.sum() * 1e9 / timeNS : 0;
+    }
+
+    double getDrainBytesPerSecond() {
+        final long timeNS = drainTimeNS.sum();
+        return timeNS > 0 ? drainedBytes.sum() * 1e9 / timeNS : 0;
+    }
+}
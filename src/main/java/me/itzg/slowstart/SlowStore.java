@@ -0,0 +1,93 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The byte log backing a {@link SlowStartEventQueue}'s slow-start buffer. Framed events are appended by
+ * publishers and read back sequentially by a single drainer. Writes may be concurrent with each other and with
+ * reads.
+ *
+ * @author Geoff Bourne
+ */
+interface SlowStore {
+
+    /**
+     * Appends all remaining content of the given buffers, in order, as one contiguous write.
+     */
+    void write(ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * Appends all remaining content of the given buffer.
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Forces everything written so far to the storage device. Like writes, this may be concurrent with other
+     * writes and with reads. It need not do anything once the store is closed for writing, since everything
+     * written has been drained by then, and it can't make content held only in memory durable.
+     */
+    void force() throws IOException;
+
+    /**
+     * @return the total bytes written to this store, including any that were present when it was opened
+     */
+    long getWrittenBytes();
+
+    /**
+     * Releases the resources used for writing. No further writes are allowed.
+     */
+    void closeForWriting() throws IOException;
+
+    /**
+     * Reads the next bytes in sequence, but no further than what has been written so far.
+     *
+     * @return the number of bytes read, which is zero when the reader has caught up with the writes
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Advances past the next bytes in sequence without reading them, but no further than what has been written so
+     * far. Skipped bytes count as read.
+     *
+     * @return the number of bytes skipped, which is zero when the reader has caught up with the writes
+     */
+    long skip(long n) throws IOException;
+
+    /**
+     * Writes everything written and not yet read to the target, after which it counts as read. Called once the
+     * store is closed for writing, such as to export a backlog.
+     *
+     * @return the number of bytes transferred
+     */
+    default long transferTo(WritableByteChannel target) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(BacklogTransfer.BUFFER_SIZE);
+        long count = 0;
+        while (read(buf) > 0) {
+            buf.flip();
+            count += buf.remaining();
+            BacklogTransfer.writeFully(target, buf);
+            buf.clear();
+        }
+        return count;
+    }
+
+    /**
+     * @return the total bytes read from this store
+     */
+    long getReadBytes();
+
+    /**
+     * Releases all resources and removes the stored content. This is called once the drain has completed.
+     */
+    void close() throws IOException;
+
+    /**
+     * Releases all resources, but leaves the stored content in place for {@link StorageRecovery}, such as after the
+     * drain was aborted. Stores whose content can't be recovered remove it, just like {@link #close()}.
+     */
+    default void release() throws IOException {
+        close();
+    }
+}
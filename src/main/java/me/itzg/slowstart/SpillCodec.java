@@ -0,0 +1,41 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+
+/**
+ * Compresses batches of framed events before they are written to the slow-start buffer, as enabled by
+ * {@link SlowStartConfig#setCompression(SpillCodec)}. The id of the codec is recorded in the slow-start buffer
+ * ahead of its compressed blocks, so the drain always decompresses with the codec that was used to write them.
+ * <p>
+ * Implementations must be thread-safe, since one codec is shared by all queues using the same config.
+ * Built-in codecs are provided by {@link SpillCodecs}.
+ *
+ * @author Geoff Bourne
+ */
+public interface SpillCodec {
+
+    /**
+     * @return the id recorded in the slow-start buffer. Ids below 256 are reserved for the built-in codecs.
+     */
+    int getId();
+
+    /**
+     * @return the most bytes that compressing <code>srcLen</code> bytes can produce
+     */
+    int maxCompressedLength(int srcLen);
+
+    /**
+     * Compresses the given range of <code>src</code> into <code>dst</code>, which has at least
+     * {@link #maxCompressedLength(int)} bytes available from <code>dstOff</code>.
+     *
+     * @return the number of compressed bytes
+     */
+    int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff);
+
+    /**
+     * Decompresses the given range of <code>src</code> into exactly <code>dstLen</code> bytes of <code>dst</code>.
+     *
+     * @throws IOException if the compressed bytes are invalid
+     */
+    void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException;
+}
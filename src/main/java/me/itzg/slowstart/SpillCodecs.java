@@ -0,0 +1,42 @@
+package me.itzg.slowstart;
+
+/**
+ * The built-in {@link SpillCodec}s.
+ *
+ * @author Geoff Bourne
+ */
+public final class SpillCodecs {
+
+    /**
+     * The JDK's deflate at its fastest level, which compresses well but costs more CPU than {@link #LZ}.
+     */
+    public static final SpillCodec DEFLATE = new DeflateCodec();
+
+    /**
+     * A fast, pure-Java LZ77 codec with a 64KB window, in the style of LZ4. It suits spilling where I/O rather
+     * than CPU is the bottleneck.
+     */
+    public static final SpillCodec LZ = new LzCodec();
+
+    private SpillCodecs() {
+    }
+
+    /**
+     * Resolves the codec recorded in a slow-start buffer.
+     *
+     * @param configured the codec of the config, if any, which allows custom codecs to be resolved
+     * @return the codec with the given id or null if it is unknown
+     */
+    static SpillCodec forId(int id, SpillCodec configured) {
+        if (configured != null && configured.getId() == id) {
+            return configured;
+        }
+        if (id == DEFLATE.getId()) {
+            return DEFLATE;
+        }
+        if (id == LZ.getId()) {
+            return LZ;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,28 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link SlowStartEventQueue#publish(java.nio.ByteBuffer)} when an event can't be spilled within the
+ * configured spill quota.
+ *
+ * @author Geoff Bourne
+ * @see OverflowPolicy
+ */
+public class SpillQuotaExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+
+    public SpillQuotaExceededException(String key, String message) {
+        super(message);
+        this.key = key;
+    }
+
+    /**
+     * @return the key of the queue that the event was published to
+     */
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,120 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Recovers a slow-start buffer that a previous run left in a key directory, such as after a crash. Events are
+ * validated and the buffer is truncated at the first invalid event, which is usually one that was torn by the
+ * crash.
+ *
+ * @author Geoff Bourne
+ */
+class StorageRecovery {
+    private static final Logger log = Logger.getLogger(StorageRecovery.class.getName());
+
+    /**
+     * The single-file store is validated through mappings of up to this size at a time.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    static class Recovered {
+        final String key;
+        final SlowStore store;
+
+        Recovered(String key, SlowStore store) {
+            this.key = key;
+            this.store = store;
+        }
+    }
+
+    /**
+     * @param keyDir      a key directory created by {@link SlowStartEventQueue}
+     * @param segmentSize the size of new segments if the key directory holds a segmented store, or zero to
+     *                    continue with the size of the existing segments
+     * @return the key and its recovered slow-start buffer, or null if there was nothing to recover. In that case,
+     * the key directory is removed.
+     */
+    static Recovered recover(Path keyDir, int segmentSize) throws IOException {
+        final Path keyFile = keyDir.resolve(SlowStartEventQueue.KEY_FILE);
+        if (!Files.exists(keyFile)) {
+            log.warning("Skipping recovery of " + keyDir + " since the name of its key is unknown");
+            return null;
+        }
+        final String key = new String(Files.readAllBytes(keyFile), StandardCharsets.UTF_8);
+
+        SlowStore store = null;
+        final Path storeFile = keyDir.resolve(SlowStartEventQueue.STORE_FILE);
+        if (Files.exists(storeFile)) {
+            if (truncateToValid(storeFile) > 0) {
+                store = new FileSlowStore(storeFile);
+            }
+            else {
+                Files.delete(storeFile);
+            }
+        }
+        else {
+            final List<Path> segments = SegmentedSlowStore.listSegments(keyDir);
+            if (!segments.isEmpty()) {
+                final SegmentedSlowStore segmented = new SegmentedSlowStore(
+                        keyDir, segmentSize > 0 ? segmentSize : (int) Files.size(segments.get(0)));
+                if (segmented.getWrittenBytes() > 0) {
+                    store = segmented;
+                }
+                else {
+                    segmented.close();
+                }
+            }
+        }
+
+        if (store == null) {
+            Files.deleteIfExists(keyFile);
+            try {
+                Files.deleteIfExists(keyDir);
+            } catch (DirectoryNotEmptyException e) {
+                log.warning("Leaving unrecognized content in " + keyDir);
+            }
+            return null;
+        }
+        return new Recovered(key, store);
+    }
+
+    /**
+     * Validates the events of a single-file store and truncates it after the last valid event.
+     *
+     * @return the resulting size of the file
+     */
+    static long truncateToValid(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            final FrameScanner scanner = new FrameScanner();
+            long valid = 0;
+            while (valid < size) {
+                final long remaining = size - valid;
+                final long window = Math.min(remaining, Math.max(WINDOW_SIZE, scanner.getPendingLength()));
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, valid, window);
+                final int scanned = scanner.scan(buffer);
+                valid += scanned;
+                // stop at an invalid event or at a partial one that the rest of the file can't complete
+                if (scanner.getStop() != FrameScanner.STOP_END || (scanned == 0 && window == remaining)) {
+                    break;
+                }
+            }
+
+            if (valid < size) {
+                log.warning(String.format("Truncating %d bytes of invalid or torn events from %s",
+                                          size - valid, path));
+                channel.truncate(valid);
+            }
+            return valid;
+        }
+    }
+}
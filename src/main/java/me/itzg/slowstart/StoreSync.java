@@ -0,0 +1,80 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Forces one slow-start buffer to disk on behalf of concurrent publishers. Positions are in terms of
+ * {@link SlowStore#getWrittenBytes()}, which a store only advances once a write has completed. So a force that
+ * starts after the written bytes reached a publisher's position covers that publisher's event, and publishers
+ * waiting on the lock are covered by the force that runs next rather than each forcing on its own.
+ * <p>
+ * With group-commit, staged events are flushed ahead of forcing, rather than waiting for the flush interval.
+ *
+ * @author Geoff Bourne
+ */
+class StoreSync {
+    private final SlowStore store;
+    private final GroupCommitWriter writer;
+    private final LatencyHistogram fsyncTime;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Set while queued with {@link PeriodicFsync}.
+     */
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private volatile long durableBytes;
+
+    /**
+     * @param writer the group-commit writer of the store, or null
+     */
+    StoreSync(SlowStore store, GroupCommitWriter writer, LatencyHistogram fsyncTime) {
+        this.store = store;
+        this.writer = writer;
+        this.fsyncTime = fsyncTime;
+    }
+
+    /**
+     * Returns once everything up to the given position is durable.
+     *
+     * @param position the written bytes of the store as read after the caller's write completed
+     */
+    void sync(long position) throws IOException {
+        if (durableBytes >= position) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (durableBytes >= position) {
+                // covered by the force that held the lock
+                return;
+            }
+            final long target = store.getWrittenBytes();
+            final long startNS = System.nanoTime();
+            store.force();
+            fsyncTime.record(System.nanoTime() - startNS);
+            durableBytes = target;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything written or staged so far, unless that's already durable.
+     */
+    void syncAll() throws IOException {
+        if (writer != null) {
+            // a flush in progress holds the flush lock until its write has completed
+            writer.flush();
+        }
+        sync(store.getWrittenBytes());
+    }
+
+    boolean markQueued() {
+        return !queued.get() && queued.compareAndSet(false, true);
+    }
+
+    void clearQueued() {
+        queued.set(false);
+    }
+}
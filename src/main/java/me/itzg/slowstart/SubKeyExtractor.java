@@ -0,0 +1,18 @@
+package me.itzg.slowstart;
+
+import java.nio.ByteBuffer;
+
+public interface SubKeyExtractor {
+
+    /**
+     * Identifies the entity that an event updates, for
+     * {@link SlowStartConfig#setCompaction(SubKeyExtractor) last-value compaction}. This is called once as each
+     * event is spilled and again as it's drained, so it needs to be cheap and give equal sub-keys both times.
+     *
+     * @param payload the content of the event, positioned at its start. Its position and limit are restored
+     *                afterwards, but its content must not be modified.
+     * @return the sub-key, which needs to implement <code>equals</code> and <code>hashCode</code>, or null if the
+     * event is never superseded
+     */
+    Object subKey(ByteBuffer payload);
+}
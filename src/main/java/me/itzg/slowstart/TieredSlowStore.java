@@ -0,0 +1,256 @@
+package me.itzg.slowstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the start of the slow-start buffer in an off-heap ring and only creates the disk store once the ring is
+ * full or the shared memory budget is exhausted. After spilling, all further writes go to disk so that the ring's
+ * content always precedes the disk's content. If the drain catches up before anything spills, the disk store is
+ * never created.
+ * <p>
+ * The ring starts small and doubles up to its per-key capacity. The memory budget is charged for the ring's
+ * allocated capacity, which is returned when the store is closed.
+ *
+ * @author Geoff Bourne
+ */
+class TieredSlowStore implements SlowStore {
+    private static final int INITIAL_RING_SIZE = 4096;
+
+    /**
+     * Creates the disk store on the first spill.
+     */
+    interface DiskStoreFactory {
+        SlowStore create() throws IOException;
+    }
+
+    private final int maxRingSize;
+    private final ByteBudget budget;
+    private final DiskStoreFactory diskStoreFactory;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ByteBuffer ring;
+    private ByteBuffer ringWriter;
+    private ByteBuffer ringReader;
+    private int head;
+    private int size;
+    private boolean spilled;
+    private volatile SlowStore disk;
+    private volatile long writtenBytes;
+    private long readBytes;
+
+    TieredSlowStore(int maxRingSize, ByteBudget budget, DiskStoreFactory diskStoreFactory) {
+        this.maxRingSize = maxRingSize;
+        this.budget = budget;
+        this.diskStoreFactory = diskStoreFactory;
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        int len = 0;
+        for (ByteBuffer src : srcs) {
+            len += src.remaining();
+        }
+
+        lock.lock();
+        try {
+            if (!spilled && reserve(len)) {
+                for (ByteBuffer src : srcs) {
+                    putInRing(src);
+                }
+            }
+            else {
+                spillingStore().write(srcs);
+            }
+            writtenBytes += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        final int len = src.remaining();
+
+        lock.lock();
+        try {
+            if (!spilled && reserve(len)) {
+                putInRing(src);
+            }
+            else {
+                spillingStore().write(src);
+            }
+            writtenBytes += len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SlowStore spillingStore() throws IOException {
+        if (disk == null) {
+            disk = diskStoreFactory.create();
+        }
+        spilled = true;
+        return disk;
+    }
+
+    /**
+     * Makes room for <code>len</code> more bytes in the ring, growing it if needed and allowed by the budget.
+     */
+    private boolean reserve(int len) {
+        final int needed = size + len;
+        final int capacity = ring != null ? ring.capacity() : 0;
+        if (needed <= capacity) {
+            return true;
+        }
+        if (needed > maxRingSize) {
+            return false;
+        }
+
+        int newCapacity = Math.max(capacity, Math.min(INITIAL_RING_SIZE, maxRingSize));
+        while (newCapacity < needed) {
+            newCapacity = (int) Math.min((long) newCapacity * 2, maxRingSize);
+        }
+        if (!budget.tryAcquire(newCapacity - capacity)) {
+            return false;
+        }
+
+        final ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity);
+        if (ring != null) {
+            // linearize the current content at the start of the new ring
+            final ByteBuffer content = ring.duplicate();
+            content.position(head);
+            content.limit(Math.min(head + size, capacity));
+            grown.put(content);
+            if (head + size > capacity) {
+                content.clear();
+                content.limit(head + size - capacity);
+                grown.put(content);
+            }
+        }
+        ring = grown;
+        ringWriter = grown.duplicate();
+        ringReader = grown.duplicate();
+        head = 0;
+        return true;
+    }
+
+    private void putInRing(ByteBuffer src) {
+        final int capacity = ring.capacity();
+        while (src.hasRemaining()) {
+            final int tail = (head + size) % capacity;
+            final int count = Math.min(src.remaining(), tail >= head ? capacity - tail : head - tail);
+            ringWriter.clear();
+            ringWriter.position(tail);
+            ringWriter.limit(tail + count);
+
+            final int srcLimit = src.limit();
+            src.limit(src.position() + count);
+            ringWriter.put(src);
+            src.limit(srcLimit);
+            size += count;
+        }
+    }
+
+    /**
+     * Only forces what has spilled to disk, since the ring is held in memory.
+     */
+    @Override
+    public void force() throws IOException {
+        final SlowStore store = disk;
+        if (store != null) {
+            store.force();
+        }
+    }
+
+    @Override
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public void closeForWriting() throws IOException {
+        final SlowStore store = disk;
+        if (store != null) {
+            store.closeForWriting();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int count = 0;
+        lock.lock();
+        try {
+            while (size > 0 && dst.hasRemaining()) {
+                final int capacity = ring.capacity();
+                final int chunk = Math.min(dst.remaining(), Math.min(size, capacity - head));
+                ringReader.clear();
+                ringReader.position(head);
+                ringReader.limit(head + chunk);
+                dst.put(ringReader);
+                head = (head + chunk) % capacity;
+                size -= chunk;
+                count += chunk;
+            }
+            if (size > 0 || !spilled) {
+                readBytes += count;
+                return count;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // the ring is empty and never refilled once spilled, so the rest comes from disk
+        count += disk.read(dst);
+        readBytes += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long count = 0;
+        lock.lock();
+        try {
+            if (size > 0) {
+                final int chunk = (int) Math.min(n, size);
+                head = (head + chunk) % ring.capacity();
+                size -= chunk;
+                count = chunk;
+            }
+            if (size > 0 || !spilled) {
+                readBytes += count;
+                return count;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        count += disk.skip(n - count);
+        readBytes += count;
+        return count;
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (ring != null) {
+                budget.release(ring.capacity());
+                ring = ringWriter = ringReader = null;
+                size = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+        final SlowStore store = disk;
+        if (store != null) {
+            store.close();
+        }
+    }
+}
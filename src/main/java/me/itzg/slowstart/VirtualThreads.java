@@ -0,0 +1,29 @@
+package me.itzg.slowstart;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Provides executors that start a virtual thread per task for
+ * {@link SlowStartConfig#setVirtualThreads(boolean)}. This is the baseline used before Java 21, where there are
+ * no virtual threads. The jar is multi-release, and on Java 21 and later this class is replaced by the one under
+ * <code>src/main/java21</code>.
+ *
+ * @author Geoff Bourne
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * @param name the prefix of the names of the threads, which are numbered
+     * @return an executor shared by every caller giving the same name
+     */
+    static Executor perTask(String name) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+}
@@ -0,0 +1,35 @@
+package me.itzg.slowstart;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides executors that start a virtual thread per task for
+ * {@link SlowStartConfig#setVirtualThreads(boolean)}. This replaces the baseline of the same name on Java 21 and
+ * later.
+ * <p>
+ * A virtual thread is pinned to its carrier while it blocks inside <code>synchronized</code>, so the drain and
+ * publish paths only use {@link java.util.concurrent.locks.ReentrantLock} and friends.
+ *
+ * @author Geoff Bourne
+ */
+final class VirtualThreads {
+    private static final ConcurrentHashMap<String, Executor> executors = new ConcurrentHashMap<>();
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * @param name the prefix of the names of the threads, which are numbered
+     * @return an executor shared by every caller giving the same name
+     */
+    static Executor perTask(String name) {
+        return executors.computeIfAbsent(
+                name, n -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(n, 0).factory()));
+    }
+}
@@ -0,0 +1,208 @@
+package me.itzg.slowstart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DrainSchedulerTest {
+
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Drains a fixed backlog, a step's worth at a time, and records the order of its steps.
+     */
+    private static class FakeDrain implements DrainScheduler.Drain {
+        final String name;
+        final long slowStartNS;
+        final List<String> steps;
+        final AtomicInteger concurrent;
+        final AtomicInteger maxConcurrent;
+        final CountDownLatch done;
+        volatile long backlog;
+        volatile long drained;
+        /**
+         * If set, the first step waits for it, which holds the drain's slot while others are submitted.
+         */
+        volatile CountDownLatch gate;
+
+        FakeDrain(String name, long backlog, long slowStartNS, List<String> steps, AtomicInteger concurrent,
+                  AtomicInteger maxConcurrent, CountDownLatch done) {
+            this.name = name;
+            this.backlog = backlog;
+            this.slowStartNS = slowStartNS;
+            this.steps = steps;
+            this.concurrent = concurrent;
+            this.maxConcurrent = maxConcurrent;
+            this.done = done;
+        }
+
+        @Override
+        public boolean step(long maxBytes) {
+            final int running = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(running, Math::max);
+            try {
+                if (gate != null) {
+                    gate.await();
+                    gate = null;
+                }
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            steps.add(name);
+            final long read = Math.min(maxBytes, backlog);
+            backlog -= read;
+            drained += read;
+            concurrent.decrementAndGet();
+            if (backlog == 0) {
+                done.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long getDrainedBytes() {
+            return drained;
+        }
+
+        @Override
+        public long getBacklogBytes() {
+            return backlog;
+        }
+
+        @Override
+        public long getSlowStartNS() {
+            return slowStartNS;
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testConcurrencyLimit() throws Exception {
+        final DrainScheduler drainScheduler = new DrainScheduler(2, DrainPriority.READINESS, 10, 0, scheduler);
+        final List<String> steps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+
+        for (int i = 0; i < 20; i++) {
+            drainScheduler.submit(new FakeDrain("d" + i, 50, 0, steps, concurrent, maxConcurrent, done), executor);
+        }
+        done.await();
+
+        assertEquals(2, maxConcurrent.get());
+        assertEquals(100, steps.size());
+        assertEquals(0, drainScheduler.getWaiting());
+        // the last step is counted down before its slot is released
+        while (drainScheduler.getRunning() != 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSmallestBacklogFirst() throws Exception {
+        final DrainScheduler drainScheduler = new DrainScheduler(1, DrainPriority.SMALLEST_BACKLOG, 10, 0, scheduler);
+        final List<String> steps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        // the huge one starts first, but yields to the smaller backlogs after its first step
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeDrain huge = new FakeDrain("huge", 1000, 0, steps, concurrent, maxConcurrent, done);
+        huge.gate = gate;
+        drainScheduler.submit(huge, executor);
+        drainScheduler.submit(new FakeDrain("medium", 30, 0, steps, concurrent, maxConcurrent, done), executor);
+        drainScheduler.submit(new FakeDrain("small", 10, 0, steps, concurrent, maxConcurrent, done), executor);
+        gate.countDown();
+        done.await();
+
+        assertEquals(Arrays.asList("huge", "small", "medium", "medium", "medium", "huge"), steps.subList(0, 6));
+        assertEquals(100 + 3 + 1, steps.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testOldestFirst() throws Exception {
+        final DrainScheduler drainScheduler = new DrainScheduler(1, DrainPriority.OLDEST_FIRST, 10, 0, scheduler);
+        final List<String> steps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        final long now = System.nanoTime();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeDrain newer = new FakeDrain("newer", 20, now, steps, concurrent, maxConcurrent, done);
+        newer.gate = gate;
+        drainScheduler.submit(newer, executor);
+        drainScheduler.submit(new FakeDrain("newest", 20, now + 1, steps, concurrent, maxConcurrent, done), executor);
+        drainScheduler.submit(new FakeDrain("oldest", 20, now - 1, steps, concurrent, maxConcurrent, done), executor);
+        gate.countDown();
+        done.await();
+
+        // the first submitted drain started right away, after which the oldest is drained to completion
+        assertEquals(Arrays.asList("newer", "oldest", "oldest", "newer", "newest", "newest"), steps);
+    }
+
+    @Test(timeout = 5000)
+    public void testYieldsRoundRobin() throws Exception {
+        final DrainScheduler drainScheduler = new DrainScheduler(1, DrainPriority.READINESS, 10, 0, scheduler);
+        final List<String> steps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+
+        final CountDownLatch gate = new CountDownLatch(1);
+        final FakeDrain a = new FakeDrain("a", 1000, 0, steps, concurrent, maxConcurrent, done);
+        a.gate = gate;
+        drainScheduler.submit(a, executor);
+        drainScheduler.submit(new FakeDrain("b", 20, 0, steps, concurrent, maxConcurrent, done), executor);
+        gate.countDown();
+        done.await();
+
+        assertEquals(Arrays.asList("a", "b", "a", "b", "a"), steps.subList(0, 5));
+    }
+
+    @Test(timeout = 5000)
+    public void testReadRate() throws Exception {
+        final DrainScheduler drainScheduler = new DrainScheduler(Integer.MAX_VALUE, DrainPriority.READINESS,
+                                                                 1000, 10000, scheduler);
+        final List<String> steps = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final long start = System.nanoTime();
+        drainScheduler.submit(new FakeDrain("a", 5000, 0, steps, concurrent, maxConcurrent, done), executor);
+        done.await();
+
+        // each step after the first waits 100ms for the previous one to be paid for
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+    }
+}
@@ -0,0 +1,49 @@
+package me.itzg.slowstart;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class KeyPathSchemeTest {
+
+    @Test
+    public void testMurmur3() throws Exception {
+        // the reference vector of the x64 128-bit variant
+        assertArrayEquals(new long[]{0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L},
+                          KeyPathScheme.murmur3("The quick brown fox jumps over the lazy dog"
+                                                        .getBytes(StandardCharsets.UTF_8)));
+        assertArrayEquals(new long[]{0, 0}, KeyPathScheme.murmur3(new byte[0]));
+    }
+
+    @Test
+    public void testNames() throws Exception {
+        final String name = KeyPathScheme.MURMUR3.name("alpha");
+        assertEquals(32, name.length());
+        assertEquals(name, KeyPathScheme.MURMUR3.name("alpha"));
+        assertNotEquals(name, KeyPathScheme.MURMUR3.name("alphb"));
+
+        // unchanged from how key directories were always named
+        assertEquals("4c2e5e7c-0b7d-5fc8-b1e5-ec0f1a6a9e4d".length(), KeyPathScheme.NAME_UUID.name("alpha").length());
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        final Path storage = Paths.get("storage");
+        final String name = KeyPathScheme.MURMUR3.name("alpha");
+
+        assertEquals(storage.resolve(name), KeyPathScheme.MURMUR3.resolve(storage, "alpha", 0));
+        assertEquals(storage.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name),
+                     KeyPathScheme.MURMUR3.resolve(storage, "alpha", 2));
+
+        final String uuid = KeyPathScheme.NAME_UUID.name("alpha");
+        assertEquals(storage.resolve(uuid.substring(0, 2)).resolve(uuid.substring(2, 4))
+                             .resolve(uuid.substring(4, 6)).resolve(uuid.substring(6, 8)).resolve(uuid),
+                     KeyPathScheme.NAME_UUID.resolve(storage, "alpha", 4));
+    }
+}
@@ -0,0 +1,75 @@
+package me.itzg.slowstart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketBounds() throws Exception {
+        long previousUpper = -1;
+        for (int i = 0; i < 61 * 8; i++) {
+            final long upper = LatencyHistogram.upperBound(i);
+            assertTrue(upper > previousUpper);
+            assertEquals(i, LatencyHistogram.indexOf(previousUpper + 1));
+            assertEquals(i, LatencyHistogram.indexOf(upper));
+            previousUpper = upper;
+        }
+        assertEquals(Long.MAX_VALUE, previousUpper);
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500500, snapshot.getMean());
+        assertEquals(1000000, snapshot.getMax());
+        assertWithin(500000, snapshot.getP50());
+        assertWithin(990000, snapshot.getP99());
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final ExecutorService recorders = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(recorders.submit(() -> {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            recorders.shutdown();
+        }
+
+        assertEquals(400000, histogram.getCount());
+        assertEquals(99999, histogram.snapshot().getMax());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                   actual >= expected && actual <= expected + expected / 8);
+    }
+}
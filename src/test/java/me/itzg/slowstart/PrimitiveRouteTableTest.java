@@ -0,0 +1,89 @@
+package me.itzg.slowstart;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PrimitiveRouteTableTest {
+
+    private static SlowStartEventQueue queue() {
+        // nothing is created on disk until an event is spilled
+        return new SlowStartEventQueue("placeholder", (key, bb) -> {}, Paths.get("unused"), Runnable::run);
+    }
+
+    @Test
+    public void testLongKeys() throws Exception {
+        final PrimitiveRouteTable table = new PrimitiveRouteTable(false);
+        final SlowStartEventQueue first = queue();
+        final SlowStartEventQueue second = queue();
+
+        assertNull(table.get(7, null));
+        assertSame(first, table.compareAndPut(7, null, null, first));
+        assertSame(first, table.get(7, null));
+        // only replaced when the expected queue is current
+        assertSame(first, table.compareAndPut(7, null, null, second));
+        assertSame(second, table.compareAndPut(7, null, first, second));
+        assertEquals(1, table.size());
+
+        assertFalse(table.remove(7, null, first, null));
+        final boolean[] ran = {false};
+        assertTrue(table.remove(7, null, second, () -> ran[0] = true));
+        assertTrue(ran[0]);
+        assertNull(table.get(7, null));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testRebuild() throws Exception {
+        final PrimitiveRouteTable table = new PrimitiveRouteTable(false);
+        final Map<Long, SlowStartEventQueue> expected = new HashMap<>();
+        for (long key = 0; key < 10_000; key++) {
+            final SlowStartEventQueue queue = queue();
+            table.compareAndPut(key, null, null, queue);
+            expected.put(key, queue);
+            // leaves removed slots behind to be dropped by rebuilds
+            if (key % 3 == 0) {
+                assertTrue(table.remove(key, null, queue, null));
+                expected.remove(key);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        for (long key = 0; key < 10_000; key++) {
+            assertSame(expected.get(key), table.get(key, null));
+        }
+        final int[] visited = {0};
+        table.forEach((key, bytes, queue) -> {
+            assertSame(expected.get(key), queue);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+
+    @Test
+    public void testBytesKeys() throws Exception {
+        final PrimitiveRouteTable table = new PrimitiveRouteTable(true);
+        final byte[] alpha = "alpha".getBytes(StandardCharsets.UTF_8);
+        final byte[] beta = "beta".getBytes(StandardCharsets.UTF_8);
+        final SlowStartEventQueue alphaQueue = queue();
+        final SlowStartEventQueue betaQueue = queue();
+
+        table.compareAndPut(PrimitiveRouteTable.hash(alpha), alpha, null, alphaQueue);
+        // a colliding hash is told apart by the bytes
+        table.compareAndPut(PrimitiveRouteTable.hash(alpha), beta, null, betaQueue);
+        assertEquals(2, table.size());
+
+        assertSame(alphaQueue, table.get(PrimitiveRouteTable.hash(alpha), alpha.clone()));
+        assertSame(betaQueue, table.get(PrimitiveRouteTable.hash(alpha), beta.clone()));
+        assertNull(table.get(PrimitiveRouteTable.hash(beta), beta));
+    }
+}
@@ -0,0 +1,104 @@
+package me.itzg.slowstart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReadAheadSlowStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ExecutorService ioExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        ioExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ioExecutor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void testReadsAcrossChunks() throws Exception {
+        final Path path = temp.newFolder().toPath().resolve("store.dat");
+        final FileSlowStore file = new FileSlowStore(path);
+        for (int i = 0; i < 1000; i++) {
+            file.write(value(i));
+        }
+        // a chunk size that events straddle
+        final ReadAheadSlowStore store = new ReadAheadSlowStore(file, 30, ioExecutor);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, readValue(store));
+        }
+        assertEquals(4000, store.getReadBytes());
+        assertEquals(0, store.read(ByteBuffer.allocate(4)));
+
+        // caught up, so what's written next is loaded by the next read
+        store.write(value(1000));
+        assertEquals(1000, readValue(store));
+        assertEquals(store.getWrittenBytes(), store.getReadBytes());
+
+        store.closeForWriting();
+        store.close();
+        assertFalse(Files.exists(path));
+    }
+
+    @Test(timeout = 10000)
+    public void testConcurrentWrites() throws Exception {
+        final FileSlowStore file = new FileSlowStore(temp.newFolder().toPath().resolve("store.dat"));
+        final ReadAheadSlowStore store = new ReadAheadSlowStore(file, 4096, ioExecutor);
+
+        final int count = 100000;
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> writes = writer.submit(() -> {
+                for (int i = 0; i < count; i++) {
+                    store.write(value(i));
+                }
+                return null;
+            });
+
+            final ByteBuffer bb = ByteBuffer.allocate(4);
+            for (int i = 0; i < count; i++) {
+                bb.clear();
+                while (bb.hasRemaining()) {
+                    store.read(bb);
+                }
+                assertEquals(i, bb.getInt(0));
+            }
+            writes.get();
+        } finally {
+            writer.shutdown();
+        }
+        assertEquals(count * 4L, store.getReadBytes());
+        store.close();
+    }
+
+    private static ByteBuffer value(int val) {
+        final ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(0, val);
+        return bb;
+    }
+
+    private static int readValue(SlowStore store) throws Exception {
+        final ByteBuffer bb = ByteBuffer.allocate(4);
+        assertEquals(4, store.read(bb));
+        return bb.getInt(0);
+    }
+}
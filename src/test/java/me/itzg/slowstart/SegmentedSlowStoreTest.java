@@ -0,0 +1,222 @@
+package me.itzg.slowstart;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedSlowStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore store = new SegmentedSlowStore(dir, 64);
+
+        for (int i = 0; i < 20; i++) {
+            store.write(frame(i));
+        }
+        assertEquals(20 * 16, store.getWrittenBytes());
+        // four events fit per segment
+        assertEquals(5, countSegments(dir));
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 20; i++) {
+            frame.clear();
+            assertEquals(16, store.read(frame));
+            assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+        frame.clear();
+        assertEquals(0, store.read(frame));
+        assertEquals(20 * 16, store.getReadBytes());
+
+        store.close();
+        assertEquals(0, countSegments(dir));
+    }
+
+    @Test
+    public void testDeletesDrainedSegments() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore store = new SegmentedSlowStore(dir, 64);
+
+        for (int i = 0; i < 20; i++) {
+            store.write(frame(i));
+        }
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 9; i++) {
+            frame.clear();
+            store.read(frame);
+        }
+        // the first two segments are fully read, but the reader only moves past a segment on its next read
+        frame.clear();
+        store.read(frame);
+        assertEquals(3, countSegments(dir));
+
+        store.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testForceWhileDrainingSegments() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore store = new SegmentedSlowStore(dir, 64);
+
+        for (int i = 0; i < 2000; i++) {
+            store.write(frame(i));
+        }
+
+        final AtomicBoolean draining = new AtomicBoolean(true);
+        final Thread forcer = new Thread(() -> {
+            while (draining.get()) {
+                store.force();
+            }
+        });
+        forcer.start();
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                frame.clear();
+                assertEquals(16, store.read(frame));
+                assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+            }
+        } finally {
+            draining.set(false);
+            forcer.join();
+        }
+        assertTrue(countSegments(dir) <= 1);
+
+        store.close();
+    }
+
+    @Test
+    public void testOversizedWrite() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore store = new SegmentedSlowStore(dir, 64);
+
+        store.write(frame(1));
+        final ByteBuffer big = ByteBuffer.allocate(200);
+        big.putInt(0, 188);
+        store.write(big);
+        store.write(frame(2));
+
+        final ByteBuffer dst = ByteBuffer.allocate(16 + 200 + 16);
+        assertEquals(dst.capacity(), store.read(dst));
+        assertEquals(1, dst.getInt(SlowStartEventQueue.HEADER_SIZE));
+        assertEquals(2, dst.getInt(16 + 200 + SlowStartEventQueue.HEADER_SIZE));
+
+        store.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore first = new SegmentedSlowStore(dir, 64);
+        for (int i = 0; i < 6; i++) {
+            first.write(frame(i));
+        }
+        first.closeForWriting();
+
+        final SegmentedSlowStore resumed = new SegmentedSlowStore(dir, 64);
+        assertEquals(6 * 16, resumed.getWrittenBytes());
+        resumed.write(frame(6));
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 7; i++) {
+            frame.clear();
+            assertEquals(16, resumed.read(frame));
+            assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+
+        resumed.close();
+    }
+
+    @Test
+    public void testResumeDiscardsTornEvent() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore first = new SegmentedSlowStore(dir, 64);
+        for (int i = 0; i < 6; i++) {
+            first.write(frame(i));
+        }
+        // an event torn part way through leaves a length, but not the payload that matches its checksum
+        final ByteBuffer torn = frame(6);
+        torn.putInt(SlowStartEventQueue.HEADER_SIZE, 0);
+        first.write(torn);
+        for (int i = 7; i < 10; i++) {
+            first.write(frame(i));
+        }
+        first.closeForWriting();
+        assertEquals(3, countSegments(dir));
+
+        final SegmentedSlowStore resumed = new SegmentedSlowStore(dir, 64);
+        assertEquals(6 * 16, resumed.getWrittenBytes());
+        // the segment after the torn event is discarded
+        assertEquals(2, countSegments(dir));
+        resumed.write(frame(10));
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 6; i++) {
+            frame.clear();
+            assertEquals(16, resumed.read(frame));
+            assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+        frame.clear();
+        assertEquals(16, resumed.read(frame));
+        assertEquals(10, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+
+        resumed.close();
+    }
+
+    @Test
+    public void testReleaseKeepsContent() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SegmentedSlowStore store = new SegmentedSlowStore(dir, 64);
+        for (int i = 0; i < 6; i++) {
+            store.write(frame(i));
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        store.read(frame);
+        store.release();
+        assertEquals(2, countSegments(dir));
+
+        // what was read is recovered along with the rest
+        final SegmentedSlowStore resumed = new SegmentedSlowStore(dir, 64);
+        assertEquals(6 * 16, resumed.getWrittenBytes());
+        frame.clear();
+        assertEquals(16, resumed.read(frame));
+        assertEquals(0, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+
+        resumed.close();
+    }
+
+    static ByteBuffer frame(int val) {
+        final ByteBuffer bb = ByteBuffer.allocate(16);
+        final Adler32 adler32 = new Adler32();
+        final ByteBuffer payload = TestUtils.createPayload(val);
+        adler32.update(payload);
+        payload.rewind();
+        bb.putInt(4);
+        bb.putLong(adler32.getValue());
+        bb.put(payload);
+        bb.flip();
+        return bb;
+    }
+
+    private static long countSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package me.itzg.slowstart;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerialExecutorTest {
+
+    @Test
+    public void testRecoversFromRejection() throws Exception {
+        final AtomicBoolean rejecting = new AtomicBoolean(true);
+        final Executor executor = command -> {
+            if (rejecting.get()) {
+                throw new RejectedExecutionException("rejected");
+            }
+            command.run();
+        };
+        final SerialExecutor serial = new SerialExecutor(executor);
+        final List<Integer> ran = new ArrayList<>();
+
+        try {
+            serial.execute(() -> ran.add(1));
+            fail("expected the task to be rejected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertTrue(serial.isIdle());
+
+        rejecting.set(false);
+        serial.execute(() -> ran.add(2));
+        assertTrue(serial.isIdle());
+        assertEquals(1, ran.size());
+        assertEquals(2, (int) ran.get(0));
+    }
+
+    @Test(timeout = 5000)
+    public void testKeepsRunningWhenContinuationRejected() throws Exception {
+        final AtomicBoolean accepted = new AtomicBoolean();
+        final List<Thread> threads = new ArrayList<>();
+        final Executor executor = command -> {
+            // only the first run gets a thread
+            if (!accepted.compareAndSet(false, true)) {
+                throw new RejectedExecutionException("saturated");
+            }
+            final Thread thread = new Thread(command);
+            threads.add(thread);
+            thread.start();
+        };
+        final SerialExecutor serial = new SerialExecutor(executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+
+        serial.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            ran.incrementAndGet();
+        });
+        for (int i = 0; i < 200; i++) {
+            serial.execute(ran::incrementAndGet);
+        }
+        release.countDown();
+        threads.get(0).join();
+
+        assertEquals(201, ran.get());
+        assertTrue(serial.isIdle());
+    }
+}
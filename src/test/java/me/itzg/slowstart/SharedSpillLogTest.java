@@ -0,0 +1,138 @@
+package me.itzg.slowstart;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class SharedSpillLogTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testInterleavedKeys() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SharedSpillLog log = new SharedSpillLog(dir, 1, 64, false);
+        final SharedLogSlowStore alpha = log.openStore("alpha");
+        final SharedLogSlowStore beta = log.openStore("beta");
+
+        for (int i = 0; i < 10; i++) {
+            alpha.write(frame(i));
+            beta.write(frame(100 + i));
+        }
+        assertEquals(10 * 16, alpha.getWrittenBytes());
+        assertEquals(10 * 16, beta.getWrittenBytes());
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 10; i++) {
+            frame.clear();
+            assertEquals(16, beta.read(frame));
+            assertEquals(100 + i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+        frame.clear();
+        assertEquals(0, beta.read(frame));
+
+        for (int i = 0; i < 10; i++) {
+            frame.clear();
+            assertEquals(16, alpha.read(frame));
+            assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+        assertEquals(10 * 16, alpha.getReadBytes());
+
+        alpha.close();
+        beta.close();
+    }
+
+    @Test
+    public void testDeletesSegmentsOnceAllKeysDrained() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SharedSpillLog log = new SharedSpillLog(dir, 1, 64, false);
+        final SharedLogSlowStore alpha = log.openStore("alpha");
+        final SharedLogSlowStore beta = log.openStore("beta");
+
+        // two chunks of 24 bytes fit per segment, so each segment holds one chunk of each key
+        for (int i = 0; i < 4; i++) {
+            alpha.write(frame(i));
+            beta.write(frame(i));
+        }
+        final Path shard = dir.resolve("shared-0");
+        assertEquals(4, countFiles(shard));
+
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 4; i++) {
+            frame.clear();
+            alpha.read(frame);
+        }
+        // still needed by beta
+        assertEquals(4, countFiles(shard));
+
+        frame.clear();
+        beta.read(frame);
+        frame.clear();
+        beta.read(frame);
+        assertEquals(2, countFiles(shard));
+
+        // discarding the rest releases all but the segment still being written
+        beta.close();
+        alpha.close();
+        assertEquals(1, countFiles(shard));
+    }
+
+    @Test
+    public void testForceSkipsDeletedSegments() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SharedSpillLog log = new SharedSpillLog(dir, 1, 64, true);
+        final SharedLogSlowStore alpha = log.openStore("alpha");
+
+        for (int i = 0; i < 8; i++) {
+            alpha.write(frame(i));
+        }
+        final ByteBuffer frame = ByteBuffer.allocate(16);
+        for (int i = 0; i < 6; i++) {
+            frame.clear();
+            alpha.read(frame);
+        }
+        // the drained segments were unmapped, so only the rest are forced
+        alpha.force();
+        for (int i = 6; i < 8; i++) {
+            frame.clear();
+            assertEquals(16, alpha.read(frame));
+            assertEquals(i, frame.getInt(SlowStartEventQueue.HEADER_SIZE));
+        }
+
+        alpha.close();
+    }
+
+    @Test
+    public void testNoDirectoriesUntilWritten() throws Exception {
+        final Path dir = temp.newFolder().toPath();
+        final SharedSpillLog log = new SharedSpillLog(dir, 4, 1024, false);
+        for (int i = 0; i < 100; i++) {
+            log.openStore("key-" + i);
+        }
+        assertEquals(0, countFiles(dir));
+    }
+
+    private static ByteBuffer frame(int val) {
+        final ByteBuffer bb = ByteBuffer.allocate(16);
+        bb.putInt(4);
+        bb.putLong(0);
+        bb.putInt(val);
+        bb.flip();
+        return bb;
+    }
+
+    private static long countFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -6,21 +6,33 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static me.itzg.slowstart.TestUtils.allocatedBytes;
 import static me.itzg.slowstart.TestUtils.assertIntInBuf;
 import static me.itzg.slowstart.TestUtils.createPayload;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by geoff on 6/17/17.
@@ -118,6 +130,259 @@ public class SlowStartEventQueueTest {
         assertTrue(queue.getStats().getTotal() > queue.getStats().getPreDrained());
     }
 
+    @Test(timeout = 30000)
+    public void testGroupCommit() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("plum",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setGroupCommit(4096, 1, TimeUnit.MILLISECONDS)
+        );
+
+        final int preReady = 100000;
+        final int postReady = 100000;
+        final int expectedTotal = preReady + postReady;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(createPayload(i+1+preReady));
+        }
+
+        while (recv.size() != expectedTotal) {
+            Thread.sleep(100);
+        }
+
+        for (int i = 0; i < expectedTotal; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+        assertThat(queue.getStats().getDrained(), not(equalTo(0)));
+    }
+
+    @Test(timeout = 30000)
+    public void testGroupCommitConcurrentPublishers() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("quince",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setGroupCommit(1024, 1, TimeUnit.MILLISECONDS)
+        );
+
+        final int publishers = 4;
+        final int perPublisher = 20000;
+        final ExecutorService publisherPool = Executors.newFixedThreadPool(publishers);
+        final List<Future<?>> results = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            final int publisher = p;
+            results.add(publisherPool.submit(() -> {
+                for (int i = 0; i < perPublisher; i++) {
+                    if (publisher == 0 && i == perPublisher / 2) {
+                        queue.ready();
+                    }
+                    // encode the publisher in the high bits so that per-publisher order can be checked
+                    queue.publish(createPayload((publisher << 24) | i));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        publisherPool.shutdown();
+
+        while (recv.size() != publishers * perPublisher) {
+            Thread.sleep(100);
+        }
+
+        final int[] next = new int[publishers];
+        for (ByteBuffer bb : recv) {
+            final int val = bb.getInt(0);
+            final int publisher = val >>> 24;
+            assertEquals(next[publisher]++, val & 0xFFFFFF);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testSegmented() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("kiwi",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setSegmentSize(4096)
+        );
+
+        final int preReady = 100000;
+        final int postReady = 100000;
+        final int expectedTotal = preReady + postReady;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(createPayload(i+1+preReady));
+        }
+
+        while (recv.size() != expectedTotal) {
+            Thread.sleep(100);
+        }
+
+        for (int i = 0; i < expectedTotal; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+        // every segment is deleted once drained, leaving only the file naming the key
+        final File[] keyDirs = tempFolder.listFiles();
+        assertEquals(1, keyDirs.length);
+        while (keyDirs[0].list().length != 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(SlowStartEventQueue.KEY_FILE, keyDirs[0].list()[0]);
+    }
+
+    @Test(timeout = 30000)
+    public void testBatchConsumer() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<Integer> recv = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        final BatchEventConsumer consumer = (key, payloads) -> {
+            batchSizes.add(payloads.size());
+            // the drain buffer is reused, so only the values can be retained
+            for (ByteBuffer bb : payloads) {
+                assertEquals(4, bb.remaining());
+                recv.add(bb.getInt(bb.position()));
+            }
+        };
+        final SlowStartEventQueue queue = new SlowStartEventQueue("lime", consumer, tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setDrainBatchSize(100, 1024)
+                                                                          .setReuseDrainBuffer(true)
+        );
+
+        final int preReady = 10000;
+        final int postReady = 10000;
+        final int expectedTotal = preReady + postReady;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(createPayload(i+1+preReady));
+        }
+
+        while (recv.size() != expectedTotal) {
+            Thread.sleep(100);
+        }
+
+        for (int i = 0; i < expectedTotal; i++) {
+            assertEquals(i+1, recv.get(i).intValue());
+        }
+        // the initial backlog is delivered in full batches
+        assertEquals(100, batchSizes.get(0).intValue());
+        for (Integer size : batchSizes) {
+            assertTrue(size <= 100);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testMemoryTier() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("date",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setMemoryTier(65536, 65536)
+        );
+
+        for (int i = 0; i < 100; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        queue.ready();
+        for (int i = 0; i < 100; i++) {
+            queue.publish(createPayload(i+101));
+        }
+
+        while (recv.size() != 200) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 200; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+        assertEquals("storage directory was never created", 0, tempFolder.list().length);
+    }
+
+    @Test(timeout = 30000)
+    public void testMemoryTierSpill() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("grape",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setMemoryTier(1024, 65536)
+        );
+
+        final int preReady = 10000;
+        final int postReady = 10000;
+        final int expectedTotal = preReady + postReady;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        assertEquals(1, tempFolder.list().length);
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(createPayload(i+1+preReady));
+        }
+
+        while (recv.size() != expectedTotal) {
+            Thread.sleep(100);
+        }
+        for (int i = 0; i < expectedTotal; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testNoAllocationPerEvent() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final int[] sum = new int[1];
+        final SlowStartEventQueue queue = new SlowStartEventQueue("fig",
+                                                                  (key,bb)->sum[0] += bb.getInt(0),
+                                                                  tempFolder.toPath(),
+                                                                  // drain within ready() on this thread
+                                                                  Runnable::run,
+                                                                  new SlowStartConfig().setReuseDrainBuffer(true)
+        );
+        final ByteBuffer payload = createPayload(1);
+
+        // warm up the code paths and the JDK's temporary direct buffers
+        for (int i = 0; i < 10000; i++) {
+            payload.rewind();
+            queue.publish(payload);
+        }
+
+        final int events = 100000;
+        final long beforePublish = allocatedBytes();
+        for (int i = 0; i < events; i++) {
+            payload.rewind();
+            queue.publish(payload);
+        }
+        final long publishAllocated = allocatedBytes() - beforePublish;
+
+        final long beforeDrain = allocatedBytes();
+        queue.ready();
+        final long drainAllocated = allocatedBytes() - beforeDrain;
+
+        assertEquals(10000 + events, sum[0]);
+        // allow for fixed costs, such as opening the store for draining, but nothing per event
+        assertTrue("publish allocated " + publishAllocated, publishAllocated < events);
+        assertTrue("drain allocated " + drainAllocated, drainAllocated < events);
+    }
+
     @Test
     public void testReadyBeforePublish() throws Exception {
         final File tempFolder = temp.newFolder();
@@ -134,4 +399,765 @@ public class SlowStartEventQueueTest {
         assertIntInBuf(2, recv.get(0));
     }
 
-}
\ No newline at end of file
+
+    @Test(timeout = 5000)
+    public void testQuotaReject() throws Exception {
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        // each 4 byte payload is framed into 24 bytes, so 10 events fit
+        final SlowStartEventQueue queue = new SlowStartEventQueue("kiwi",
+                                                                  (key,bb)->recv.add(bb), temp.newFolder().toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setSpillQuota(
+                                                                          240, 0, OverflowPolicy.REJECT)
+        );
+
+        for (int i = 0; i < 10; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        assertEquals(240, queue.getStats().getSpilledBytes());
+        try {
+            queue.publish(createPayload(11));
+            fail("expected the quota to be exceeded");
+        } catch (SpillQuotaExceededException e) {
+            assertEquals("kiwi", e.getKey());
+        }
+
+        queue.ready();
+        while (recv.size() != 10) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, queue.getStats().getSpilledBytes());
+        queue.publish(createPayload(11));
+        assertEquals(11, recv.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testQuotaDropOldest() throws Exception {
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("lime",
+                                                                  (key,bb)->recv.add(bb), temp.newFolder().toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setSpillQuota(
+                                                                          240, 0, OverflowPolicy.DROP_OLDEST)
+        );
+
+        for (int i = 0; i < 25; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        assertEquals(15, queue.getStats().getDropped());
+        queue.ready();
+
+        while (recv.size() != 10) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertIntInBuf(i+16, recv.get(i));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testQuotaDropNewest() throws Exception {
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("mango",
+                                                                  (key,bb)->recv.add(bb), temp.newFolder().toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setSpillQuota(
+                                                                          240, 0, OverflowPolicy.DROP_NEWEST)
+        );
+
+        for (int i = 0; i < 25; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        assertEquals(15, queue.getStats().getDropped());
+        queue.ready();
+
+        while (recv.size() != 10) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testQuotaBlock() throws Exception {
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("nectarine",
+                                                                  (key,bb)->recv.add(bb), temp.newFolder().toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setSpillQuota(0, 240, OverflowPolicy.BLOCK)
+                                                                          .setOverflowBlockTimeout(
+                                                                                  20, TimeUnit.MILLISECONDS)
+        );
+
+        for (int i = 0; i < 10; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        try {
+            queue.publish(createPayload(11));
+            fail("expected the block to time out");
+        } catch (SpillQuotaExceededException e) {
+            // expected
+        }
+
+        final ExecutorService publisher = Executors.newSingleThreadExecutor();
+        try {
+            final SlowStartEventQueue blocking = new SlowStartEventQueue("nectarine",
+                                                                         (key,bb)->recv.add(bb),
+                                                                         temp.newFolder().toPath(),
+                                                                         executor,
+                                                                         new SlowStartConfig().setSpillQuota(
+                                                                                 0, 240, OverflowPolicy.BLOCK)
+            );
+            for (int i = 0; i < 10; i++) {
+                blocking.publish(createPayload(i+1));
+            }
+            final Future<?> blocked = publisher.submit(() -> {
+                blocking.publish(createPayload(11));
+                return null;
+            });
+            Thread.sleep(50);
+            assertTrue(!blocked.isDone());
+
+            blocking.ready();
+            blocked.get();
+            while (recv.size() != 11) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 11; i++) {
+                assertIntInBuf(i+1, recv.get(i));
+            }
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCompression() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("orange",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setCompression(SpillCodecs.LZ)
+        );
+
+        final byte[] event = SpillCodecTest.jsonish(200);
+        final int preReady = 10000;
+        final int postReady = 10000;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(jsonEvent(event, i));
+        }
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(jsonEvent(event, i + preReady));
+        }
+
+        while (recv.size() != preReady + postReady) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < preReady + postReady; i++) {
+            assertEquals(i, recv.get(i).getInt(0));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCompressedReadableWithoutCodec() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final SlowStartEventQueue compressing = new SlowStartEventQueue("papaya",
+                                                                        (key,bb)->{}, tempFolder.toPath(),
+                                                                        executor,
+                                                                        new SlowStartConfig().setCompression(
+                                                                                SpillCodecs.DEFLATE)
+        );
+        final byte[] event = SpillCodecTest.jsonish(200);
+        for (int i = 0; i < 1000; i++) {
+            compressing.publish(jsonEvent(event, i));
+        }
+        // let the timed flush write the final batch
+        Thread.sleep(100);
+
+        // a later run, without compression, resumes the same slow-start buffer
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("papaya",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor);
+        queue.publish(jsonEvent(event, 1000));
+        queue.ready();
+
+        while (recv.size() != 1001) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 1001; i++) {
+            assertEquals(i, recv.get(i).getInt(0));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testReadAhead() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("kiwi",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setDrainReadAhead(1000)
+        );
+
+        final int preReady = 200000;
+        final int postReady = 100000;
+        for (int i = 0; i < preReady; i++) {
+            queue.publish(createPayload(i+1));
+        }
+        queue.ready();
+        for (int i = 0; i < postReady; i++) {
+            queue.publish(createPayload(i+1+preReady));
+        }
+
+        while (recv.size() != preReady + postReady) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < preReady + postReady; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+        while (!queue.isSteady()) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, tempFolder.listFiles()[0].listFiles((dir, name) -> !name.equals("key")).length);
+    }
+
+    @Test(timeout = 30000)
+    public void testMaxAge() throws Exception {
+        final SlowStartConfig[] configs = {
+                new SlowStartConfig(),
+                new SlowStartConfig().setSegmentSize(4096),
+                new SlowStartConfig().setMemoryTier(1024, 65536),
+                new SlowStartConfig().setSharedLog(2, 4096),
+                new SlowStartConfig().setDrainReadAhead(1000),
+                new SlowStartConfig().setGroupCommit(4096, 1, TimeUnit.MILLISECONDS).setCompression(SpillCodecs.LZ)
+        };
+        for (SlowStartConfig config : configs) {
+            final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+            final SlowStartEventQueue queue = new SlowStartEventQueue("lemon",
+                                                                      (key,bb)->recv.add(bb),
+                                                                      temp.newFolder().toPath(), executor,
+                                                                      config.setMaxAge(500, TimeUnit.MILLISECONDS)
+            );
+
+            for (int i = 0; i < 500; i++) {
+                queue.publish(createPayload(i+1));
+            }
+            Thread.sleep(1000);
+            for (int i = 500; i < 1000; i++) {
+                queue.publish(createPayload(i+1));
+            }
+            queue.ready();
+
+            while (!queue.isSteady()) {
+                Thread.sleep(10);
+            }
+            assertEquals(500, recv.size());
+            for (int i = 0; i < 500; i++) {
+                assertIntInBuf(i+501, recv.get(i));
+            }
+            assertEquals(500, queue.getStats().getExpired());
+            assertEquals(500, queue.getStats().getDrained());
+            assertEquals(0, queue.getStats().getSpilledBytes());
+            assertEquals(500, queue.getMXBean().getExpired());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCompaction() throws Exception {
+        // each event updates one of ten entities, given by its value modulo ten
+        final SubKeyExtractor byEntity = payload -> payload.getInt(payload.position()) % 10;
+        final SlowStartConfig[] configs = {
+                new SlowStartConfig().setCompaction(byEntity),
+                new SlowStartConfig().setCompaction(byEntity)
+                        .setGroupCommit(4096, 1, TimeUnit.MILLISECONDS).setCompression(SpillCodecs.LZ),
+                new SlowStartConfig().setCompaction(byEntity).setSpillQuota(24000, 0, OverflowPolicy.DROP_OLDEST)
+        };
+        for (SlowStartConfig config : configs) {
+            final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+            final SlowStartEventQueue queue = new SlowStartEventQueue("melon",
+                                                                      (key,bb)->recv.add(bb),
+                                                                      temp.newFolder().toPath(), executor, config
+            );
+
+            for (int i = 0; i < 1500; i++) {
+                queue.publish(createPayload(i+1));
+            }
+            queue.publish(createPayload(3));
+            queue.ready();
+
+            while (!queue.isSteady()) {
+                Thread.sleep(10);
+            }
+            queue.publish(createPayload(1501));
+
+            final int[] expected = {1491, 1492, 1494, 1495, 1496, 1497, 1498, 1499, 1500, 3, 1501};
+            assertEquals(expected.length, recv.size());
+            for (int i = 0; i < expected.length; i++) {
+                assertIntInBuf(expected[i], recv.get(i));
+            }
+            assertEquals(1491 - queue.getStats().getDropped(), queue.getStats().getCompacted());
+            assertEquals(0, queue.getStats().getSpilledBytes());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPublishAsync() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final List<String> consumerThreads = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("lime",
+                                                                  (key,bb)->{
+                                                                      consumerThreads.add(
+                                                                              Thread.currentThread().getName());
+                                                                      recv.add(bb);
+                                                                  },
+                                                                  tempFolder.toPath(), executor
+        );
+
+        final int count = 20000;
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i == count / 2) {
+                queue.ready();
+            }
+            futures.add(queue.publishAsync(createPayload(i+1)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        while (recv.size() != count) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < count; i++) {
+            assertIntInBuf(i+1, recv.get(i));
+        }
+        // steady-state events were handed off too
+        assertFalse(consumerThreads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test(timeout = 5000)
+    public void testPublishAsyncSteadyInline() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<String> consumerThreads = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("lemon",
+                                                                  (key,bb)->consumerThreads.add(
+                                                                          Thread.currentThread().getName()),
+                                                                  tempFolder.toPath(), executor,
+                                                                  new SlowStartConfig().setAsyncPublish(null, false)
+        );
+        queue.ready();
+
+        final CompletableFuture<Void> future = queue.publishAsync(createPayload(1));
+        assertTrue(future.isDone());
+        assertEquals(Collections.singletonList(Thread.currentThread().getName()), consumerThreads);
+    }
+
+    @Test(timeout = 5000)
+    public void testPublishAsyncFailure() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final SlowStartEventQueue queue = new SlowStartEventQueue("quince",
+                                                                  (key,bb)->{}, tempFolder.toPath(), executor,
+                                                                  new SlowStartConfig().setSpillQuota(
+                                                                          30, 0, OverflowPolicy.REJECT)
+        );
+
+        queue.publishAsync(createPayload(1)).get();
+        try {
+            queue.publishAsync(createPayload(2)).get();
+            fail("expected the quota to be exceeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SpillQuotaExceededException);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testLazyStorage() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartConfig config = new SlowStartConfig().setKeyPaths(KeyPathScheme.MURMUR3, 2);
+
+        final SlowStartEventQueue steady = new SlowStartEventQueue("date", (key,bb)->recv.add(bb),
+                                                                   tempFolder.toPath(), executor, config);
+        steady.ready();
+        steady.publish(createPayload(1));
+        // never spilled, so no storage was created
+        assertEquals(0, tempFolder.list().length);
+
+        final SlowStartEventQueue spilling = new SlowStartEventQueue("elderberry", (key,bb)->recv.add(bb),
+                                                                     tempFolder.toPath(), executor, config);
+        assertEquals(0, tempFolder.list().length);
+        spilling.publish(createPayload(2));
+        assertTrue(KeyPathScheme.MURMUR3.resolve(tempFolder.toPath(), "elderberry", 2)
+                           .resolve(SlowStartEventQueue.KEY_FILE).toFile().isFile());
+
+        spilling.ready();
+        while (recv.size() != 2) {
+            Thread.sleep(10);
+        }
+        assertIntInBuf(2, recv.get(1));
+    }
+
+    @Test(timeout = 5000)
+    public void testCloseDiscardsBacklog() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("fig", (key,bb)->recv.add(bb),
+                                                                  tempFolder.toPath(), executor);
+        queue.publish(createPayload(1));
+        queue.publish(createPayload(2));
+        assertEquals(1, tempFolder.list().length);
+
+        queue.close();
+        assertEquals(0, tempFolder.list().length);
+        try {
+            queue.publish(createPayload(3));
+            fail("Expected the publish to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        queue.ready();
+        Thread.sleep(50);
+        assertEquals(0, recv.size());
+    }
+
+    @Test(timeout = 5000)
+    public void testImportFailsWhenStoreCantOpen() throws Exception {
+        // a file in the way of the storage directory
+        final File storage = temp.newFile();
+        final SlowStartEventQueue queue = new SlowStartEventQueue("grape", (key,bb)->{}, storage.toPath(), executor);
+
+        final ByteBuffer frame = SegmentedSlowStoreTest.frame(1);
+        try {
+            queue.importBacklog(Channels.newChannel(new ByteArrayInputStream(frame.array())), frame.remaining());
+            fail("Expected the import to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        // left unusable rather than waiting on a slow-start buffer that never opens
+        try {
+            queue.publish(createPayload(1));
+            fail("Expected the publish to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(storage.isFile());
+    }
+
+    private static ByteBuffer jsonEvent(byte[] event, int val) {
+        final ByteBuffer bb = ByteBuffer.allocate(event.length);
+        bb.put(event);
+        bb.putInt(0, val);
+        bb.rewind();
+        return bb;
+    }
+
+    @Test(timeout = 10000)
+    public void testMetrics() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("fig",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setLatencySampling(1)
+        );
+        final SlowStartEventQueueMXBean mxBean = queue.getMXBean();
+        assertEquals("INITIAL", mxBean.getState());
+
+        for (int i = 0; i < 100; i++) {
+            queue.publish(createPayload(i));
+        }
+        assertEquals("SLOW_START", mxBean.getState());
+        assertEquals(100, mxBean.getBacklogEvents());
+        assertEquals(100 * (SlowStartEventQueue.RECORD_HEADER_SIZE + 4), mxBean.getStoredBytes());
+        assertEquals(100, mxBean.getPublishSlowStartLatency().getCount());
+
+        queue.ready();
+        while (recv.size() != 100) {
+            Thread.sleep(10);
+        }
+        while (!queue.isSteady()) {
+            Thread.sleep(10);
+        }
+        queue.publish(createPayload(100));
+
+        assertEquals("STEADY", mxBean.getState());
+        assertEquals(0, mxBean.getBacklogEvents());
+        assertEquals(0, mxBean.getStoredBytes());
+        assertEquals(100, mxBean.getDrained());
+        assertEquals(0, mxBean.getChecksumFailures());
+        assertTrue(mxBean.getDrainEventsPerSecond() > 0);
+        assertEquals(mxBean.getDrainEventsPerSecond() * 4, mxBean.getDrainBytesPerSecond(),
+                     mxBean.getDrainBytesPerSecond() * 1e-9);
+        assertEquals(1, mxBean.getPublishSteadyLatency().getCount());
+        assertEquals(1, mxBean.getSwitchOverTime().getCount());
+        assertTrue(mxBean.getSwitchOverTime().getMax() >= mxBean.getTimeToDrainNS());
+    }
+
+    @Test(timeout = 10000)
+    public void testDurabilitySync() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("grape",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setGroupCommit(4096, 1, TimeUnit.HOURS)
+                                                                          .setDurability(DurabilityMode.SYNC, 0,
+                                                                                         TimeUnit.MILLISECONDS)
+        );
+
+        for (int i = 0; i < 10; i++) {
+            queue.publish(createPayload(i));
+            // flushed and forced rather than waiting an hour for the flush interval
+            assertEquals((i + 1) * (SlowStartEventQueue.RECORD_HEADER_SIZE + 4), queue.getStoredBytes());
+        }
+        assertEquals(10, queue.getMXBean().getFsyncTime().getCount());
+
+        queue.ready();
+        while (recv.size() != 10) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertIntInBuf(i, recv.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDurabilityPeriodic() throws Exception {
+        final File tempFolder = temp.newFolder();
+        final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("honeydew",
+                                                                  (key,bb)->recv.add(bb), tempFolder.toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig()
+                                                                          .setSegmentSize(4096)
+                                                                          .setDurability(DurabilityMode.PERIODIC, 20,
+                                                                                         TimeUnit.MILLISECONDS)
+        );
+
+        for (int i = 0; i < 1000; i++) {
+            queue.publish(createPayload(i));
+        }
+        final SlowStartEventQueueMXBean mxBean = queue.getMXBean();
+        while (mxBean.getFsyncTime().getCount() == 0) {
+            Thread.sleep(10);
+        }
+        // one pass covers many publishes
+        assertTrue(mxBean.getFsyncTime().getCount() < 1000);
+
+        queue.ready();
+        while (recv.size() != 1000) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertIntInBuf(i, recv.get(i));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDispatch() throws Exception {
+        final ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            final List<ByteBuffer> recv = Collections.synchronizedList(new ArrayList<>());
+            final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            final SlowStartEventQueue queue = new SlowStartEventQueue("imbe",
+                                                                      (key, bb) -> {
+                                                                          threads.add(Thread.currentThread());
+                                                                          recv.add(bb);
+                                                                      },
+                                                                      temp.newFolder().toPath(), executor,
+                                                                      new SlowStartConfig()
+                                                                              .setDispatch(true, workers)
+                                                                              .setReuseDrainBuffer(true));
+
+            // the same payload is reused by the publisher throughout
+            final ByteBuffer payload = ByteBuffer.allocate(4);
+            for (int i = 0; i < 2000; i++) {
+                if (i == 1000) {
+                    queue.ready();
+                }
+                payload.clear();
+                payload.putInt(i).flip();
+                queue.publish(payload);
+            }
+
+            while (recv.size() != 2000) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 2000; i++) {
+                assertIntInBuf(i, recv.get(i));
+            }
+            assertFalse(threads.contains(Thread.currentThread()));
+            assertTrue(queue.isAsyncIdle());
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testTailHandoffRace() throws Exception {
+        // a small tail also has publishers waiting on the drain
+        raceSwitchOver(new SlowStartConfig().setTailHandoff(4096), false);
+        raceSwitchOver(new SlowStartConfig().setTailHandoff(1024 * 1024), false);
+        raceSwitchOver(new SlowStartConfig().setTailHandoff(16384)
+                               .setGroupCommit(4096, 1, TimeUnit.MILLISECONDS), false);
+        raceSwitchOver(new SlowStartConfig().setTailHandoff(16384).setDrainBatchSize(16, 4096), true);
+    }
+
+    @Test(timeout = 30000)
+    public void testTailHandoffDispatchRace() throws Exception {
+        final ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            raceSwitchOver(new SlowStartConfig().setTailHandoff(16384).setDispatch(true, workers), false);
+            raceSwitchOver(new SlowStartConfig().setTailHandoff(16384).setDispatch(true, workers)
+                                   .setDrainBatchSize(16, 4096), true);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Has several publishers racing with the switch from draining to pass-through, publishing until well after it,
+     * and checks that each publisher's events are delivered once and in order.
+     */
+    private void raceSwitchOver(SlowStartConfig config, boolean batch) throws Exception {
+        final int publishers = 4;
+        final int stride = 10_000_000;
+        final List<Integer> recv = Collections.synchronizedList(new ArrayList<>());
+        final EventConsumer consumer = batch ?
+                (BatchEventConsumer) (key, payloads) -> payloads.forEach(bb -> recv.add(bb.getInt())) :
+                (key, bb) -> recv.add(bb.getInt());
+        final SlowStartEventQueue queue = new SlowStartEventQueue("jambul", consumer, temp.newFolder().toPath(),
+                                                                  executor, config);
+
+        final ExecutorService publishing = Executors.newFixedThreadPool(publishers);
+        int total = 0;
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int p = 0; p < publishers; p++) {
+                final int publisher = p;
+                futures.add(publishing.submit(() -> {
+                    int i = 0;
+                    for (; i < 5000; i++) {
+                        queue.publish(createPayload(publisher * stride + i));
+                    }
+                    if (publisher == 0) {
+                        queue.ready();
+                    }
+                    // keeps publishing through the switch-over
+                    int afterSteady = 0;
+                    while (afterSteady < 1000) {
+                        if (i % 50 == 0) {
+                            // paced so that the drain can catch up even where publishers outnumber the cores
+                            Thread.sleep(1);
+                        }
+                        queue.publish(createPayload(publisher * stride + i++));
+                        if (queue.isSteady()) {
+                            afterSteady++;
+                        }
+                    }
+                    return i;
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                total += future.get();
+            }
+        } finally {
+            publishing.shutdown();
+        }
+
+        while (recv.size() < total) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, recv.size());
+        final int[] next = new int[publishers];
+        for (int value : recv) {
+            assertEquals(next[value / stride]++, value % stride);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testPublishersFailWhenOpeningFails() throws Exception {
+        // a file in place of the storage directory fails the opening of every slow-start buffer
+        final File notADirectory = temp.newFile();
+        final SlowStartEventQueue queue = new SlowStartEventQueue("fig", (key, bb) -> {},
+                                                                  notADirectory.toPath(), executor);
+        final ExecutorService publishers = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            final CountDownLatch start = new CountDownLatch(1);
+            for (int i = 0; i < 8; i++) {
+                final int value = i;
+                results.add(publishers.submit(() -> {
+                    start.await();
+                    queue.publish(createPayload(value));
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                    fail("Expected the publish to fail");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        } finally {
+            publishers.shutdown();
+        }
+        assertEquals("INITIAL", queue.getMXBean().getState());
+    }
+
+    @Test(timeout = 5000)
+    public void testTailPublishersFailWhenDrainAborts() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final SlowStartEventQueue queue = new SlowStartEventQueue("lychee", (key, bb) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("consumer failed");
+        }, temp.newFolder().toPath(), executor, new SlowStartConfig().setTailHandoff(64));
+
+        queue.publish(createPayload(0));
+        queue.publish(createPayload(1));
+        // the backlog is within the tail's limit, so the drain starts the tail and then blocks in the consumer
+        queue.ready();
+
+        final AtomicInteger published = new AtomicInteger();
+        final CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        final Thread publisher = new Thread(() -> {
+            try {
+                for (int i = 2; i < 100; i++) {
+                    queue.publish(createPayload(i));
+                    published.incrementAndGet();
+                }
+                failure.complete(null);
+            } catch (Throwable e) {
+                failure.complete(e);
+            }
+        });
+        publisher.start();
+        // sixteen four-byte payloads fill the tail, after which the publisher waits for the drain
+        while (published.get() < 16 || publisher.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+
+        release.countDown();
+        assertTrue(failure.get() instanceof IOException);
+        assertEquals(16, published.get());
+        assertEquals("FAILED", queue.getMXBean().getState());
+        try {
+            queue.publish(createPayload(100));
+            fail("Expected the publish to fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -6,11 +6,41 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by geoff on 6/18/17.
@@ -90,4 +120,819 @@ public class SlowStartEventRouterTest {
         receiver.assertContains(15, 16);
 
     }
-}
\ No newline at end of file
+
+    @Test(timeout = 5000)
+    public void testSharedMemoryBudget() throws Exception {
+        Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        futures.put("alpha", new CompletableFuture<>());
+        futures.put("beta", new CompletableFuture<>());
+
+        final Receiver receiver = new Receiver();
+        final File storage = temp.newFolder();
+
+        // the first key's ring takes the whole budget, so the second key has to spill
+        SlowStartEventRouter router = new SlowStartEventRouter(futures::get, receiver, storage.toPath(), executor,
+                                                               new SlowStartConfig().setMemoryTier(1024, 1024));
+
+        router.route("alpha", TestUtils.createPayload(5));
+        router.route("beta", TestUtils.createPayload(15));
+        assertEquals(1, storage.list().length);
+
+        router.route("alpha", TestUtils.createPayload(6));
+        router.route("beta", TestUtils.createPayload(16));
+        futures.get("alpha").complete(null);
+        futures.get("beta").complete(null);
+
+        receiver.waitFor(4);
+
+        receiver.assertContains(5, 6);
+        receiver.assertContains(15, 16);
+    }
+
+    @Test(timeout = 5000)
+    public void testSharedLog() throws Exception {
+        Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        final Receiver receiver = new Receiver();
+        final File storage = temp.newFolder();
+
+        SlowStartEventRouter router = new SlowStartEventRouter(key -> futures.computeIfAbsent(
+                key, k -> new CompletableFuture<>()), receiver, storage.toPath(), executor,
+                                                               new SlowStartConfig().setSharedLog(2, 4096));
+
+        for (int i = 0; i < 50; i++) {
+            router.route("key-" + (i % 10), TestUtils.createPayload(i));
+        }
+        // only the shard directories, rather than one per key
+        final String[] dirs = storage.list();
+        assertEquals(2, dirs.length);
+        for (String dir : dirs) {
+            assertTrue(dir.startsWith("shared-"));
+        }
+
+        futures.values().forEach(future -> future.complete(null));
+        receiver.waitFor(50);
+
+        for (int k = 0; k < 10; k++) {
+            receiver.assertContains(k, k + 10, k + 20, k + 30, k + 40);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testIdleEviction() throws Exception {
+        final AtomicInteger observed = new AtomicInteger();
+        final Receiver receiver = new Receiver();
+        final File storage = temp.newFolder();
+
+        try (SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> {
+                    observed.incrementAndGet();
+                    return CompletableFuture.completedFuture(null);
+                },
+                receiver, storage.toPath(), executor,
+                new SlowStartConfig().setRouteIdleTimeout(20, TimeUnit.MILLISECONDS))) {
+
+            router.route("alpha", TestUtils.createPayload(5));
+            assertEquals(1, router.getRouteCount());
+
+            while (router.getRouteCount() > 0) {
+                Thread.sleep(10);
+            }
+            // the storage directory of the key is released along with the route
+            assertEquals(0, storage.list().length);
+
+            router.route("alpha", TestUtils.createPayload(6));
+            receiver.waitFor(2);
+            receiver.assertContains(5, 6);
+            assertEquals(2, observed.get());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testEvictedKeysNotReobserved() throws Exception {
+        final AtomicInteger observed = new AtomicInteger();
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Receiver receiver = new Receiver();
+
+        try (SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> {
+                    observed.incrementAndGet();
+                    return futureReady;
+                },
+                receiver, temp.newFolder().toPath(), executor,
+                new SlowStartConfig().setRouteIdleTimeout(20, TimeUnit.MILLISECONDS)
+                        .setReobserveEvictedKeys(false))) {
+
+            router.route("alpha", TestUtils.createPayload(5));
+            Thread.sleep(100);
+            // still in slow-start, so not evicted
+            assertEquals(1, router.getRouteCount());
+
+            futureReady.complete(null);
+            receiver.waitFor(1);
+            while (router.getRouteCount() > 0) {
+                Thread.sleep(10);
+            }
+
+            router.route("alpha", TestUtils.createPayload(6));
+            receiver.waitFor(2);
+            receiver.assertContains(5, 6);
+            assertEquals(1, observed.get());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testMaxRoutes() throws Exception {
+        final Receiver receiver = new Receiver();
+
+        try (SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> CompletableFuture.completedFuture(null), receiver, temp.newFolder().toPath(), executor,
+                new SlowStartConfig().setMaxRoutes(2))) {
+
+            for (int i = 0; i < 5; i++) {
+                router.route("key-" + i, TestUtils.createPayload(i));
+            }
+            // a sweep requested upon exceeding the bound may be running concurrently
+            while (router.getRouteCount() > 2) {
+                router.sweep();
+                Thread.sleep(10);
+            }
+            receiver.waitFor(5);
+            router.route("key-5", TestUtils.createPayload(5));
+            assertTrue(router.getRouteCount() <= 3);
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testInvalidRouteRetried() throws Exception {
+        final Receiver receiver = new Receiver();
+        final File storage = new File(temp.getRoot(), "storage");
+        // a file in the way of the storage directory
+        assertTrue(storage.createNewFile());
+
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        SlowStartEventRouter router = new SlowStartEventRouter(key -> futureReady,
+                                                               receiver, storage.toPath(), executor,
+                                                               new SlowStartConfig().setInvalidRouteRetry(
+                                                                       20, TimeUnit.MILLISECONDS));
+
+        // storage is only created by the first spill
+        try {
+            router.route("alpha", TestUtils.createPayload(5));
+            fail("expected the route to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertTrue(storage.delete());
+        // opening is only retried once the backoff elapses
+        try {
+            router.route("alpha", TestUtils.createPayload(5));
+            fail("expected the route to fail until retried");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, router.getMXBean().getFailedRouteCount());
+        Thread.sleep(50);
+        router.route("alpha", TestUtils.createPayload(6));
+        assertEquals(0, router.getMXBean().getFailedRouteCount());
+        futureReady.complete(null);
+
+        receiver.waitFor(1);
+        TestUtils.assertIntInBuf(6, receiver.get(0));
+    }
+
+    @Test(timeout = 5000)
+    public void testRouteAfterFailedDrain() throws Exception {
+        final Receiver receiver = new Receiver();
+        final Set<String> failing = ConcurrentHashMap.newKeySet();
+        failing.addAll(Arrays.asList("alpha", "42"));
+        final EventConsumer consumer = (key, payload) -> {
+            if (failing.remove(key)) {
+                throw new IllegalStateException("consumer failed");
+            }
+            receiver.consume(key, payload);
+        };
+
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Path storage = temp.newFolder().toPath();
+        final SlowStartEventRouter router = new SlowStartEventRouter(key -> futureReady, consumer, storage, executor,
+                                                                     new SlowStartConfig().setInvalidRouteRetry(
+                                                                             50, TimeUnit.MILLISECONDS));
+        router.route("alpha", TestUtils.createPayload(1));
+        router.route("alpha", TestUtils.createPayload(2));
+        router.route(42L, TestUtils.createPayload(3));
+        futureReady.complete(null);
+
+        while (router.getMXBean().getFailedRouteCount() < 2) {
+            Thread.sleep(1);
+        }
+        try {
+            router.route("alpha", TestUtils.createPayload(4));
+            fail("expected the route to fail until retried");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            router.route(42L, TestUtils.createPayload(4));
+            fail("expected the route to fail until retried");
+        } catch (IOException e) {
+            // expected
+        }
+
+        Thread.sleep(100);
+        // the backlogs left by the failed drains are delivered again ahead of what's routed now
+        router.route("alpha", TestUtils.createPayload(5));
+        router.route(42L, TestUtils.createPayload(6));
+        receiver.waitFor(5);
+        assertEquals(0, router.getMXBean().getFailedRouteCount());
+
+        final List<Integer> alpha = new ArrayList<>();
+        final List<Integer> other = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final ByteBuffer payload = receiver.get(i);
+            final int val = payload.getInt(payload.position());
+            if (val == 3 || val == 6) {
+                other.add(val);
+            }
+            else {
+                alpha.add(val);
+            }
+        }
+        assertEquals(Arrays.asList(1, 2, 5), alpha);
+        assertEquals(Arrays.asList(3, 6), other);
+    }
+
+    @Test(timeout = 5000)
+    public void testRecover() throws Exception {
+        final File storage = temp.newFolder();
+        final Path alphaStore;
+
+        // the first run never becomes ready and is abandoned, as if it crashed
+        SlowStartEventRouter crashed = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                storage.toPath(), executor);
+        for (int i = 0; i < 5; i++) {
+            crashed.route("alpha", TestUtils.createPayload(i + 1));
+        }
+        crashed.route("beta", TestUtils.createPayload(11));
+        crashed.route("beta", TestUtils.createPayload(12));
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(storage.toPath())) {
+            Path found = null;
+            for (Path dir : dirs) {
+                if ("alpha".equals(new String(Files.readAllBytes(dir.resolve(SlowStartEventQueue.KEY_FILE)),
+                                              StandardCharsets.UTF_8))) {
+                    found = dir.resolve(SlowStartEventQueue.STORE_FILE);
+                }
+            }
+            alphaStore = found;
+        }
+        // with the last event torn
+        try (FileChannel channel = FileChannel.open(alphaStore, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 4, 1, 2}));
+        }
+
+        final Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        final Receiver receiver = new Receiver();
+        SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> futures.computeIfAbsent(key, k -> new CompletableFuture<>()),
+                receiver, storage.toPath(), executor);
+
+        assertEquals(2, router.recover());
+        assertEquals(2, futures.size());
+
+        router.route("alpha", TestUtils.createPayload(6));
+        futures.values().forEach(future -> future.complete(null));
+        router.route("beta", TestUtils.createPayload(13));
+
+        receiver.waitFor(9);
+        receiver.assertContains(1, 2, 3, 4, 5, 6);
+        receiver.assertContains(11, 12, 13);
+    }
+
+    @Test(timeout = 5000)
+    public void testMXBean() throws Exception {
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Receiver receiver = new Receiver();
+        SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> "alpha".equals(key) ? futureReady : CompletableFuture.completedFuture(null),
+                receiver, temp.newFolder().toPath(), executor, new SlowStartConfig().setLatencySampling(1));
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName("me.itzg.slowstart:type=SlowStartEventRouter,name=test");
+        server.registerMBean(router.getMXBean(), name);
+        try {
+            router.route("alpha", TestUtils.createPayload(1));
+            router.route("alpha", TestUtils.createPayload(2));
+            router.route("beta", TestUtils.createPayload(3));
+
+            assertEquals(2, server.getAttribute(name, "RouteCount"));
+            assertEquals(1, server.getAttribute(name, "SlowStartRouteCount"));
+            assertEquals(1, server.getAttribute(name, "SteadyRouteCount"));
+            assertEquals(2L, server.getAttribute(name, "BacklogEvents"));
+            assertEquals(2L * (SlowStartEventQueue.RECORD_HEADER_SIZE + 4), server.getAttribute(name, "SpilledBytes"));
+            final CompositeData slowStart = (CompositeData) server.getAttribute(name, "PublishSlowStartLatency");
+            assertEquals(2L, slowStart.get("count"));
+
+            futureReady.complete(null);
+            receiver.waitFor(3);
+            while ((Integer) server.getAttribute(name, "SteadyRouteCount") != 2) {
+                Thread.sleep(10);
+            }
+            assertEquals(2L, server.getAttribute(name, "DrainedEvents"));
+            assertEquals(0L, server.getAttribute(name, "BacklogEvents"));
+            assertEquals(0L, server.getAttribute(name, "ChecksumFailures"));
+            assertEquals(1L, ((CompositeData) server.getAttribute(name, "SwitchOverTime")).get("count"));
+            assertEquals(1L, ((CompositeData) server.getAttribute(name, "PublishSteadyLatency")).get("count"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDrainConcurrency() throws Exception {
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        final ExecutorService drainers = Executors.newFixedThreadPool(4);
+        try {
+            SlowStartEventRouter router = new SlowStartEventRouter(
+                    key -> futureReady,
+                    (key, bb) -> received.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(bb.getInt(0)),
+                    temp.newFolder().toPath(), drainers,
+                    new SlowStartConfig().setDrainConcurrency(2, DrainPriority.SMALLEST_BACKLOG)
+                            .setDrainStepBytes(64));
+
+            for (int k = 0; k < 20; k++) {
+                for (int i = 0; i < (k + 1) * 10; i++) {
+                    router.route("key" + k, TestUtils.createPayload(i));
+                }
+            }
+            // every key becomes ready at once
+            futureReady.complete(null);
+
+            final SlowStartEventRouterMXBean mxBean = router.getMXBean();
+            assertTrue(mxBean.getRunningDrains() <= 2);
+            while (mxBean.getSteadyRouteCount() != 20) {
+                assertTrue(mxBean.getRunningDrains() <= 2);
+                Thread.sleep(1);
+            }
+            for (int k = 0; k < 20; k++) {
+                final List<Integer> values = received.get("key" + k);
+                assertEquals((k + 1) * 10, values.size());
+                for (int i = 0; i < values.size(); i++) {
+                    assertEquals(i, (int) values.get(i));
+                }
+            }
+            assertEquals(0, mxBean.getWaitingDrains());
+        } finally {
+            drainers.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRouteAsync() throws Exception {
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Receiver receiver = new Receiver();
+        SlowStartEventRouter router = new SlowStartEventRouter(key -> futureReady, receiver,
+                                                               temp.newFolder().toPath(), executor);
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            if (i == 500) {
+                futureReady.complete(null);
+            }
+            futures.add(router.routeAsync("alpha", TestUtils.createPayload(i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        receiver.waitFor(1000);
+        for (int i = 0; i < 1000; i++) {
+            TestUtils.assertIntInBuf(i, receiver.get(i));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testRecoverFannedOut() throws Exception {
+        final File storage = temp.newFolder();
+        final SlowStartConfig config = new SlowStartConfig().setKeyPaths(KeyPathScheme.MURMUR3, 2);
+
+        SlowStartEventRouter crashed = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                storage.toPath(), executor, config);
+        crashed.route("alpha", TestUtils.createPayload(1));
+        crashed.route("beta", TestUtils.createPayload(11));
+        assertTrue(KeyPathScheme.MURMUR3.resolve(storage.toPath(), "alpha", 2).toFile().isDirectory());
+
+        final Receiver receiver = new Receiver();
+        SlowStartEventRouter router = new SlowStartEventRouter(key -> CompletableFuture.completedFuture(null),
+                                                               receiver, storage.toPath(), executor, config);
+        assertEquals(2, router.recover());
+
+        receiver.waitFor(2);
+        receiver.assertContains(1);
+        receiver.assertContains(11);
+    }
+
+    @Test(timeout = 5000)
+    public void testRouteLongAndBytesKeys() throws Exception {
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final List<Object> observed = Collections.synchronizedList(new ArrayList<>());
+        final Map<Object, List<Integer>> received = new ConcurrentHashMap<>();
+        final Path storage = temp.newFolder().toPath();
+        SlowStartEventRouter router = new SlowStartEventRouter(
+                new NewKeyObserver() {
+                    @Override
+                    public CompletableFuture<Void> observeNewKey(String key) {
+                        observed.add(key);
+                        return futureReady;
+                    }
+
+                    @Override
+                    public CompletableFuture<Void> observeNewKey(long key) {
+                        observed.add(key);
+                        return futureReady;
+                    }
+
+                    @Override
+                    public CompletableFuture<Void> observeNewKey(byte[] key) {
+                        observed.add(new String(key, StandardCharsets.UTF_8));
+                        return futureReady;
+                    }
+                },
+                new EventConsumer() {
+                    @Override
+                    public void consume(String key, ByteBuffer payload) {
+                        received.computeIfAbsent("string:" + key, k -> new ArrayList<>()).add(payload.getInt());
+                    }
+
+                    @Override
+                    public void consume(long key, ByteBuffer payload) {
+                        received.computeIfAbsent(key, k -> new ArrayList<>()).add(payload.getInt());
+                    }
+
+                    @Override
+                    public void consume(byte[] key, ByteBuffer payload) {
+                        received.computeIfAbsent(new String(key, StandardCharsets.UTF_8), k -> new ArrayList<>())
+                                .add(payload.getInt());
+                    }
+                },
+                storage, executor);
+
+        final byte[] key = "42".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 3; i++) {
+            router.route(42L, TestUtils.createPayload(i));
+            router.route(key, TestUtils.createPayload(10 + i));
+            router.route("42", TestUtils.createPayload(20 + i));
+        }
+        // the array is copied, so reusing it doesn't disturb the route
+        key[0] = 'x';
+        router.route("42".getBytes(StandardCharsets.UTF_8), TestUtils.createPayload(13));
+
+        // the same key in each form is a separate route
+        assertEquals(3, router.getRouteCount());
+        assertEquals(3, observed.size());
+        assertTrue(observed.contains(42L));
+        assertTrue(Files.isDirectory(storage.resolve(SlowStartEventRouter.LONG_KEYS_DIR)));
+        assertTrue(Files.isDirectory(storage.resolve(SlowStartEventRouter.BYTES_KEYS_DIR)));
+
+        futureReady.complete(null);
+        while (received.values().stream().mapToInt(List::size).sum() < 10) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList(0, 1, 2), received.get(42L));
+        assertEquals(Arrays.asList(10, 11, 12, 13), received.get("42"));
+        assertEquals(Arrays.asList(20, 21, 22), received.get("string:42"));
+    }
+
+    @Test(timeout = 5000)
+    public void testRecoverLongAndBytesKeys() throws Exception {
+        final File storage = temp.newFolder();
+
+        SlowStartEventRouter crashed = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                storage.toPath(), executor);
+        crashed.route(-7L, TestUtils.createPayload(1));
+        crashed.route(new byte[]{0, (byte) 0xff, 7}, TestUtils.createPayload(2));
+        crashed.route("alpha", TestUtils.createPayload(3));
+
+        final List<Object> keys = Collections.synchronizedList(new ArrayList<>());
+        final Receiver receiver = new Receiver() {
+            @Override
+            public void consume(long key, ByteBuffer payload) {
+                keys.add(key);
+                super.consume(key, payload);
+            }
+
+            @Override
+            public void consume(byte[] key, ByteBuffer payload) {
+                keys.add(ByteBuffer.wrap(key));
+                super.consume(key, payload);
+            }
+        };
+        SlowStartEventRouter router = new SlowStartEventRouter(key -> CompletableFuture.completedFuture(null),
+                                                               receiver, storage.toPath(), executor);
+        assertEquals(3, router.recover());
+        assertEquals(3, router.getRouteCount());
+
+        receiver.waitFor(3);
+        receiver.assertContains(1);
+        receiver.assertContains(2);
+        receiver.assertContains(3);
+        assertTrue(keys.contains(-7L));
+        assertTrue(keys.contains(ByteBuffer.wrap(new byte[]{0, (byte) 0xff, 7})));
+
+        // later events reach the recovered routes rather than new ones
+        router.route(-7L, TestUtils.createPayload(4));
+        router.route(new byte[]{0, (byte) 0xff, 7}, TestUtils.createPayload(5));
+        assertEquals(3, router.getRouteCount());
+        receiver.waitFor(5);
+    }
+
+    @Test(timeout = 5000)
+    public void testEvictLongKeys() throws Exception {
+        final AtomicInteger observed = new AtomicInteger();
+        final Receiver receiver = new Receiver();
+
+        try (SlowStartEventRouter router = new SlowStartEventRouter(
+                new NewKeyObserver() {
+                    @Override
+                    public CompletableFuture<Void> observeNewKey(String key) {
+                        observed.incrementAndGet();
+                        return CompletableFuture.completedFuture(null);
+                    }
+                },
+                receiver, temp.newFolder().toPath(), executor,
+                new SlowStartConfig().setMaxRoutes(2).setReobserveEvictedKeys(false))) {
+
+            for (long i = 0; i < 5; i++) {
+                router.route(i, TestUtils.createPayload((int) i));
+            }
+            while (router.getRouteCount() > 2) {
+                router.sweep();
+                Thread.sleep(10);
+            }
+            receiver.waitFor(5);
+            assertEquals(5, observed.get());
+
+            // an evicted key is recreated without being observed again
+            router.route(0L, TestUtils.createPayload(5));
+            receiver.waitFor(6);
+            assertEquals(5, observed.get());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testDispatchKeysInParallel() throws Exception {
+        final ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch betaConsumed = new CountDownLatch(1);
+            final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+            SlowStartEventRouter router = new SlowStartEventRouter(
+                    key -> CompletableFuture.completedFuture(null),
+                    (key, bb) -> {
+                        if (key.equals("alpha")) {
+                            // alpha's consumer only proceeds once beta's has run alongside it
+                            try {
+                                assertTrue(betaConsumed.await(2, TimeUnit.SECONDS));
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        else {
+                            betaConsumed.countDown();
+                        }
+                        received.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                                .add(bb.getInt());
+                    },
+                    temp.newFolder().toPath(), executor,
+                    new SlowStartConfig().setDispatch(true, workers));
+
+            for (int i = 0; i < 100; i++) {
+                router.route("alpha", TestUtils.createPayload(i));
+                router.route("beta", TestUtils.createPayload(i));
+            }
+
+            while (received.getOrDefault("alpha", Collections.emptyList()).size() < 100 ||
+                    received.getOrDefault("beta", Collections.emptyList()).size() < 100) {
+                Thread.sleep(10);
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, (int) received.get("alpha").get(i));
+                assertEquals(i, (int) received.get("beta").get(i));
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExportImportBacklog() throws Exception {
+        final SlowStartConfig[] configs = {
+                new SlowStartConfig(),
+                new SlowStartConfig().setSegmentSize(4096),
+                new SlowStartConfig().setMemoryTier(1024, 65536),
+                new SlowStartConfig().setSharedLog(2, 4096),
+                new SlowStartConfig().setGroupCommit(4096, 1, TimeUnit.MILLISECONDS).setCompression(SpillCodecs.LZ),
+                // the oldest events are discarded part way through a compressed block
+                new SlowStartConfig().setGroupCommit(512, 1, TimeUnit.MILLISECONDS).setCompression(SpillCodecs.LZ)
+                        .setSpillQuota(24 * 50, 0, OverflowPolicy.DROP_OLDEST)
+        };
+        for (SlowStartConfig config : configs) {
+            final SlowStartEventRouter source = new SlowStartEventRouter(key -> new CompletableFuture<>(),
+                                                                         (key, bb) -> fail("Delivered by source"),
+                                                                         temp.newFolder().toPath(), executor, config);
+            for (int i = 0; i < 100; i++) {
+                source.route("alpha", TestUtils.createPayload(i + 1));
+            }
+            source.route(7L, TestUtils.createPayload(1001));
+            source.route(7L, TestUtils.createPayload(1002));
+
+            final Path alphaExport = temp.newFile().toPath();
+            final Path longExport = temp.newFile().toPath();
+            final long alphaBytes;
+            final long longBytes;
+            try (FileChannel channel = FileChannel.open(alphaExport, StandardOpenOption.WRITE)) {
+                alphaBytes = source.exportBacklog("alpha", channel);
+            }
+            try (FileChannel channel = FileChannel.open(longExport, StandardOpenOption.WRITE)) {
+                longBytes = source.exportBacklog(7L, channel);
+            }
+            assertEquals(0, source.getRouteCount());
+            assertEquals(0, source.getSpilledBytes());
+            assertTrue(alphaBytes > 0);
+
+            final Map<String, CompletableFuture<Void>> futures = new ConcurrentHashMap<>();
+            final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+            final SlowStartEventRouter target = new SlowStartEventRouter(
+                    key -> futures.computeIfAbsent(key, k -> new CompletableFuture<>()),
+                    (key, bb) -> received.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(bb.getInt(bb.position())),
+                    temp.newFolder().toPath(), executor);
+            try (FileChannel channel = FileChannel.open(alphaExport, StandardOpenOption.READ)) {
+                assertEquals(alphaBytes, target.importBacklog(channel));
+            }
+            try (FileChannel channel = FileChannel.open(longExport, StandardOpenOption.READ)) {
+                assertEquals(longBytes, target.importBacklog(channel));
+            }
+            assertEquals(2, futures.size());
+            assertEquals(alphaBytes + longBytes, target.getSpilledBytes());
+
+            target.route("alpha", TestUtils.createPayload(101));
+            target.route(7L, TestUtils.createPayload(1003));
+            futures.values().forEach(future -> future.complete(null));
+
+            while (received.getOrDefault("7", Collections.emptyList()).size() < 3 ||
+                    !received.getOrDefault("alpha", Collections.emptyList()).contains(101)) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList(1001, 1002, 1003), received.get("7"));
+            final List<Integer> alpha = received.get("alpha");
+            // anything discarded for the quota was the oldest, so what's left is in order up to the newly routed
+            final int first = 102 - alpha.size();
+            for (int i = 0; i < alpha.size(); i++) {
+                assertEquals(first + i, (int) alpha.get(i));
+            }
+            if (config.getOverflowPolicy() == OverflowPolicy.DROP_OLDEST) {
+                assertTrue(alpha.size() < 101);
+            }
+            else {
+                assertEquals(101, alpha.size());
+            }
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testImportBacklogOfRoutedKey() throws Exception {
+        final SlowStartEventRouter source = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                     temp.newFolder().toPath(), executor);
+        source.route("alpha", TestUtils.createPayload(1));
+        final Path export = temp.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(export, StandardOpenOption.WRITE)) {
+            source.exportBacklog("alpha", channel);
+        }
+
+        final SlowStartEventRouter target = new SlowStartEventRouter(key -> new CompletableFuture<>(),
+                                                                     (key, bb) -> {},
+                                                                     temp.newFolder().toPath(), executor);
+        target.route("alpha", TestUtils.createPayload(2));
+        try (FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)) {
+            target.importBacklog(channel);
+            fail("Expected the import to be refused");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // a truncated backlog is refused without creating a route
+        try (FileChannel channel = FileChannel.open(export, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 2);
+        }
+        final SlowStartEventRouter other = new SlowStartEventRouter(key -> new CompletableFuture<>(),
+                                                                    (key, bb) -> {},
+                                                                    temp.newFolder().toPath(), executor);
+        try (FileChannel channel = FileChannel.open(export, StandardOpenOption.READ)) {
+            other.importBacklog(channel);
+            fail("Expected the import to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, other.getRouteCount());
+        assertEquals(0, other.getSpilledBytes());
+    }
+
+    @Test(timeout = 5000)
+    public void testRouteWhileExporting() throws Exception {
+        final SlowStartEventRouter router = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                     temp.newFolder().toPath(), executor);
+        router.route("alpha", TestUtils.createPayload(1));
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+        final ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        final WritableByteChannel out = Channels.newChannel(exported);
+        // stalls the export, and then never makes progress past the header unless written from the buffer that the
+        // store falls back to copying through when the file's transfer makes no progress
+        final WritableByteChannel target = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                if (writes.incrementAndGet() > 1 && src.capacity() != BacklogTransfer.BUFFER_SIZE) {
+                    return 0;
+                }
+                return out.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final CompletableFuture<Long> export = CompletableFuture.supplyAsync(() -> {
+            try {
+                return router.exportBacklog("alpha", target);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        writing.await();
+        try {
+            router.route("alpha", TestUtils.createPayload(2));
+            fail("Expected routing the exported key to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        release.countDown();
+        assertEquals(24, (long) export.get());
+
+        // once exported, the key gets a new route
+        router.route("alpha", TestUtils.createPayload(3));
+        assertEquals(1, router.getRouteCount());
+
+        final SlowStartEventRouter other = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                    temp.newFolder().toPath(), executor);
+        assertEquals(24, other.importBacklog(Channels.newChannel(new ByteArrayInputStream(exported.toByteArray()))));
+    }
+
+    @Test(timeout = 5000)
+    public void testImportRejectsOversizedLengths() throws Exception {
+        final SlowStartEventRouter router = new SlowStartEventRouter(key -> new CompletableFuture<>(), (key, bb) -> {},
+                                                                     temp.newFolder().toPath(), executor);
+
+        final ByteBuffer longKey = ByteBuffer.allocate(13);
+        longKey.putInt(BacklogTransfer.MAGIC).putInt(BacklogTransfer.VERSION).put(BacklogTransfer.KIND_BYTES)
+                .putInt(Integer.MAX_VALUE);
+        assertImportFails(router, longKey.array());
+
+        // frames that are longer than allowed, or than the rest of the backlog
+        assertImportFails(router, backlogWithFrame(100_000_000, Long.MAX_VALUE));
+        assertImportFails(router, backlogWithFrame(1_000_000, 100));
+        assertEquals(0, router.getRouteCount());
+    }
+
+    private static byte[] backlogWithFrame(int payloadLength, long length) throws IOException {
+        final ByteArrayOutputStream backlog = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(backlog);
+        BacklogTransfer.writeHeader(channel, BacklogTransfer.KIND_STRING, "alpha".getBytes(StandardCharsets.UTF_8),
+                                    length);
+        final ByteBuffer header = ByteBuffer.allocate(SlowStartEventQueue.RECORD_HEADER_SIZE);
+        header.putInt(payloadLength).putLong(SlowStartEventQueue.recordWord(0, 0)).putLong(0).flip();
+        BacklogTransfer.writeFully(channel, header);
+        return backlog.toByteArray();
+    }
+
+    private static void assertImportFails(SlowStartEventRouter router, byte[] backlog) {
+        try {
+            router.importBacklog(Channels.newChannel(new ByteArrayInputStream(backlog)));
+            fail("Expected the import to fail");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
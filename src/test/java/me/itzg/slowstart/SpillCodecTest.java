@@ -0,0 +1,69 @@
+package me.itzg.slowstart;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpillCodecTest {
+
+    @Test
+    public void testLzRoundTrip() throws Exception {
+        assertRoundTrips(SpillCodecs.LZ);
+    }
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+        assertRoundTrips(SpillCodecs.DEFLATE);
+    }
+
+    @Test
+    public void testLzCompresses() throws Exception {
+        final byte[] src = jsonish(64 * 1024);
+        final byte[] dst = new byte[SpillCodecs.LZ.maxCompressedLength(src.length)];
+        final int compressed = SpillCodecs.LZ.compress(src, 0, src.length, dst, 0);
+        assertTrue("compressed to " + compressed, compressed < src.length / 4);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLzRejectsTruncatedBlock() throws Exception {
+        final byte[] src = jsonish(4096);
+        final byte[] dst = new byte[SpillCodecs.LZ.maxCompressedLength(src.length)];
+        final int compressed = SpillCodecs.LZ.compress(src, 0, src.length, dst, 0);
+        SpillCodecs.LZ.decompress(dst, 0, compressed / 2, new byte[src.length], 0, src.length);
+    }
+
+    private static void assertRoundTrips(SpillCodec codec) throws IOException {
+        final Random rand = new Random(1);
+        for (int size : new int[]{0, 1, 11, 12, 13, 100, 4096, 65536, 300000}) {
+            final byte[] random = new byte[size];
+            rand.nextBytes(random);
+            assertRoundTrips(codec, random);
+            assertRoundTrips(codec, jsonish(size));
+            assertRoundTrips(codec, new byte[size]);
+        }
+    }
+
+    private static void assertRoundTrips(SpillCodec codec, byte[] src) throws IOException {
+        // at an offset to verify that offsets are honored
+        final byte[] dst = new byte[3 + codec.maxCompressedLength(src.length)];
+        final int compressed = codec.compress(src, 0, src.length, dst, 3);
+        final byte[] restored = new byte[src.length + 5];
+        codec.decompress(dst, 3, compressed, restored, 5, src.length);
+        assertArrayEquals(src, Arrays.copyOfRange(restored, 5, restored.length));
+    }
+
+    static byte[] jsonish(int size) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("{\"id\":").append(i).append(",\"type\":\"metric\",\"host\":\"host-").append(i % 7)
+                    .append("\",\"value\":").append(i * 31 % 1000).append("}\n");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+}
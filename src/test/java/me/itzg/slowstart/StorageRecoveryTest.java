@@ -0,0 +1,89 @@
+package me.itzg.slowstart;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static me.itzg.slowstart.SegmentedSlowStoreTest.frame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class StorageRecoveryTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testTruncatesTornTail() throws Exception {
+        final Path keyDir = createKeyDir("alpha");
+        final Path store = keyDir.resolve(SlowStartEventQueue.STORE_FILE);
+        try (FileChannel channel = FileChannel.open(store, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < 5; i++) {
+                channel.write(frame(i));
+            }
+            // only part of the last event was written
+            final ByteBuffer torn = frame(5);
+            torn.limit(14);
+            channel.write(torn);
+        }
+
+        final StorageRecovery.Recovered recovered = StorageRecovery.recover(keyDir, 0);
+        assertNotNull(recovered);
+        assertEquals("alpha", recovered.key);
+        assertEquals(5 * 16, recovered.store.getWrittenBytes());
+        assertEquals(5 * 16, Files.size(store));
+        recovered.store.closeForWriting();
+        recovered.store.close();
+    }
+
+    @Test
+    public void testTruncatesAtInvalidChecksum() throws Exception {
+        final Path keyDir = createKeyDir("beta");
+        final Path store = keyDir.resolve(SlowStartEventQueue.STORE_FILE);
+        try (FileChannel channel = FileChannel.open(store, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < 5; i++) {
+                final ByteBuffer frame = frame(i);
+                if (i == 3) {
+                    frame.putInt(SlowStartEventQueue.HEADER_SIZE, -1);
+                }
+                channel.write(frame);
+            }
+        }
+
+        assertEquals(3 * 16, StorageRecovery.truncateToValid(store));
+        assertEquals(3 * 16, Files.size(store));
+    }
+
+    @Test
+    public void testRemovesKeyDirectoryWithoutBacklog() throws Exception {
+        final Path keyDir = createKeyDir("gamma");
+        Files.createFile(keyDir.resolve(SlowStartEventQueue.STORE_FILE));
+
+        assertNull(StorageRecovery.recover(keyDir, 0));
+        assertFalse(Files.exists(keyDir));
+    }
+
+    @Test
+    public void testSkipsUnknownKey() throws Exception {
+        final Path keyDir = temp.newFolder().toPath();
+        Files.write(keyDir.resolve(SlowStartEventQueue.STORE_FILE), new byte[16]);
+
+        assertNull(StorageRecovery.recover(keyDir, 0));
+        assertEquals(16, Files.size(keyDir.resolve(SlowStartEventQueue.STORE_FILE)));
+    }
+
+    private Path createKeyDir(String key) throws Exception {
+        final Path keyDir = temp.newFolder().toPath();
+        Files.write(keyDir.resolve(SlowStartEventQueue.KEY_FILE), key.getBytes(StandardCharsets.UTF_8));
+        return keyDir;
+    }
+}
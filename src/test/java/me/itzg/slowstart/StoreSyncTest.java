@@ -0,0 +1,155 @@
+package me.itzg.slowstart;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StoreSyncTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(8);
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Counts forces, which are slowed down so that publishers pile up behind them.
+     */
+    private static class CountingStore extends FileSlowStore {
+        final AtomicInteger forces = new AtomicInteger();
+
+        CountingStore(Path path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        public void force() throws IOException {
+            forces.incrementAndGet();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.force();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testSync() throws Exception {
+        final CountingStore store = new CountingStore(temp.newFolder().toPath().resolve("store.dat"));
+        final LatencyHistogram fsyncTime = new LatencyHistogram();
+        final StoreSync sync = new StoreSync(store, null, fsyncTime);
+
+        store.write(value(1));
+        sync.syncAll();
+        assertEquals(1, store.forces.get());
+        // already durable
+        sync.sync(store.getWrittenBytes());
+        sync.syncAll();
+        assertEquals(1, store.forces.get());
+
+        store.write(value(2));
+        sync.syncAll();
+        assertEquals(2, store.forces.get());
+        assertEquals(2, fsyncTime.getCount());
+
+        // closed once drained, after which forcing does nothing
+        store.closeForWriting();
+        sync.sync(store.getWrittenBytes() + 1);
+    }
+
+    @Test(timeout = 10000)
+    public void testSharedForces() throws Exception {
+        final CountingStore store = new CountingStore(temp.newFolder().toPath().resolve("store.dat"));
+        final StoreSync sync = new StoreSync(store, null, new LatencyHistogram());
+
+        final int publishers = 8;
+        final int perPublisher = 50;
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perPublisher; i++) {
+                    store.write(value(i));
+                    final long position = store.getWrittenBytes();
+                    sync.sync(position);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertTrue(store.forces.get() < publishers * perPublisher);
+    }
+
+    @Test(timeout = 5000)
+    public void testPeriodic() throws Exception {
+        final CountingStore first = new CountingStore(temp.newFolder().toPath().resolve("store.dat"));
+        final CountingStore second = new CountingStore(temp.newFolder().toPath().resolve("store.dat"));
+        final StoreSync firstSync = new StoreSync(first, null, new LatencyHistogram());
+        final StoreSync secondSync = new StoreSync(second, null, new LatencyHistogram());
+        final PeriodicFsync periodic = new PeriodicFsync(TimeUnit.MILLISECONDS.toNanos(50), scheduler);
+
+        for (int i = 0; i < 100; i++) {
+            first.write(value(i));
+            periodic.markDirty(firstSync);
+        }
+        second.write(value(0));
+        periodic.markDirty(secondSync);
+        assertEquals(0, first.forces.get());
+
+        while (first.forces.get() == 0 || second.forces.get() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, first.forces.get());
+        assertEquals(1, second.forces.get());
+
+        // idle, so nothing more is forced
+        Thread.sleep(150);
+        assertEquals(1, first.forces.get());
+
+        first.write(value(100));
+        periodic.markDirty(firstSync);
+        while (first.forces.get() == 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, second.forces.get());
+    }
+
+    private static ByteBuffer value(int value) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+}
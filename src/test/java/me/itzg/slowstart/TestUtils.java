@@ -1,5 +1,6 @@
 package me.itzg.slowstart;
 
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 
 import static org.junit.Assert.assertEquals;
@@ -20,4 +21,13 @@ public class TestUtils {
         bb.rewind();
         return bb;
     }
+
+    /**
+     * @return the bytes allocated so far by the calling thread
+     */
+    static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
 }
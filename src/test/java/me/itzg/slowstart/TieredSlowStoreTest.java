@@ -0,0 +1,94 @@
+package me.itzg.slowstart;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TieredSlowStoreTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private SlowStore disk;
+
+    @Test
+    public void testWrapAndGrow() throws Exception {
+        final ByteBudget budget = new ByteBudget(1 << 20);
+        final TieredSlowStore store = new TieredSlowStore(1 << 16, budget, this::createDisk);
+
+        int written = 0;
+        int read = 0;
+        // interleave so that the content wraps around the ring before it needs to grow
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 40; i++) {
+                store.write(value(written++));
+            }
+            for (int i = 0; i < 30; i++) {
+                assertEquals(read++, readValue(store));
+            }
+        }
+        while (read < written) {
+            assertEquals(read++, readValue(store));
+        }
+
+        assertNull("never spilled", disk);
+        assertEquals(written * 4L, store.getReadBytes());
+        assertTrue(budget.getUsed() > 0);
+        store.close();
+        assertEquals(0, budget.getUsed());
+    }
+
+    @Test
+    public void testSpillKeepsOrder() throws Exception {
+        final ByteBudget budget = new ByteBudget(1 << 20);
+        final TieredSlowStore store = new TieredSlowStore(64, budget, this::createDisk);
+
+        for (int i = 0; i < 100; i++) {
+            store.write(value(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, readValue(store));
+        }
+        assertEquals(0, store.read(ByteBuffer.allocate(4)));
+
+        store.close();
+    }
+
+    @Test
+    public void testSpillWhenBudgetExhausted() throws Exception {
+        final ByteBudget budget = new ByteBudget(0);
+        final TieredSlowStore store = new TieredSlowStore(4096, budget, this::createDisk);
+
+        store.write(value(1));
+        assertEquals(4, disk.getWrittenBytes());
+        assertEquals(1, readValue(store));
+
+        store.close();
+    }
+
+    private SlowStore createDisk() throws IOException {
+        final Path dir = temp.newFolder().toPath();
+        disk = new FileSlowStore(dir.resolve("store.dat"));
+        return disk;
+    }
+
+    private static ByteBuffer value(int val) {
+        final ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(0, val);
+        return bb;
+    }
+
+    private static int readValue(SlowStore store) throws Exception {
+        final ByteBuffer bb = ByteBuffer.allocate(4);
+        assertEquals(4, store.read(bb));
+        return bb.getInt(0);
+    }
+}
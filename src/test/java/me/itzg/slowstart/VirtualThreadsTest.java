@@ -0,0 +1,115 @@
+package me.itzg.slowstart;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VirtualThreadsTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testUnsupportedBeforeJava21() throws Exception {
+        Assume.assumeTrue(!VirtualThreads.isSupported());
+        try {
+            new SlowStartConfig().setVirtualThreads(true);
+            fail("expected virtual threads to be unsupported");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        // disabling is always allowed
+        new SlowStartConfig().setVirtualThreads(false);
+    }
+
+    @Test(timeout = 20000)
+    public void testDrainPerKey() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        final int keys = 2000;
+        final CompletableFuture<Void> futureReady = new CompletableFuture<>();
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        final Set<String> drainThreads = ConcurrentHashMap.newKeySet();
+        final SlowStartEventRouter router = new SlowStartEventRouter(
+                key -> futureReady,
+                (key, bb) -> {
+                    drainThreads.add(Thread.currentThread().getName());
+                    received.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(bb.getInt());
+                },
+                temp.newFolder().toPath(), executor,
+                new SlowStartConfig().setVirtualThreads(true));
+
+        for (int i = 0; i < 5; i++) {
+            for (int k = 0; k < keys; k++) {
+                router.route(k, TestUtils.createPayload(i));
+            }
+        }
+        futureReady.complete(null);
+
+        while (received.size() < keys || received.values().stream().anyMatch(values -> values.size() < 5)) {
+            Thread.sleep(10);
+        }
+        for (List<Integer> values : received.values()) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+        // drained on virtual threads rather than the router's executor
+        assertTrue(drainThreads.stream().allMatch(name -> name.startsWith("slowstart-drain-")));
+        assertTrue(drainThreads.size() > 1);
+    }
+
+    @Test(timeout = 20000)
+    public void testPublishAsync() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        final Receiver receiver = new Receiver();
+        final SlowStartEventQueue queue = new SlowStartEventQueue("quince", receiver, temp.newFolder().toPath(),
+                                                                  executor,
+                                                                  new SlowStartConfig().setVirtualThreads(true));
+
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < 1000; i++) {
+            if (i == 500) {
+                queue.ready();
+            }
+            final ByteBuffer payload = TestUtils.createPayload(i);
+            last = queue.publishAsync(payload);
+        }
+        last.get();
+
+        receiver.waitFor(1000);
+        for (int i = 0; i < 1000; i++) {
+            TestUtils.assertIntInBuf(i, receiver.get(i));
+        }
+    }
+}